@@ -0,0 +1,77 @@
+package BayesianCellClassifier.core;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementation of the pruning kernel using the JDK Vector API (Java 16 or later).
+ * This class is compiled separately from the rest of the package and only loaded through
+ * PruningKernel.getVectorKernel(), when the JVM is started with --add-modules jdk.incubator.vector.
+ */
+public class VectorPruningKernel implements PruningKernel {
+
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void computePairProducts(double[] child1Partials, int child1Offset, double[] child2Partials, int child2Offset,
+                                    int numberOfCellTypes, double[] pairProducts) {
+        int pairIdx = 0;
+        for (int j = 0; j < numberOfCellTypes; j++) {
+            double child1Partial = child1Partials[child1Offset + j];
+            double child2Partial = child2Partials[child2Offset + j];
+            pairProducts[pairIdx++] = child1Partial * child2Partial;
+
+            // pairs (j,k) with k > j are contiguous in pairProducts.
+            DoubleVector child1PartialVector = DoubleVector.broadcast(SPECIES, child1Partial);
+            DoubleVector child2PartialVector = DoubleVector.broadcast(SPECIES, child2Partial);
+            int k = j + 1;
+            int upperBound = k + SPECIES.loopBound(numberOfCellTypes - k);
+            for (; k < upperBound; k += SPECIES.length()) {
+                DoubleVector child1Partials_k = DoubleVector.fromArray(SPECIES, child1Partials, child1Offset + k);
+                DoubleVector child2Partials_k = DoubleVector.fromArray(SPECIES, child2Partials, child2Offset + k);
+                child2Partials_k.mul(child1PartialVector).add(child1Partials_k.mul(child2PartialVector))
+                        .intoArray(pairProducts, pairIdx);
+                pairIdx += SPECIES.length();
+            }
+            for (; k < numberOfCellTypes; k++) {
+                pairProducts[pairIdx++] = child1Partial * child2Partials[child2Offset + k] +
+                        child1Partials[child1Offset + k] * child2Partial;
+            }
+        }
+    }
+
+    @Override
+    public void contractDaughters(double[][] packedTransitionProbs, double[] pairProducts, double[] emissions,
+                                  double[] nodePartials, int offset, int firstType, int lastType) {
+        int numberOfPairs = pairProducts.length;
+        int upperBound = SPECIES.loopBound(numberOfPairs);
+
+        for (int i = firstType; i <= lastType; i++) {
+            double[] motherTransitionProbs = packedTransitionProbs[i];
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            int m = 0;
+            for (; m < upperBound; m += SPECIES.length()) {
+                DoubleVector transitionProbs = DoubleVector.fromArray(SPECIES, motherTransitionProbs, m);
+                sum = transitionProbs.fma(DoubleVector.fromArray(SPECIES, pairProducts, m), sum);
+            }
+            double p = sum.reduceLanes(VectorOperators.ADD);
+            for (; m < numberOfPairs; m++) {
+                p += motherTransitionProbs[m] * pairProducts[m];
+            }
+            nodePartials[offset + i] = p;
+        }
+
+        // multiply by the emission probabilities of the mother cell.
+        int i = firstType;
+        int typeUpperBound = firstType + SPECIES.loopBound(lastType - firstType + 1);
+        for (; i < typeUpperBound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, nodePartials, offset + i)
+                    .mul(DoubleVector.fromArray(SPECIES, emissions, offset + i))
+                    .intoArray(nodePartials, offset + i);
+        }
+        for (; i <= lastType; i++) {
+            nodePartials[offset + i] *= emissions[offset + i];
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package BayesianCellClassifier.core;
+
+import beast.core.parameter.IntegerParameter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Map from each dimension of a cellType parameter shared by the trees of a forest to the tree and the node
+ * whose type it holds, built by LineageForestProb.
+ * When a single dimension of cellType has changed, it is found with getLastDirty, and only the tree owning it
+ * requires recalculation, without the other trees checking their dimensions.
+ * getLastDirty does not tell whether other dimensions have also changed (a swap changes two), so the dirty flags
+ * are checked once per step, stopping at the second dirty dimension. When several dimensions are dirty,
+ * each tree checks the dimensions it owns (see LineageTreeProb.requiresRecalculation).
+ */
+class CellTypeDimensionMap {
+
+    final IntegerParameter cellType;
+
+    // index of the tree in the forest and node number of the cell whose type is held by each dimension, -1 if none.
+    final int[] treeOfDimension;
+    final int[] nodeOfDimension;
+
+    // dimension found for the current step, see getSingleDirtyDimension.
+    boolean dirtyDimensionIsKnown = false;
+    int dirtyDimension;
+
+    private CellTypeDimensionMap(IntegerParameter cellType) {
+        this.cellType = cellType;
+        treeOfDimension = new int[cellType.getDimension()];
+        nodeOfDimension = new int[cellType.getDimension()];
+        Arrays.fill(treeOfDimension, -1);
+        Arrays.fill(nodeOfDimension, -1);
+    }
+
+    /**
+     * Map of the dimensions owned by the trees, null if the trees do not share one cellType parameter
+     * or if a dimension holds the type of cells of several trees.
+     */
+    static CellTypeDimensionMap build(List<LineageTreeProb> treeProbs) {
+
+        IntegerParameter cellType = treeProbs.get(0).cellTypeInput.get();
+        if(cellType == null)
+            return null;
+
+        CellTypeDimensionMap map = new CellTypeDimensionMap(cellType);
+        for (int treeIdx = 0; treeIdx < treeProbs.size(); treeIdx++) {
+            LineageTreeProb treeProb = treeProbs.get(treeIdx);
+            if(treeProb.cellTypeInput.get() != cellType)
+                return null;
+            for (int slotIdx = 0; slotIdx < treeProb.ownedCellTypeSlots.length; slotIdx++) {
+                int dimension = treeProb.ownedCellTypeSlots[slotIdx];
+                if(map.treeOfDimension[dimension] != -1)
+                    return null;
+                map.treeOfDimension[dimension] = treeIdx;
+                map.nodeOfDimension[dimension] = treeProb.nodesOfOwnedCellTypeSlots[slotIdx];
+            }
+        }
+        return map;
+    }
+
+    /**
+     * The only dimension of cellType changed in the current step, or -1 if several dimensions may have changed.
+     */
+    int getSingleDirtyDimension() {
+        if(!dirtyDimensionIsKnown) {
+            dirtyDimension = findSingleDirtyDimension();
+            dirtyDimensionIsKnown = true;
+        }
+        return dirtyDimension;
+    }
+
+    private int findSingleDirtyDimension() {
+        int lastDirty = cellType.getLastDirty();
+        if(lastDirty < 0 || lastDirty >= treeOfDimension.length || !cellType.isDirty(lastDirty))
+            return -1;
+        for (int dimension = 0; dimension < treeOfDimension.length; dimension++) {
+            if(dimension != lastDirty && cellType.isDirty(dimension))
+                return -1;
+        }
+        return lastDirty;
+    }
+
+    /**
+     * Called at the end of each step, once the trees have been checked.
+     */
+    void reset() {
+        dirtyDimensionIsKnown = false;
+    }
+}
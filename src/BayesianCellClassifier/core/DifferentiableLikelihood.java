@@ -0,0 +1,21 @@
+package BayesianCellClassifier.core;
+
+import BayesianCellClassifier.parametrization.Parametrization;
+import BayesianCellClassifier.parametrization.ParametrizationGradient;
+
+/**
+ * Likelihood of lineage trees which can calculate its derivatives with respect to the inputs of its parametrization.
+ */
+public interface DifferentiableLikelihood {
+
+    Parametrization getParametrization();
+
+    /**
+     * Calculate the log-likelihood from the current values of the parameters and add its derivatives to gradient.
+     * The parameters may have been changed without their changes being propagated to the likelihood
+     * (e.g. along the trajectory of an HMC proposal), and the cached state of the likelihood is left unchanged,
+     * so that getCurrentLogP, store and restore behave as if the gradient had not been calculated.
+     * @return the log-likelihood at the current values of the parameters.
+     */
+    double calculateLogPGradient(ParametrizationGradient gradient);
+}
@@ -0,0 +1,139 @@
+package BayesianCellClassifier.core;
+
+import BayesianCellClassifier.lineagetree.Cell;
+import BayesianCellClassifier.lineagetree.CellTree;
+import beast.evolution.tree.Node;
+
+/**
+ * Primitive, array-based copy of the topology of a CellTree.
+ * All arrays are indexed by the BEAST node number of the cells.
+ * postOrder lists the node numbers such that both daughters of a cell always come before the cell itself,
+ * so that the pruning algorithm can be run as a single loop, without recursion.
+ */
+public class FlattenedCellTree {
+
+    final int nodeCount;
+
+    final int rootNr;
+
+    /**
+     * Node numbers in post-order.
+     */
+    final int[] postOrder;
+
+    /**
+     * Node numbers of the daughters of each cell, -1 for leaves.
+     */
+    final int[] child1;
+    final int[] child2;
+
+    /**
+     * Node number of the mother of each cell, -1 for the root.
+     */
+    final int[] parent;
+
+    final int[] trackNumber;
+
+    /**
+     * Generation of each cell, the root cell being at generation 1.
+     */
+    final int[] generation;
+
+    final boolean[] isLeaf;
+
+    final Cell[] cells;
+
+    public FlattenedCellTree(CellTree tree) {
+
+        Node[] nodes = tree.getNodesAsArray();
+        nodeCount = nodes.length;
+        rootNr = tree.getRoot().getNr();
+
+        postOrder = new int[nodeCount];
+        child1 = new int[nodeCount];
+        child2 = new int[nodeCount];
+        parent = new int[nodeCount];
+        trackNumber = new int[nodeCount];
+        generation = new int[nodeCount];
+        isLeaf = new boolean[nodeCount];
+        cells = new Cell[nodeCount];
+
+        for (Node node : nodes) {
+            int nr = node.getNr();
+            Cell cell = (Cell) node;
+
+            cells[nr] = cell;
+            trackNumber[nr] = cell.getTrackNumber();
+            generation[nr] = Cell.getCellGeneration(cell.getTrackNumber());
+            isLeaf[nr] = node.isLeaf();
+            parent[nr] = node.isRoot() ? -1 : node.getParent().getNr();
+
+            if(node.isLeaf()) {
+                child1[nr] = -1;
+                child2[nr] = -1;
+            }
+            else if(node.getChildCount() == 2) {
+                child1[nr] = node.getChild(0).getNr();
+                child2[nr] = node.getChild(1).getNr();
+            }
+            else
+                throw new IllegalArgumentException("Cell " + cell.getTrackNumber() + " has " + node.getChildCount() +
+                        " daughter(s) in the tree. Cells must have either zero or two daughters.");
+        }
+
+        // iterative post-order traversal: nodes are pushed in pre-order (mother, then second and first daughter)
+        // and the resulting sequence is reversed.
+        int[] stack = new int[nodeCount];
+        int stackSize = 0;
+        int count = nodeCount;
+        stack[stackSize++] = rootNr;
+        while(stackSize > 0) {
+            int nr = stack[--stackSize];
+            postOrder[--count] = nr;
+            if(!isLeaf[nr]) {
+                stack[stackSize++] = child1[nr];
+                stack[stackSize++] = child2[nr];
+            }
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getRootNr() {
+        return rootNr;
+    }
+
+    public int[] getPostOrder() {
+        return postOrder;
+    }
+
+    public int getChild1(int nodeNr) {
+        return child1[nodeNr];
+    }
+
+    public int getChild2(int nodeNr) {
+        return child2[nodeNr];
+    }
+
+    public int getParent(int nodeNr) {
+        return parent[nodeNr];
+    }
+
+    public int getTrackNumber(int nodeNr) {
+        return trackNumber[nodeNr];
+    }
+
+    public int getGeneration(int nodeNr) {
+        return generation[nodeNr];
+    }
+
+    public boolean isLeaf(int nodeNr) {
+        return isLeaf[nodeNr];
+    }
+
+    public Cell getCell(int nodeNr) {
+        return cells[nodeNr];
+    }
+}
@@ -0,0 +1,57 @@
+package BayesianCellClassifier.core;
+
+/**
+ * Pruning kernel for models with four cell types, with all loops unrolled.
+ * Sums are taken in the same order as in ScalarPruningKernel, so both give identical results.
+ */
+public class FourTypePruningKernel extends ScalarPruningKernel {
+
+    @Override
+    public void pruneUnfixedDaughters(double[][] packedTransitionProbs,
+                                      double[] child1Partials, int child1Offset, double[] child2Partials, int child2Offset,
+                                      double[] emissions, double[] nodePartials, int offset, int firstType, int lastType,
+                                      int numberOfCellTypes, double[] pairProducts) {
+
+        double a0 = child1Partials[child1Offset];
+        double a1 = child1Partials[child1Offset + 1];
+        double a2 = child1Partials[child1Offset + 2];
+        double a3 = child1Partials[child1Offset + 3];
+        double b0 = child2Partials[child2Offset];
+        double b1 = child2Partials[child2Offset + 1];
+        double b2 = child2Partials[child2Offset + 2];
+        double b3 = child2Partials[child2Offset + 3];
+
+        double p00 = a0 * b0;
+        double p01 = a0 * b1 + a1 * b0;
+        double p02 = a0 * b2 + a2 * b0;
+        double p03 = a0 * b3 + a3 * b0;
+        double p11 = a1 * b1;
+        double p12 = a1 * b2 + a2 * b1;
+        double p13 = a1 * b3 + a3 * b1;
+        double p22 = a2 * b2;
+        double p23 = a2 * b3 + a3 * b2;
+        double p33 = a3 * b3;
+
+        if(firstType == 0 && lastType == 3) {
+            double[] t0 = packedTransitionProbs[0];
+            double[] t1 = packedTransitionProbs[1];
+            double[] t2 = packedTransitionProbs[2];
+            double[] t3 = packedTransitionProbs[3];
+            nodePartials[offset] = (t0[0] * p00 + t0[1] * p01 + t0[2] * p02 + t0[3] * p03 + t0[4] * p11
+                    + t0[5] * p12 + t0[6] * p13 + t0[7] * p22 + t0[8] * p23 + t0[9] * p33) * emissions[offset];
+            nodePartials[offset + 1] = (t1[0] * p00 + t1[1] * p01 + t1[2] * p02 + t1[3] * p03 + t1[4] * p11
+                    + t1[5] * p12 + t1[6] * p13 + t1[7] * p22 + t1[8] * p23 + t1[9] * p33) * emissions[offset + 1];
+            nodePartials[offset + 2] = (t2[0] * p00 + t2[1] * p01 + t2[2] * p02 + t2[3] * p03 + t2[4] * p11
+                    + t2[5] * p12 + t2[6] * p13 + t2[7] * p22 + t2[8] * p23 + t2[9] * p33) * emissions[offset + 2];
+            nodePartials[offset + 3] = (t3[0] * p00 + t3[1] * p01 + t3[2] * p02 + t3[3] * p03 + t3[4] * p11
+                    + t3[5] * p12 + t3[6] * p13 + t3[7] * p22 + t3[8] * p23 + t3[9] * p33) * emissions[offset + 3];
+        }
+        else {
+            for (int i = firstType; i <= lastType; i++) {
+                double[] t = packedTransitionProbs[i];
+                nodePartials[offset + i] = (t[0] * p00 + t[1] * p01 + t[2] * p02 + t[3] * p03 + t[4] * p11
+                        + t[5] * p12 + t[6] * p13 + t[7] * p22 + t[8] * p23 + t[9] * p33) * emissions[offset + i];
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package BayesianCellClassifier.core;
+
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.State;
+import beast.core.parameter.IntegerParameter;
+import BayesianCellClassifier.lineagetree.LineageForest;
+import BayesianCellClassifier.parametrization.Parametrization;
+import BayesianCellClassifier.parametrization.ParametrizationGradient;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Likelihood of a forest of lineage trees sharing the same parametrization.
+ * Only the trees whose likelihood needs to be recalculated are evaluated,
+ * in parallel on a work-stealing pool when there is enough work to share between threads.
+ * The cost of a tree is taken to be its number of cells, and the dirty trees are split into chunks of similar cost.
+ * The likelihoods of the trees are either given one by one, or created from a LineageForest.
+ * When the trees share a cellType parameter, a change of one of its dimensions only requires the recalculation
+ * of the tree owning it (see CellTypeDimensionMap).
+ */
+public class LineageForestProb extends Distribution implements DifferentiableLikelihood {
+
+    public Input<List<LineageTreeProb>> treeProbsInput = new Input<>("treeProb",
+            "Likelihoods of the lineage trees in the forest. All trees must share the same parametrization. " +
+                    "Required if no forest is given.",
+            new ArrayList<>());
+
+    public Input<LineageForest> forestInput = new Input<>("forest",
+            "Lineage trees of the forest, read from a single file. Used instead of treeProb: " +
+                    "the likelihood of each tree is created with treeIdx set so that the trees use " +
+                    "consecutive dimensions of cellType (see LineageForest.getCellTypeOffsets).");
+
+    public Input<Parametrization> parametrizationInput = new Input<>("parametrization",
+            "Parametrization shared by the trees. Only used with forest.");
+
+    public Input<IntegerParameter> cellTypeInput = new Input<>("cellType",
+            "Types of the cells of all trees, see LineageTreeProb. Only used with forest. " +
+                    "If not given, the types of all cells are summed over.");
+
+    public Input<Boolean> rootTypeOnlyInput = new Input<>("rootTypeOnly",
+            "If true, cellType only holds the types of the root cells, one per tree, see LineageTreeProb. " +
+                    "Only used with forest. Default: false",
+            false);
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+            "Maximum number of threads used to calculate the likelihood of the trees. " +
+                    "If less than 1, the number of available processors is used. Default: -1",
+            -1);
+
+    public Input<Integer> minChunkCostInput = new Input<>("minChunkCost",
+            "Minimum number of cells in the trees calculated as a single task. " +
+                    "If the trees to recalculate contain fewer cells in total, they are calculated on the calling thread. " +
+                    "Default: 2000",
+            2000);
+
+    public Input<Boolean> logTreeLogPsInput = new Input<>("logTreeLogPs",
+            "If true, the log-likelihood of each tree is logged after the log-likelihood of the forest. Default: false",
+            false);
+
+    List<LineageTreeProb> treeProbs;
+
+    Parametrization parametrization;
+
+    // number of cells in each tree, used as an estimate of the cost of calculating its likelihood.
+    int[] treeCosts;
+
+    // indices of the trees to recalculate, only the first numberOfDirtyTrees elements are used.
+    int[] dirtyTrees;
+    int numberOfDirtyTrees;
+
+    ForkJoinPool pool;
+
+    int minChunkCost;
+
+    boolean calculateAllTrees;
+
+    // true if the likelihoods of the trees were created from forestInput.
+    boolean treeProbsAreFromForest = false;
+
+    // owners of the dimensions of the cellType parameter shared by the trees, null if they do not share one.
+    CellTypeDimensionMap cellTypeDimensionMap;
+
+    @Override
+    public void initAndValidate() {
+
+        if(forestInput.get() != null && !treeProbsAreFromForest) {
+            if(!treeProbsInput.get().isEmpty())
+                throw new IllegalArgumentException("Only one of treeProb and forest can be given.");
+            createTreeProbs(forestInput.get());
+            treeProbsAreFromForest = true;
+        }
+
+        treeProbs = treeProbsInput.get();
+        if(treeProbs.size() == 0)
+            throw new IllegalArgumentException("A forest must contain at least one tree.");
+
+        parametrization = treeProbs.get(0).parametrizationInput.get();
+
+        treeCosts = new int[treeProbs.size()];
+        for (int treeIdx = 0; treeIdx < treeProbs.size(); treeIdx++) {
+            LineageTreeProb treeProb = treeProbs.get(treeIdx);
+            if(treeProb.parametrizationInput.get() != parametrization)
+                throw new IllegalArgumentException("All trees in a forest must share the same parametrization.");
+            treeCosts[treeIdx] = treeProb.flattenedTree.getNodeCount();
+        }
+
+        dirtyTrees = new int[treeProbs.size()];
+
+        cellTypeDimensionMap = CellTypeDimensionMap.build(treeProbs);
+        for (int treeIdx = 0; treeIdx < treeProbs.size(); treeIdx++) {
+            treeProbs.get(treeIdx).cellTypeDimensionMap = cellTypeDimensionMap;
+            treeProbs.get(treeIdx).treeIdxInForest = treeIdx;
+        }
+
+        int threads = threadsInput.get() < 1 ? Runtime.getRuntime().availableProcessors() : threadsInput.get();
+        if(pool != null)
+            pool.shutdown();
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+
+        minChunkCost = Math.max(1, minChunkCostInput.get());
+
+        calculateAllTrees = true;
+    }
+
+    /**
+     * Create the likelihood of each tree of the forest and add it to treeProbsInput.
+     */
+    void createTreeProbs(LineageForest forest) {
+
+        if(parametrizationInput.get() == null)
+            throw new IllegalArgumentException("A parametrization must be given with forest.");
+
+        int[] cellTypeOffsets = forest.getCellTypeOffsets(rootTypeOnlyInput.get());
+        for (int treeIdx = 0; treeIdx < forest.getTreeCount(); treeIdx++) {
+            LineageTreeProb treeProb = new LineageTreeProb();
+            treeProb.setID((getID() != null ? getID() : "forest") + "." + forest.getTreeId(treeIdx));
+            treeProb.setInputValue("tree", forest.getTree(treeIdx));
+            treeProb.setInputValue("parametrization", parametrizationInput.get());
+            // without cellType, each tree keeps its own default parameter, where the types of all cells are summed over.
+            if(cellTypeInput.get() != null) {
+                treeProb.setInputValue("cellType", cellTypeInput.get());
+                treeProb.setInputValue("treeIdx", cellTypeOffsets[treeIdx]);
+            }
+            treeProb.setInputValue("rootTypeOnly", rootTypeOnlyInput.get());
+            treeProb.initAndValidate();
+            setInputValue("treeProb", treeProb);
+        }
+    }
+
+    @Override
+    public double calculateLogP() {
+
+        numberOfDirtyTrees = 0;
+        int totalCost = 0;
+        for (int treeIdx = 0; treeIdx < treeProbs.size(); treeIdx++) {
+            if(calculateAllTrees || treeProbs.get(treeIdx).isDirtyCalculation()) {
+                dirtyTrees[numberOfDirtyTrees++] = treeIdx;
+                totalCost += treeCosts[treeIdx];
+            }
+        }
+        calculateAllTrees = false;
+
+        if(pool == null || totalCost < 2 * minChunkCost) {
+            calculateTreeLogPs(0, numberOfDirtyTrees);
+        }
+        else {
+            // caches shared by all trees are updated on the calling thread, before the trees read them concurrently.
+            parametrization.updateCaches();
+
+            int chunkCost = Math.max(minChunkCost, totalCost / (4 * pool.getParallelism()));
+            pool.invoke(new TreeChunk(0, numberOfDirtyTrees, totalCost, chunkCost));
+        }
+
+        // trees are summed in a fixed order so that the result does not depend on the scheduling of the tasks.
+        logP = 0.0;
+        for (LineageTreeProb treeProb : treeProbs) {
+            logP += treeProb.getCurrentLogP();
+        }
+        return logP;
+    }
+
+    void calculateTreeLogPs(int from, int to) {
+        for (int i = from; i < to; i++) {
+            treeProbs.get(dirtyTrees[i]).calculateLogP();
+        }
+    }
+
+    /**
+     * Task calculating the likelihood of the dirty trees dirtyTrees[from] to dirtyTrees[to - 1].
+     * It is split in two tasks of similar cost as long as its cost is larger than chunkCost.
+     */
+    class TreeChunk extends RecursiveAction {
+
+        final int from, to, cost, chunkCost;
+
+        TreeChunk(int from, int to, int cost, int chunkCost) {
+            this.from = from;
+            this.to = to;
+            this.cost = cost;
+            this.chunkCost = chunkCost;
+        }
+
+        @Override
+        protected void compute() {
+            if(cost <= chunkCost || to - from < 2) {
+                calculateTreeLogPs(from, to);
+                return;
+            }
+
+            int mid = from;
+            int firstHalfCost = 0;
+            while(mid < to - 1 && firstHalfCost + treeCosts[dirtyTrees[mid]] <= cost / 2) {
+                firstHalfCost += treeCosts[dirtyTrees[mid]];
+                mid++;
+            }
+            if(mid == from) {
+                firstHalfCost = treeCosts[dirtyTrees[from]];
+                mid++;
+            }
+
+            invokeAll(new TreeChunk(from, mid, firstHalfCost, chunkCost),
+                    new TreeChunk(mid, to, cost - firstHalfCost, chunkCost));
+        }
+    }
+
+    @Override
+    public Parametrization getParametrization() {
+        return parametrization;
+    }
+
+    /**
+     * The trees are evaluated one after the other on the calling thread.
+     */
+    @Override
+    public double calculateLogPGradient(ParametrizationGradient gradient) {
+        parametrization.invalidateCaches();
+        double forestLogP = 0.0;
+        for (LineageTreeProb treeProb : treeProbs) {
+            forestLogP += treeProb.addLogPGradient(gradient);
+        }
+        parametrization.invalidateCaches();
+        return forestLogP;
+    }
+
+    public int getTreeCount() {
+        return treeProbs.size();
+    }
+
+    public double getTreeLogP(int treeIdx) {
+        return treeProbs.get(treeIdx).getCurrentLogP();
+    }
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+        throw new RuntimeException("Not implemented.");
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        // the trees, which the forest depends on, have been checked for this step.
+        if(cellTypeDimensionMap != null)
+            cellTypeDimensionMap.reset();
+
+        for (LineageTreeProb treeProb : treeProbs) {
+            if(treeProb.isDirtyCalculation())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void store() {
+        if(cellTypeDimensionMap != null)
+            cellTypeDimensionMap.reset();
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if(cellTypeDimensionMap != null)
+            cellTypeDimensionMap.reset();
+        super.restore();
+    }
+
+    /**
+     * Loggable interface implementation follows.
+     */
+
+    @Override
+    public void init(PrintStream out) {
+        super.init(out);
+        if(logTreeLogPsInput.get()) {
+            for (int treeIdx = 0; treeIdx < treeProbs.size(); treeIdx++) {
+                String treeID = treeProbs.get(treeIdx).getID();
+                out.print(getID() + "." + (treeID != null ? treeID : treeIdx) + "\t");
+            }
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        super.log(sample, out);
+        if(logTreeLogPsInput.get()) {
+            for (LineageTreeProb treeProb : treeProbs) {
+                out.print(treeProb.getCurrentLogP() + "\t");
+            }
+        }
+    }
+}
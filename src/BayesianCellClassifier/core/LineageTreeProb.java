@@ -2,23 +2,27 @@ package BayesianCellClassifier.core;
 
 import beast.core.*;
 import beast.core.parameter.IntegerParameter;
+import beast.core.util.Log;
 import beast.core.parameter.RealParameter;
 import beast.evolution.tree.Node;
 import BayesianCellClassifier.lineagetree.Cell;
 import BayesianCellClassifier.lineagetree.CellTree;
 import BayesianCellClassifier.lineagetree.LineageTree;
+import BayesianCellClassifier.lineagetree.MeasurementStore;
 import BayesianCellClassifier.parametrization.DistributionForMeasurement;
 import BayesianCellClassifier.parametrization.ExperimentalMeasurements;
 import BayesianCellClassifier.parametrization.Parametrization;
+import BayesianCellClassifier.parametrization.ParametrizationGradient;
+import BayesianCellClassifier.parametrization.PreparedMeasurements;
 import org.apache.commons.math3.analysis.integration.IterativeLegendreGaussIntegrator;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
 
-public class LineageTreeProb extends Distribution {
+public class LineageTreeProb extends Distribution implements DifferentiableLikelihood {
 
     public Input<CellTree> lineageTreeInput = new Input<>("tree",
             "Lineage tree.",
@@ -55,12 +59,111 @@ public class LineageTreeProb extends Distribution {
             false);
 
 
-    Map<Integer, Double[]> storedPruningProb;
-
     boolean sumOverDaughterCellTypes;
 
     int numberOfCellTypes;
 
+    FlattenedCellTree flattenedTree;
+
+    // index in cellTypeInput of the type of each cell, -1 if the type of the cell is not fixed. Indexed by node number.
+    int[] cellTypeSlots;
+
+    // reverse index: the cellType dimensions holding the type of a cell of this tree, and the node numbers of these cells.
+    int[] ownedCellTypeSlots;
+    int[] nodesOfOwnedCellTypeSlots;
+
+    // set by LineageForestProb when the trees of a forest share cellType: map from the dimensions of cellType
+    // to the trees owning them, and index of this tree in the forest. null otherwise.
+    CellTypeDimensionMap cellTypeDimensionMap;
+    int treeIdxInForest;
+
+    // inputs other than cellType whose changes require recalculation, listed once at initialization.
+    StateNode[] stateNodeDependencies;
+    CalculationNode[] calculationNodeDependencies;
+
+    // Partial likelihoods of the pruning algorithm, kept in two buffers so that restore() only has to swap indices.
+    // partials[currentPartialsIndex[nodeNr]][nodeNr * numberOfCellTypes + i] is the probability of the data
+    // in the subtree below cell nodeNr, given that this cell is of type i.
+    double[][] partials;
+    int[] currentPartialsIndex;
+    int[] storedPartialsIndex;
+
+    // Partials are rescaled by a power of two whenever their maximum leaves [SCALING_LOWER_BOUND, SCALING_UPPER_BOUND],
+    // so that they neither underflow nor overflow in deep trees.
+    // scalingExponents[currentPartialsIndex[nodeNr]][nodeNr] is the total exponent removed in the subtree below cell nodeNr:
+    // the unscaled partials are the stored partials times 2^scalingExponent.
+    int[][] scalingExponents;
+
+    static final double SCALING_LOWER_BOUND = 1e-40;
+    static final double SCALING_UPPER_BOUND = 1e40;
+    static final double LOG_2 = Math.log(2);
+
+    // fixed type of each cell, -1 if not fixed. Indexed by node number.
+    // Only the cells whose dimension of cellTypeInput is dirty are updated, in requiresRecalculation.
+    int[] fixedCellTypes;
+    int[] storedFixedCellTypes;
+
+    // emission probabilities (getCellProbability) of each cell and type, in two buffers swapped on restore.
+    // emissions[currentEmissionsIndex][nodeNr * numberOfCellTypes + i] is the probability of the measurements
+    // and fate of cell nodeNr given that it is of type i.
+    double[][] emissions;
+    int currentEmissionsIndex;
+    int storedEmissionsIndex;
+    // all emission probabilities need to be recalculated.
+    boolean updateEmissions;
+
+    // the emission probabilities are the products of one column of probabilities per distribution of measurements
+    // (DistributionForMeasurement.getProbabilities), and of a column of fate or loss probabilities,
+    // laid out as emissions. Each column is cached in two buffers swapped on restore, so that only the columns
+    // whose parameters changed are recalculated before the products are rebuilt.
+    double[][][] distributionEmissions;
+    int[] currentDistributionEmissionsIndex;
+    int[] storedDistributionEmissionsIndex;
+    boolean[] distributionEmissionsAreDirty;
+    double[][] fateEmissions;
+    int currentFateEmissionsIndex;
+    int storedFateEmissionsIndex;
+    boolean fateEmissionsAreDirty;
+
+    // measurements of each distribution of the parametrization, indexed by node number (see MeasurementStore).
+    // null if the tree has no measurement store, then the measurements are read from the cells.
+    double[][] measurementColumns;
+    // measurements of each distribution prepared for the batched calculation of the emission probabilities.
+    PreparedMeasurements[] preparedMeasurements;
+
+    // symmetrised products of the partials of two daughters, one per unordered pair of types.
+    double[] pairProducts;
+
+    // cells whose partials need to be recalculated.
+    boolean[] nodeIsDirty;
+    boolean updateAllNodes;
+
+    public Input<String> pruningKernelInput = new Input<>("pruningKernel",
+            "Implementation of the inner loops of the pruning algorithm. One of: " +
+                    "'auto', 'scalar', 'vector'. 'vector' uses the JDK Vector API, which requires Java 16 or later " +
+                    "and starting the JVM with --add-modules jdk.incubator.vector, " +
+                    "and falls back to 'scalar' otherwise. " +
+                    "'auto' uses loops unrolled for the number of cell types when there are 2, 3 or 4 of them, " +
+                    "and 'vector' when available and there are at least " + VECTOR_KERNEL_MIN_CELL_TYPES + " cell types. " +
+                    "Default: auto",
+            "auto",
+            new String[]{"auto", "scalar", "vector"});
+
+    static final int VECTOR_KERNEL_MIN_CELL_TYPES = 8;
+
+    PruningKernel pruningKernel;
+
+    // scratch arrays of updateOutsidePartials, allocated on first use.
+    // outsidePartials[nodeNr * numberOfCellTypes + i] is the derivative of the likelihood with respect to the
+    // partial of cell nodeNr for type i, relative to the likelihood and to the scaling of the partials.
+    double[] outsidePartials;
+    // daughterPairWeights[j * numberOfCellTypes + k]: derivative with respect to the product of the partials
+    // of the first daughter for type j and of the second daughter for type k.
+    double[] daughterPairWeights;
+    double[] distributionGradient;
+    // buffer returned by calculateMarginalTypeProbabilities, allocated on first use.
+    double[] marginalTypeProbabilities;
+
     // TrapezoidIntegrator numericalIntegrator = new TrapezoidIntegrator(1e-6, 1e-6, 1, 60);
     public IterativeLegendreGaussIntegrator numericalIntegrator = new IterativeLegendreGaussIntegrator(2, 1e-6, 1e-6);
 
@@ -72,11 +175,161 @@ public class LineageTreeProb extends Distribution {
 
         //TODO add check that cellTypeInput contains only values between 0 and numberOfCellTypes -1
 
-        //TODO implement check that treeIdxInput is long enough to get value
-
         sumOverDaughterCellTypes = rootTypeOnlyInput.get().booleanValue();
 
-        storedPruningProb  =new HashMap<>();
+        if(sumOverDaughterCellTypes && treeIdxInput.get() >= cellTypeInput.get().getDimension())
+            throw new IllegalArgumentException("treeIdx is out of the bounds of the cellType parameter.");
+
+        flattenedTree = new FlattenedCellTree(lineageTreeInput.get());
+
+        int nodeCount = flattenedTree.getNodeCount();
+        cellTypeSlots = new int[nodeCount];
+        int numberOfOwnedSlots = 0;
+        for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+            cellTypeSlots[nodeNr] = getCellTypeSlot(flattenedTree.getTrackNumber(nodeNr));
+            if(cellTypeSlots[nodeNr] != -1)
+                numberOfOwnedSlots++;
+        }
+
+        ownedCellTypeSlots = new int[numberOfOwnedSlots];
+        nodesOfOwnedCellTypeSlots = new int[numberOfOwnedSlots];
+        int slotIdx = 0;
+        for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+            if(cellTypeSlots[nodeNr] != -1) {
+                ownedCellTypeSlots[slotIdx] = cellTypeSlots[nodeNr];
+                nodesOfOwnedCellTypeSlots[slotIdx] = nodeNr;
+                slotIdx++;
+            }
+        }
+
+        List<StateNode> stateNodes = new ArrayList<>();
+        List<CalculationNode> calculationNodes = new ArrayList<>();
+        for (BEASTInterface beastObject : listActiveBEASTObjects()) {
+            if (beastObject == cellTypeInput.get()) continue;
+
+            if (beastObject instanceof StateNode)
+                stateNodes.add((StateNode) beastObject);
+            else if (beastObject instanceof CalculationNode)
+                calculationNodes.add((CalculationNode) beastObject);
+        }
+        stateNodeDependencies = stateNodes.toArray(new StateNode[0]);
+        calculationNodeDependencies = calculationNodes.toArray(new CalculationNode[0]);
+
+        partials = new double[2][nodeCount * numberOfCellTypes];
+        scalingExponents = new int[2][nodeCount];
+        pairProducts = new double[numberOfCellTypes * (numberOfCellTypes + 1) / 2];
+        pruningKernel = selectPruningKernel();
+        emissions = new double[2][nodeCount * numberOfCellTypes];
+        updateEmissions = true;
+        measurementColumns = getMeasurementColumns(nodeCount);
+        preparedMeasurements = prepareMeasurements();
+        int numberOfDistributions = preparedMeasurements.length;
+        distributionEmissions = new double[numberOfDistributions][2][nodeCount * numberOfCellTypes];
+        currentDistributionEmissionsIndex = new int[numberOfDistributions];
+        storedDistributionEmissionsIndex = new int[numberOfDistributions];
+        distributionEmissionsAreDirty = new boolean[numberOfDistributions];
+        fateEmissions = new double[2][nodeCount * numberOfCellTypes];
+        currentPartialsIndex = new int[nodeCount];
+        storedPartialsIndex = new int[nodeCount];
+        fixedCellTypes = new int[nodeCount];
+        storedFixedCellTypes = new int[nodeCount];
+        nodeIsDirty = new boolean[nodeCount];
+        for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+            fixedCellTypes[nodeNr] = readFixedCellTypeOfNode(nodeNr);
+        }
+        updateAllNodes = true;
+    }
+
+    /**
+     * Resolve the measurement tags of the distributions against the columns of the measurement store of the tree.
+     * Distributions whose tag was not measured on the tree get a column of NaN.
+     */
+    double[][] getMeasurementColumns(int nodeCount) {
+
+        List<DistributionForMeasurement> distributions = parametrizationInput.get().getDistributions();
+        double[][] columns = new double[distributions.size()][];
+        MeasurementStore measurementStore = lineageTreeInput.get().getMeasurementStore();
+        if(measurementStore == null)
+            return columns;
+
+        int[] columnIndices = measurementStore.getColumnIndices(distributions);
+        double[] missingColumn = null;
+        for (int distrIdx = 0; distrIdx < columns.length; distrIdx++) {
+            if(columnIndices[distrIdx] != -1) {
+                columns[distrIdx] = measurementStore.getColumn(columnIndices[distrIdx]);
+            }
+            else {
+                if(missingColumn == null) {
+                    missingColumn = new double[nodeCount];
+                    Arrays.fill(missingColumn, Double.NaN);
+                }
+                columns[distrIdx] = missingColumn;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Prepare the measurements of each distribution for DistributionForMeasurement.getProbabilities.
+     * The measurements of lost cells are left out, as their emission probability is the loss probability.
+     */
+    PreparedMeasurements[] prepareMeasurements() {
+
+        List<DistributionForMeasurement> distributions = parametrizationInput.get().getDistributions();
+        int nodeCount = flattenedTree.nodeCount;
+        boolean[] isIncompleteObservation = new boolean[nodeCount];
+        Cell.Fate[] cellFates = new Cell.Fate[nodeCount];
+        boolean[] isRootCell = new boolean[nodeCount];
+        for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+            Cell cell = flattenedTree.cells[nodeNr];
+            isIncompleteObservation[nodeNr] = cell.getIsIncompletelyMeasured();
+            cellFates[nodeNr] = cell.getFate();
+            isRootCell[nodeNr] = cell.isRootCell();
+        }
+
+        PreparedMeasurements[] prepared = new PreparedMeasurements[distributions.size()];
+        double[] values = new double[nodeCount];
+        for (int distrIdx = 0; distrIdx < prepared.length; distrIdx++) {
+            DistributionForMeasurement d = distributions.get(distrIdx);
+            for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+                Cell cell = flattenedTree.cells[nodeNr];
+                values[nodeNr] = cell.isLostCell() ? Double.NaN : getMeasuredValue(cell, distrIdx, d);
+            }
+            prepared[distrIdx] = d.prepareMeasurements(values, isIncompleteObservation, cellFates, isRootCell);
+        }
+        return prepared;
+    }
+
+    PruningKernel selectPruningKernel() {
+        switch (pruningKernelInput.get()) {
+            case "scalar":
+                return new ScalarPruningKernel();
+            case "vector": {
+                PruningKernel vectorKernel = PruningKernel.getVectorKernel();
+                if(vectorKernel == null) {
+                    Log.warning.println("Vector API pruning kernel is not available, using the scalar kernel instead.");
+                    return new ScalarPruningKernel();
+                }
+                return vectorKernel;
+            }
+            case "auto": {
+                PruningKernel unrolledKernel = PruningKernel.getUnrolledKernel(numberOfCellTypes);
+                if(unrolledKernel != null)
+                    return unrolledKernel;
+                PruningKernel vectorKernel = numberOfCellTypes >= VECTOR_KERNEL_MIN_CELL_TYPES ? PruningKernel.getVectorKernel() : null;
+                return vectorKernel != null ? vectorKernel : new ScalarPruningKernel();
+            }
+            default:
+                throw new IllegalArgumentException("Unknown pruning kernel. Input must be one of 'auto', 'scalar', 'vector'.");
+        }
+    }
+
+    public PruningKernel getPruningKernel() {
+        return pruningKernel;
+    }
+
+    public FlattenedCellTree getFlattenedTree() {
+        return flattenedTree;
     }
 
     @Override
@@ -85,25 +338,28 @@ public class LineageTreeProb extends Distribution {
 
         try {
             double p = 0;
-            double[] resultPruning = calculatePruningProb((Cell) lineageTreeInput.get().getRoot(), false);
+            updatePartials();
+            int rootNr = flattenedTree.getRootNr();
+            double[] rootPartials = partials[currentPartialsIndex[rootNr]];
+            int rootOffset = rootNr * numberOfCellTypes;
 
             if(isOfKnownTypeInput.get()) {
                 boolean flag = false;
                 for (int i = 0; i < numberOfCellTypes; i++) {
-                    if(resultPruning[i] > 0 && flag)
+                    if(rootPartials[rootOffset + i] > 0 && flag)
                         throw new IllegalStateException("Cells in tree are of known type but the root can take more than one type with non-zero probability.");
-                    else if(resultPruning[i] > 0) {
+                    else if(rootPartials[rootOffset + i] > 0) {
                         flag = true;
-                        p += resultPruning[i];
+                        p += rootPartials[rootOffset + i];
                     }
                 }
             }
             else {
                 for (int i = 0; i < numberOfCellTypes; i++)
-                    p += (resultPruning[i] * parametrizationInput.get().getTypeFreq(i));
+                    p += (rootPartials[rootOffset + i] * parametrizationInput.get().getTypeFreq(i));
             }
 
-            logP = Math.log(p);
+            logP = Math.log(p) + scalingExponents[currentPartialsIndex[rootNr]][rootNr] * LOG_2;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -111,128 +367,193 @@ public class LineageTreeProb extends Distribution {
         return logP;
     }
 
+    /**
+     * Pruning algorithm run as a single loop over the cells of the tree in post-order.
+     * Only the partials of the cells marked as dirty (and of their ancestors) are recalculated,
+     * unless updateAllNodes is set.
+     * Runs without recursion or allocation.
+     */
+    public void updatePartials() {
 
-    public double[] calculatePruningProb(Cell node, boolean storeIntermediateResults) { // here nodeType refers to the type of the node at the beginning of the branch
-
-        double[] pruningProb = new double[numberOfCellTypes];
+        Parametrization parametrization = parametrizationInput.get();
+        boolean isOfKnownType = isOfKnownTypeInput.get();
 
-        int nodeType = getFixedCellType(node.getTrackNumber());
-        int parentGeneration = Cell.getCellGeneration(node.getTrackNumber());
+        if(emissionsAreDirty()) {
+            // write to the buffer not holding the stored emissions.
+            if(currentEmissionsIndex == storedEmissionsIndex)
+                currentEmissionsIndex = 1 - currentEmissionsIndex;
+            calculateEmissions(emissions[currentEmissionsIndex]);
+        }
+        double[] cellEmissions = emissions[currentEmissionsIndex];
 
-        if(node.isLeaf()) {
-            if(nodeType == -1) { // leaf type is not fixed
-                for (int i = 0; i < numberOfCellTypes; i++) {
-                    pruningProb[i] = getCellProbability(node, i);
-                }
-            }
-            else { // leaf type is fixed to nodeType
-                pruningProb[nodeType] = getCellProbability(node, nodeType);
+        if(updateAllNodes) {
+            for (int nodeNr = 0; nodeNr < fixedCellTypes.length; nodeNr++) {
+                fixedCellTypes[nodeNr] = readFixedCellTypeOfNode(nodeNr);
+                nodeIsDirty[nodeNr] = true;
             }
+            updateAllNodes = false;
+        }
 
-            if(storeIntermediateResults) {
-                Double[] pruningProbToStore = new Double[numberOfCellTypes];
-                for (int i = 0; i < pruningProbToStore.length; i++) {
-                    pruningProbToStore[i] = pruningProb[i];
-                }
-                storedPruningProb.put(node.getTrackNumber(), pruningProbToStore);
-            }
+        for (int nodeNr : flattenedTree.postOrder) {
 
-            return pruningProb;
-        }
+            if(!nodeIsDirty[nodeNr])
+                continue;
+            nodeIsDirty[nodeNr] = false;
 
-        Cell child1 = (Cell) node.getChild(0);
-        Cell child2 = (Cell) node.getChild(1);
+            // write to the buffer not holding the stored partials of this cell.
+            if(currentPartialsIndex[nodeNr] == storedPartialsIndex[nodeNr])
+                currentPartialsIndex[nodeNr] = 1 - currentPartialsIndex[nodeNr];
 
-        int child1Type = getFixedCellType(child1.getTrackNumber());
-        int child2Type = getFixedCellType(child2.getTrackNumber());
+            double[] nodePartials = partials[currentPartialsIndex[nodeNr]];
+            int offset = nodeNr * numberOfCellTypes;
+            int nodeType = fixedCellTypes[nodeNr];
 
-        double[] pruningProbFirstChild;
-        double[] pruningProbSecondChild;
+            for (int i = 0; i < numberOfCellTypes; i++) {
+                nodePartials[offset + i] = 0;
+            }
 
-        pruningProbFirstChild = calculatePruningProb(child1, storeIntermediateResults);
-        pruningProbSecondChild = calculatePruningProb(child2, storeIntermediateResults);
+            // range of types the cell can take
+            int firstType = nodeType == -1 ? 0 : nodeType;
+            int lastType = nodeType == -1 ? numberOfCellTypes - 1 : nodeType;
 
-        if(nodeType == -1) { // non-fixed type for parent cell
-            if(child1Type == -1 && child2Type == -1) { // non-fixed type for either children
-                for (int i = 0; i < numberOfCellTypes; i++) {
-                    for (int j = 0; j < numberOfCellTypes; j++) {
-                        for (int k = 0; k < numberOfCellTypes; k++) {
-                            pruningProb[i] += parametrizationInput.get().getTransitionProbability(i, j, k, parentGeneration, isOfKnownTypeInput.get()) *
-                                    pruningProbFirstChild[j] * pruningProbSecondChild[k];
-                        }
-                    }
+            if(flattenedTree.isLeaf[nodeNr]) {
+                for (int i = firstType; i <= lastType; i++) {
+                    nodePartials[offset + i] = cellEmissions[offset + i];
                 }
+                scalingExponents[currentPartialsIndex[nodeNr]][nodeNr] = rescalePartials(nodePartials, offset);
+                continue;
             }
-            else if(child1Type > -1 && child2Type == -1) { // fixed type for just one of the two children
-                for (int i = 0; i < numberOfCellTypes; i++) {
-                    for (int k = 0; k < numberOfCellTypes; k++) {
-                        pruningProb[i] += parametrizationInput.get().getTransitionProbability(i, child1Type, k, parentGeneration, isOfKnownTypeInput.get()) *
-                                pruningProbFirstChild[child1Type] * pruningProbSecondChild[k];
-                    }
-                }
+
+            int child1Nr = flattenedTree.child1[nodeNr];
+            int child2Nr = flattenedTree.child2[nodeNr];
+            double[] child1Partials = partials[currentPartialsIndex[child1Nr]];
+            double[] child2Partials = partials[currentPartialsIndex[child2Nr]];
+            int child1Offset = child1Nr * numberOfCellTypes;
+            int child2Offset = child2Nr * numberOfCellTypes;
+            int child1Type = fixedCellTypes[child1Nr];
+            int child2Type = fixedCellTypes[child2Nr];
+
+            if(child1Type == -1 && child2Type == -1) {
+                // daughters are unordered, so the sum over all pairs of daughter types (j,k) of T[i][j][k]*a[j]*b[k]
+                // is the product of the packed transition matrix with the vector of symmetrised products a[j]*b[k] + a[k]*b[j].
+                double[][] packedTransitionProbs = parametrization.getPackedTransitionProbabilities(flattenedTree.generation[nodeNr], isOfKnownType);
+                pruningKernel.pruneUnfixedDaughters(packedTransitionProbs, child1Partials, child1Offset, child2Partials, child2Offset,
+                        cellEmissions, nodePartials, offset, firstType, lastType, numberOfCellTypes, pairProducts);
             }
-            else if(child2Type > -1 && child1Type == -1) { // fixed type for just the other children
-                for (int i = 0; i < numberOfCellTypes; i++) {
-                    for (int j = 0; j < numberOfCellTypes; j++) {
-                        pruningProb[i] += parametrizationInput.get().getTransitionProbability(i, j, child2Type, parentGeneration, isOfKnownTypeInput.get()) *
-                                pruningProbFirstChild[j] * pruningProbSecondChild[child2Type];
+            else {
+                // at least one daughter type is fixed: at most K terms per mother type.
+                double[][][] transitionProbs = parametrization.getTransitionProbabilities(flattenedTree.generation[nodeNr], isOfKnownType);
+
+                int firstTypeChild1 = child1Type == -1 ? 0 : child1Type;
+                int lastTypeChild1 = child1Type == -1 ? numberOfCellTypes - 1 : child1Type;
+                int firstTypeChild2 = child2Type == -1 ? 0 : child2Type;
+                int lastTypeChild2 = child2Type == -1 ? numberOfCellTypes - 1 : child2Type;
+
+                for (int i = firstType; i <= lastType; i++) {
+                    double[][] motherTransitionProbs = transitionProbs[i];
+                    double p = 0;
+                    for (int j = firstTypeChild1; j <= lastTypeChild1; j++) {
+                        double[] child1TransitionProbs = motherTransitionProbs[j];
+                        for (int k = firstTypeChild2; k <= lastTypeChild2; k++) {
+                            p += child1TransitionProbs[k] *
+                                    child1Partials[child1Offset + j] * child2Partials[child2Offset + k];
+                        }
                     }
+                    nodePartials[offset + i] = p * cellEmissions[offset + i];
                 }
             }
-            else if(child2Type > -1 && child1Type > -1) { // fixed type for both children
-                for (int i = 0; i < numberOfCellTypes; i++) {
-                        pruningProb[i] += parametrizationInput.get().getTransitionProbability(i, child1Type, child2Type, parentGeneration, isOfKnownTypeInput.get()) *
-                                pruningProbFirstChild[child1Type] * pruningProbSecondChild[child2Type];
-                }
-            }
-            else {
-                throw new IllegalStateException("Invalid types for parentCell, child1 or child2.");
-            }
+            scalingExponents[currentPartialsIndex[nodeNr]][nodeNr] = rescalePartials(nodePartials, offset) +
+                    scalingExponents[currentPartialsIndex[child1Nr]][child1Nr] +
+                    scalingExponents[currentPartialsIndex[child2Nr]][child2Nr];
+        }
+    }
 
-            for (int i = 0; i < numberOfCellTypes; i++) {
-                pruningProb[i] *= getCellProbability(node, i);
-            }
+    /**
+     * Divide the partials of a cell by a power of two if their maximum is outside of
+     * [SCALING_LOWER_BOUND, SCALING_UPPER_BOUND].
+     * Scaling by a power of two is exact, so partials that stay in range are left untouched
+     * and small trees give the same results as without rescaling.
+     * @return the exponent of the power of two the partials were divided by.
+     */
+    int rescalePartials(double[] nodePartials, int offset) {
+
+        double maxPartial = 0;
+        for (int i = 0; i < numberOfCellTypes; i++) {
+            if(nodePartials[offset + i] > maxPartial)
+                maxPartial = nodePartials[offset + i];
         }
-        else { // fixed type for parent cell
-            if(child1Type == -1 && child2Type == -1) { // non-fixed type for either children
-                for (int j = 0; j < numberOfCellTypes; j++) {
-                    for (int k = 0; k < numberOfCellTypes; k++) {
-                        pruningProb[nodeType] += parametrizationInput.get().getTransitionProbability(nodeType, j, k, parentGeneration, isOfKnownTypeInput.get()) *
-                                pruningProbFirstChild[j] * pruningProbSecondChild[k];
-                    }
-                }
-            }
-            else if(child1Type > -1 && child2Type == -1) { // fixed type for just one of the two children
-                for (int k = 0; k < numberOfCellTypes; k++) {
-                    pruningProb[nodeType] += parametrizationInput.get().getTransitionProbability(nodeType, child1Type, k, parentGeneration, isOfKnownTypeInput.get()) *
-                            pruningProbFirstChild[child1Type] * pruningProbSecondChild[k];
-                }
-            }
-            else if(child2Type > -1 && child1Type == -1) { // fixed type for just the other children
-                for (int j = 0; j < numberOfCellTypes; j++) {
-                    pruningProb[nodeType] += parametrizationInput.get().getTransitionProbability(nodeType, j, child2Type, parentGeneration, isOfKnownTypeInput.get()) *
-                            pruningProbFirstChild[j] * pruningProbSecondChild[child2Type];
-                }
-            }
-            else if(child2Type > -1 && child1Type > -1) { // fixed type for both children
-                    pruningProb[nodeType] += parametrizationInput.get().getTransitionProbability(nodeType, child1Type, child2Type, parentGeneration, isOfKnownTypeInput.get()) *
-                            pruningProbFirstChild[child1Type] * pruningProbSecondChild[child2Type];
-            }
-            else {
-                throw new IllegalStateException("Invalid types for child1 or child2.");
+
+        if(maxPartial == 0 || Double.isInfinite(maxPartial)
+                || (maxPartial >= SCALING_LOWER_BOUND && maxPartial <= SCALING_UPPER_BOUND))
+            return 0;
+
+        int exponent = Math.getExponent(maxPartial);
+        double scale = Math.scalb(1.0, -exponent);
+        for (int i = 0; i < numberOfCellTypes; i++) {
+            nodePartials[offset + i] *= scale;
+        }
+        return exponent;
+    }
+
+    boolean emissionsAreDirty() {
+        if(updateEmissions || fateEmissionsAreDirty)
+            return true;
+        for (boolean isDirty : distributionEmissionsAreDirty) {
+            if(isDirty)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Emission probabilities of all cells for all types, as given by getCellProbability:
+     * cellEmissions[nodeNr * numberOfCellTypes + i] for cell nodeNr and type i.
+     * The columns of probabilities of the distributions whose parameters changed are recalculated,
+     * over all cells and types at once, and the emission probabilities are rebuilt as the products of all columns.
+     */
+    protected void calculateEmissions(double[] cellEmissions) {
+
+        Parametrization parametrization = parametrizationInput.get();
+        List<DistributionForMeasurement> distributions = parametrization.getDistributions();
+
+        for (int distrIdx = 0; distrIdx < distributions.size(); distrIdx++) {
+            if(updateEmissions || distributionEmissionsAreDirty[distrIdx]) {
+                if(currentDistributionEmissionsIndex[distrIdx] == storedDistributionEmissionsIndex[distrIdx])
+                    currentDistributionEmissionsIndex[distrIdx] = 1 - currentDistributionEmissionsIndex[distrIdx];
+                distributions.get(distrIdx).getProbabilities(preparedMeasurements[distrIdx],
+                        distributionEmissions[distrIdx][currentDistributionEmissionsIndex[distrIdx]]);
+                distributionEmissionsAreDirty[distrIdx] = false;
             }
-            pruningProb[nodeType] *= getCellProbability(node, nodeType);
         }
 
-        if(storeIntermediateResults) {
-            Double[] pruningProbToStore = new Double[numberOfCellTypes];
-            for (int i = 0; i < pruningProbToStore.length; i++) {
-                pruningProbToStore[i] = pruningProb[i];
+        if(updateEmissions || fateEmissionsAreDirty) {
+            if(currentFateEmissionsIndex == storedFateEmissionsIndex)
+                currentFateEmissionsIndex = 1 - currentFateEmissionsIndex;
+            double[] fateProbabilities = fateEmissions[currentFateEmissionsIndex];
+            for (int nodeNr = 0; nodeNr < flattenedTree.nodeCount; nodeNr++) {
+                Cell cell = flattenedTree.cells[nodeNr];
+                int offset = nodeNr * numberOfCellTypes;
+                // measurements of lost cells are left out (see prepareMeasurements), their emission probability is the loss probability.
+                if(cell.isLostCell()) {
+                    Arrays.fill(fateProbabilities, offset, offset + numberOfCellTypes, parametrization.getLossProbability());
+                    continue;
+                }
+                for (int i = 0; i < numberOfCellTypes; i++)
+                    fateProbabilities[offset + i] = parametrization.getFateProbability(cell.getFate(), i);
             }
-            storedPruningProb.put(node.getTrackNumber(), pruningProbToStore);
+            fateEmissionsAreDirty = false;
         }
+        updateEmissions = false;
 
-        return pruningProb;
+        Arrays.fill(cellEmissions, 1.0);
+        for (int distrIdx = 0; distrIdx < distributions.size(); distrIdx++) {
+            double[] distributionProbabilities = distributionEmissions[distrIdx][currentDistributionEmissionsIndex[distrIdx]];
+            for (int idx = 0; idx < cellEmissions.length; idx++)
+                cellEmissions[idx] *= distributionProbabilities[idx];
+        }
+        double[] fateProbabilities = fateEmissions[currentFateEmissionsIndex];
+        for (int idx = 0; idx < cellEmissions.length; idx++)
+            cellEmissions[idx] *= fateProbabilities[idx];
     }
 
     public double getCellProbability(Cell cell, int cellType) {
@@ -241,9 +562,11 @@ public class LineageTreeProb extends Distribution {
 
         double p = 1.0;
 
-        for (DistributionForMeasurement d : parametrizationInput.get().getDistributions()) {
+        List<DistributionForMeasurement> distributions = parametrizationInput.get().getDistributions();
+        for (int distrIdx = 0; distrIdx < distributions.size(); distrIdx++) {
+            DistributionForMeasurement d = distributions.get(distrIdx);
 
-            double measuredValue = cell.getValueMeasured(d.getMeasurementTag());
+            double measuredValue = getMeasuredValue(cell, distrIdx, d);
 
             p *= d.getProbability(measuredValue, cellType, cell.getIsIncompletelyMeasured(), cell.getFate(), cell.isRootCell());
         }
@@ -254,36 +577,331 @@ public class LineageTreeProb extends Distribution {
     }
 
     /**
-     * Return the fixed cell type at beginning of tree edge
-     * returns -1 if type of cell is not fixed
-     * !!! The type of the root must always be fixed !!!! (with the current code, but not necessary to keep it that way)
-     * @param trackNumber
-     * @return
+     * Measurement of distribution d, the distrIdx-th distribution of the parametrization, made on cell.
+     * Read from the measurement columns if the cell belongs to the tree, from the cell itself otherwise.
      */
-    public int getFixedCellType(int trackNumber){
-        try {
-            if(!sumOverDaughterCellTypes) {
-                if(treeIdxInput.get() + trackNumber - 1 >= cellTypeInput.get().getDimension())
-                    return -1;
-                else
-                    return cellTypeInput.get().getValue(treeIdxInput.get() + trackNumber - 1); // track numbers start at 1, so we substract 1
+    double getMeasuredValue(Cell cell, int distrIdx, DistributionForMeasurement d) {
+        double[] column = measurementColumns[distrIdx];
+        int nodeNr = cell.getNr();
+        if(column != null && nodeNr >= 0 && nodeNr < column.length && flattenedTree.cells[nodeNr] == cell)
+            return column[nodeNr];
+        return cell.getValueMeasured(d.getMeasurementTag());
+    }
+
+    /**
+     * Return the fixed cell type of the cell with the given node number, -1 if the type of the cell is not fixed.
+     * Reads the cached table of fixed types, which is kept up to date with cellTypeInput
+     * from one likelihood calculation to the next.
+     */
+    public int getFixedCellTypeOfNode(int nodeNr) {
+        return fixedCellTypes[nodeNr];
+    }
+
+    /**
+     * Read the fixed cell type of the cell with the given node number from cellTypeInput.
+     */
+    int readFixedCellTypeOfNode(int nodeNr) {
+        if(cellTypeSlots[nodeNr] == -1)
+            return -1;
+        return cellTypeInput.get().getValue(cellTypeSlots[nodeNr]);
+    }
+
+    /**
+     * Return the index in cellTypeInput of the type of the cell with the given track number,
+     * -1 if the type of the cell is not fixed.
+     */
+    int getCellTypeSlot(int trackNumber) {
+        if(!sumOverDaughterCellTypes) {
+            if(treeIdxInput.get() + trackNumber - 1 >= cellTypeInput.get().getDimension())
+                return -1;
+            else
+                return treeIdxInput.get() + trackNumber - 1;
+        }
+        else if(trackNumber == 1)
+            return treeIdxInput.get();
+        else
+            return -1;
+    }
+
+    /**
+     * Buffer holding the partials of cell nodeNr, at indices getPartialsOffset(nodeNr) to
+     * getPartialsOffset(nodeNr) + numberOfCellTypes - 1. The buffer is not copied and must not be modified.
+     * The partials of each cell may be rescaled by a factor common to all types (see rescalePartials),
+     * so they are only meaningful relative to each other.
+     * Call updatePartials first if the partials may not be up to date.
+     */
+    public double[] getPartials(int nodeNr) {
+        return partials[currentPartialsIndex[nodeNr]];
+    }
+
+    public int getPartialsOffset(int nodeNr) {
+        return nodeNr * numberOfCellTypes;
+    }
+
+    @Override
+    public Parametrization getParametrization() {
+        return parametrizationInput.get();
+    }
+
+    @Override
+    public double calculateLogPGradient(ParametrizationGradient gradient) {
+        Parametrization parametrization = parametrizationInput.get();
+        parametrization.invalidateCaches();
+        double treeLogP = addLogPGradient(gradient);
+        parametrization.invalidateCaches();
+        return treeLogP;
+    }
+
+    /**
+     * Calculate the log-likelihood from scratch and add its derivatives to gradient, leaving the cached state unchanged.
+     * The cached values of the parametrization must be up to date with its parameters.
+     * The derivatives are obtained with a pass from the root to the leaves (see updateOutsidePartials),
+     * which gives the derivatives with respect to the partials of all cells. These are then chained with the
+     * derivatives of the transition probabilities, and, through the posterior probability of each type for each cell,
+     * with the derivatives of the emission probabilities.
+     */
+    double addLogPGradient(ParametrizationGradient gradient) {
+
+        int nodeCount = flattenedTree.nodeCount;
+
+        // the partials are calculated in the buffers not holding the stored partials,
+        // which are then restored so that the cached state is unchanged.
+        boolean cachedUpdateAllNodes = updateAllNodes;
+        for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++)
+            cachedUpdateAllNodes |= nodeIsDirty[nodeNr];
+        boolean cachedUpdateEmissions = emissionsAreDirty();
+        store();
+
+        updateAllNodes = true;
+        updateEmissions = true;
+        double treeLogP = calculateLogP();
+
+        if(!Double.isInfinite(treeLogP) && !Double.isNaN(treeLogP))
+            updateOutsidePartials(gradient);
+
+        restore();
+        updateAllNodes = cachedUpdateAllNodes;
+        updateEmissions = cachedUpdateEmissions;
+
+        return treeLogP;
+    }
+
+    /**
+     * Marginal posterior probabilities of the types of all cells given the data and the current parameters,
+     * summed over the types of all other cells: element nodeNr * numberOfCellTypes + i of the returned array
+     * is the probability that the cell with node number nodeNr is of type i.
+     * Obtained with one pass from the root to the leaves reusing the partials of the likelihood calculation,
+     * in O(N K^3) for N cells and K types. All probabilities are NaN if the likelihood is zero.
+     * The returned buffer is not copied and is overwritten by the next call.
+     */
+    public double[] calculateMarginalTypeProbabilities() {
+
+        int nodeCount = flattenedTree.nodeCount;
+        if(marginalTypeProbabilities == null)
+            marginalTypeProbabilities = new double[nodeCount * numberOfCellTypes];
+
+        updatePartials();
+        if(!updateOutsidePartials(null)) {
+            Arrays.fill(marginalTypeProbabilities, Double.NaN);
+            return marginalTypeProbabilities;
+        }
+
+        for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+            double[] nodePartials = partials[currentPartialsIndex[nodeNr]];
+            int offset = nodeNr * numberOfCellTypes;
+            int nodeType = fixedCellTypes[nodeNr];
+            for (int i = 0; i < numberOfCellTypes; i++) {
+                marginalTypeProbabilities[offset + i] = nodeType == -1 || nodeType == i ?
+                        outsidePartials[offset + i] * nodePartials[offset + i] : 0;
             }
+        }
+
+        return marginalTypeProbabilities;
+    }
+
+    /**
+     * Pass from the root to the leaves filling outsidePartials from the current partials and emission probabilities,
+     * which must be up to date. The product of the outside partial and of the partial of a cell for a type is the
+     * posterior probability of the cell being of that type.
+     * If gradient is not null, the derivatives of the log-likelihood are added to it along the way (see addLogPGradient).
+     * @return false if the likelihood is zero, in which case outsidePartials are not calculated.
+     */
+    boolean updateOutsidePartials(ParametrizationGradient gradient) {
+
+        Parametrization parametrization = parametrizationInput.get();
+        boolean isOfKnownType = isOfKnownTypeInput.get();
+        boolean ignoreKinshipInfo = parametrization.ignoreKinshipInfoInput.get().getValue();
+        int nodeCount = flattenedTree.nodeCount;
 
-            else if(trackNumber == 1) // cell is root cell
-                return cellTypeInput.get().getValue(treeIdxInput.get());
+        if(outsidePartials == null) {
+            outsidePartials = new double[nodeCount * numberOfCellTypes];
+            daughterPairWeights = new double[numberOfCellTypes * numberOfCellTypes];
+            distributionGradient = new double[3];
+        }
 
-            else return -1;
+        double[] cellEmissions = emissions[currentEmissionsIndex];
+        double[] typeFrequenciesGradient = gradient == null ? null : gradient.getTypeFrequencies();
+        double[][] transitionProbsGradient = gradient == null ? null : gradient.getTransitionUponDivisionProbs();
+
+        int rootNr = flattenedTree.rootNr;
+        double[] rootPartials = partials[currentPartialsIndex[rootNr]];
+        int rootOffset = rootNr * numberOfCellTypes;
+        double rootSum = 0;
+        for (int i = 0; i < numberOfCellTypes; i++) {
+            if(isOfKnownType)
+                rootSum += Math.max(rootPartials[rootOffset + i], 0);
+            else
+                rootSum += rootPartials[rootOffset + i] * parametrization.getTypeFreq(i);
         }
-        catch (Exception e) {
-            throw new IllegalStateException("Attempting to get the type of a cell but failed.");
+        if(!(rootSum > 0) || Double.isInfinite(rootSum))
+            return false;
+
+        for (int i = 0; i < numberOfCellTypes; i++) {
+            if(isOfKnownType) {
+                outsidePartials[rootOffset + i] = rootPartials[rootOffset + i] > 0 ? 1 / rootSum : 0;
+            }
+            else {
+                outsidePartials[rootOffset + i] = parametrization.getTypeFreq(i) / rootSum;
+                if(gradient != null)
+                    typeFrequenciesGradient[i] += rootPartials[rootOffset + i] / rootSum;
+            }
         }
 
+        // mothers come before their daughters in reverse post-order.
+        for (int orderIdx = nodeCount - 1; orderIdx >= 0; orderIdx--) {
+            int nodeNr = flattenedTree.postOrder[orderIdx];
+            double[] nodePartials = partials[currentPartialsIndex[nodeNr]];
+            int offset = nodeNr * numberOfCellTypes;
+            int nodeType = fixedCellTypes[nodeNr];
+            int firstType = nodeType == -1 ? 0 : nodeType;
+            int lastType = nodeType == -1 ? numberOfCellTypes - 1 : nodeType;
+
+            // the derivative of the log-likelihood with respect to the log of an emission probability
+            // is the posterior probability of the cell being of that type.
+            if(gradient != null) {
+                for (int i = firstType; i <= lastType; i++) {
+                    double posteriorProb = outsidePartials[offset + i] * nodePartials[offset + i];
+                    if(posteriorProb != 0)
+                        addEmissionGradient(flattenedTree.cells[nodeNr], i, posteriorProb, gradient);
+                }
+            }
+
+            if(flattenedTree.isLeaf[nodeNr])
+                continue;
+
+            int child1Nr = flattenedTree.child1[nodeNr];
+            int child2Nr = flattenedTree.child2[nodeNr];
+            double[] child1Partials = partials[currentPartialsIndex[child1Nr]];
+            double[] child2Partials = partials[currentPartialsIndex[child2Nr]];
+            int child1Offset = child1Nr * numberOfCellTypes;
+            int child2Offset = child2Nr * numberOfCellTypes;
+
+            // scaling factor applied to the partials of this cell only, not to those of its daughters.
+            int nodeExponent = scalingExponents[currentPartialsIndex[nodeNr]][nodeNr]
+                    - scalingExponents[currentPartialsIndex[child1Nr]][child1Nr]
+                    - scalingExponents[currentPartialsIndex[child2Nr]][child2Nr];
+            double nodeScale = Math.scalb(1.0, -nodeExponent);
+
+            int generation = flattenedTree.generation[nodeNr];
+            double[][][] transitionProbs = parametrization.getTransitionProbabilities(generation, isOfKnownType);
+            int generationOffset = numberOfCellTypes * parametrization.getTransitionTensorIndex(generation);
+
+            Arrays.fill(daughterPairWeights, 0);
+            double totalMotherWeight = 0;
+            for (int i = firstType; i <= lastType; i++) {
+                double motherWeight = outsidePartials[offset + i] * cellEmissions[offset + i] * nodeScale;
+                if(motherWeight == 0)
+                    continue;
+                totalMotherWeight += motherWeight;
+
+                double[][] motherTransitionProbs = transitionProbs[i];
+                for (int j = 0; j < numberOfCellTypes; j++) {
+                    for (int k = 0; k < numberOfCellTypes; k++) {
+                        daughterPairWeights[j * numberOfCellTypes + k] += motherWeight * motherTransitionProbs[j][k];
+                    }
+                }
+
+                if(gradient != null && !ignoreKinshipInfo) {
+                    double[] transitionGradient = transitionProbsGradient[i + generationOffset];
+                    for (int j = 0; j < numberOfCellTypes; j++) {
+                        transitionGradient[parametrization.getPairIndex(j, j)] +=
+                                motherWeight * child1Partials[child1Offset + j] * child2Partials[child2Offset + j];
+                        for (int k = j + 1; k < numberOfCellTypes; k++) {
+                            // 1/2 factor of getTransitionProbability for daughters of different types.
+                            transitionGradient[parametrization.getPairIndex(j, k)] += 0.5 * motherWeight *
+                                    (child1Partials[child1Offset + j] * child2Partials[child2Offset + k] +
+                                            child1Partials[child1Offset + k] * child2Partials[child2Offset + j]);
+                        }
+                    }
+                }
+            }
+
+            if(gradient != null && ignoreKinshipInfo && !isOfKnownType && totalMotherWeight != 0) {
+                // transition probabilities are products of the type frequencies of the daughters.
+                for (int j = 0; j < numberOfCellTypes; j++) {
+                    for (int k = 0; k < numberOfCellTypes; k++) {
+                        double pairWeight = totalMotherWeight * child1Partials[child1Offset + j] * child2Partials[child2Offset + k];
+                        typeFrequenciesGradient[j] += pairWeight * parametrization.getTypeFreq(k);
+                        typeFrequenciesGradient[k] += pairWeight * parametrization.getTypeFreq(j);
+                    }
+                }
+            }
+
+            for (int j = 0; j < numberOfCellTypes; j++) {
+                double p = 0;
+                for (int k = 0; k < numberOfCellTypes; k++) {
+                    p += daughterPairWeights[j * numberOfCellTypes + k] * child2Partials[child2Offset + k];
+                }
+                outsidePartials[child1Offset + j] = p;
+            }
+            for (int k = 0; k < numberOfCellTypes; k++) {
+                double p = 0;
+                for (int j = 0; j < numberOfCellTypes; j++) {
+                    p += daughterPairWeights[j * numberOfCellTypes + k] * child1Partials[child1Offset + j];
+                }
+                outsidePartials[child2Offset + k] = p;
+            }
+        }
+
+        return true;
     }
 
-    public Map<Integer, Double[]> updateStoredPruningProb(){
-        storedPruningProb.clear(); // restart with empty hashmap.
-        calculatePruningProb((Cell) lineageTreeInput.get().getRoot(), true);
-        return storedPruningProb;
+    /**
+     * Add to gradient the derivatives of the log of the emission probability of cell for type cellType (see getCellProbability),
+     * multiplied by weight.
+     */
+    void addEmissionGradient(Cell cell, int cellType, double weight, ParametrizationGradient gradient) {
+
+        Parametrization parametrization = parametrizationInput.get();
+        double lossProbability = parametrization.getLossProbability();
+
+        if(cell.isLostCell()) {
+            gradient.getLossProb()[0] += weight / lossProbability;
+            return;
+        }
+
+        List<DistributionForMeasurement> distributions = parametrization.getDistributions();
+        for (int distrIdx = 0; distrIdx < distributions.size(); distrIdx++) {
+            DistributionForMeasurement d = distributions.get(distrIdx);
+            d.getLogProbabilityGradient(getMeasuredValue(cell, distrIdx, d), cellType,
+                    cell.getIsIncompletelyMeasured(), cell.getFate(), cell.isRootCell(), distributionGradient);
+            gradient.getParm1Distribution(distrIdx)[cellType] += weight * distributionGradient[0];
+            gradient.getParm2Distribution(distrIdx)[cellType] += weight * distributionGradient[1];
+            if(gradient.getZeroFraction(distrIdx) != null)
+                gradient.getZeroFraction(distrIdx)[cellType] += weight * distributionGradient[2];
+        }
+
+        // derivatives of getFateProbability
+        if(cell.getFate() == Cell.Fate.L) {
+            gradient.getLossProb()[0] += weight / lossProbability;
+            return;
+        }
+        gradient.getLossProb()[0] -= weight / (1 - lossProbability);
+        if(cell.getFate() != Cell.Fate.U) {
+            int idxFate = cell.getFate() == Cell.Fate.D ? 0 : 1;
+            gradient.getFateProbabilities()[cellType][idxFate] += weight /
+                    parametrization.fateProbabilitiesInput.get().get(cellType).getArrayValue(idxFate);
+        }
     }
 
     public String getTreeID() {
@@ -319,39 +937,111 @@ public class LineageTreeProb extends Distribution {
 
 
 
+    @Override
+    public void store() {
+        System.arraycopy(currentPartialsIndex, 0, storedPartialsIndex, 0, currentPartialsIndex.length);
+        System.arraycopy(fixedCellTypes, 0, storedFixedCellTypes, 0, fixedCellTypes.length);
+        storedEmissionsIndex = currentEmissionsIndex;
+        System.arraycopy(currentDistributionEmissionsIndex, 0, storedDistributionEmissionsIndex, 0, currentDistributionEmissionsIndex.length);
+        storedFateEmissionsIndex = currentFateEmissionsIndex;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        int[] tmp = currentPartialsIndex;
+        currentPartialsIndex = storedPartialsIndex;
+        storedPartialsIndex = tmp;
+
+        tmp = fixedCellTypes;
+        fixedCellTypes = storedFixedCellTypes;
+        storedFixedCellTypes = tmp;
+
+        int tmpIndex = currentEmissionsIndex;
+        currentEmissionsIndex = storedEmissionsIndex;
+        storedEmissionsIndex = tmpIndex;
+
+        tmp = currentDistributionEmissionsIndex;
+        currentDistributionEmissionsIndex = storedDistributionEmissionsIndex;
+        storedDistributionEmissionsIndex = tmp;
+
+        tmpIndex = currentFateEmissionsIndex;
+        currentFateEmissionsIndex = storedFateEmissionsIndex;
+        storedFateEmissionsIndex = tmpIndex;
+
+        super.restore();
+    }
+
+    /**
+     * Mark the partials of a cell and of all its ancestors as needing recalculation.
+     */
+    void markPathToRootDirty(int nodeNr) {
+        while(nodeNr != -1 && !nodeIsDirty[nodeNr]) {
+            nodeIsDirty[nodeNr] = true;
+            nodeNr = flattenedTree.parent[nodeNr];
+        }
+    }
+
     @Override
     protected boolean requiresRecalculation() {
-        try {
-            if (cellTypeInput.get().somethingIsDirty()) {
-                if (sumOverDaughterCellTypes) {
-                    if (cellTypeInput.get().isDirty(treeIdxInput.get()))
-//                        System.out.println(treeIdxInput.get());
-                        return true;
-                    //TODO can we add "else return false"? we would need to know for sure that cellTypeInput is the only dirty element
-                } else {
-                    for (int cellLabel :  lineageTreeInput.get().getLabelsOfAllCellsInTree()) {
-                        if (cellTypeInput.get().isDirty(treeIdxInput.get() + cellLabel - 1))
-                            return true;
+        boolean isDirty = false;
+
+        // cells whose type changed only require recalculation along their path to the root.
+        // If a single dimension of cellType changed, only the tree owning it is concerned, see CellTypeDimensionMap.
+        // Otherwise, only the dimensions of cellType owned by this tree are checked.
+        IntegerParameter cellType = cellTypeInput.get();
+        if (cellType.somethingIsDirty()) {
+            int dirtyDimension = cellTypeDimensionMap == null ? -1 : cellTypeDimensionMap.getSingleDirtyDimension();
+            if (dirtyDimension != -1) {
+                if (cellTypeDimensionMap.treeOfDimension[dirtyDimension] == treeIdxInForest) {
+                    int nodeNr = cellTypeDimensionMap.nodeOfDimension[dirtyDimension];
+                    fixedCellTypes[nodeNr] = readFixedCellTypeOfNode(nodeNr);
+                    markPathToRootDirty(nodeNr);
+                    isDirty = true;
+                }
+            }
+            else {
+                for (int slotIdx = 0; slotIdx < ownedCellTypeSlots.length; slotIdx++) {
+                    if (cellType.isDirty(ownedCellTypeSlots[slotIdx])) {
+                        int nodeNr = nodesOfOwnedCellTypeSlots[slotIdx];
+                        fixedCellTypes[nodeNr] = readFixedCellTypeOfNode(nodeNr);
+                        markPathToRootDirty(nodeNr);
+                        isDirty = true;
                     }
                 }
             }
+        }
 
-            for (BEASTInterface beastObject : listActiveBEASTObjects()) {
-                if (beastObject == cellTypeInput.get()) continue;
+        for (StateNode stateNode : stateNodeDependencies) {
+            if (stateNode.somethingIsDirty()) {
+                updateAllNodes = true;
+                updateEmissions = true;
+                return true;
+            }
+        }
 
-                if (beastObject instanceof StateNode && ((StateNode) beastObject).somethingIsDirty()) {
-                    return true;
+        Parametrization parametrization = parametrizationInput.get();
+        for (CalculationNode calculationNode : calculationNodeDependencies) {
+            if (calculationNode.isDirtyCalculation()) {
+                updateAllNodes = true;
+                isDirty = true;
+                if(calculationNode != parametrization) {
+                    updateEmissions = true;
+                    continue;
                 }
-
-                if (beastObject instanceof CalculationNode && ((CalculationNode) beastObject).isDirtyCalculation()) {
-                    return true;
+                // changes in transition probabilities or type frequencies leave the emission probabilities unchanged,
+                // and only the columns of the distributions that changed are recalculated.
+                List<DistributionForMeasurement> distributions = parametrization.getDistributions();
+                for (int distrIdx = 0; distrIdx < distributions.size(); distrIdx++) {
+                    if(distributions.get(distrIdx).isDirtyCalculation())
+                        distributionEmissionsAreDirty[distrIdx] = true;
                 }
+                if(parametrization.fateProbabilitiesAreDirty())
+                    fateEmissionsAreDirty = true;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
 
-        return false;
+        return isDirty;
 
     }
 
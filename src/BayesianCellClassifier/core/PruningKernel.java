@@ -0,0 +1,66 @@
+package BayesianCellClassifier.core;
+
+/**
+ * Inner loops of the pruning algorithm for a cell whose daughters both have an unfixed type.
+ * Daughters are unordered, so the sum over all pairs of daughter types (j,k) of T[i][j][k]*a[j]*b[k]
+ * is the product of the packed transition matrix (see Parametrization.getPackedTransitionProbabilities)
+ * with the vector of symmetrised products a[j]*b[k] + a[k]*b[j], with a single a[j]*b[j] term on the diagonal.
+ */
+public interface PruningKernel {
+
+    /**
+     * Fill pairProducts with the symmetrised products of the partials a of the first daughter
+     * and b of the second daughter, one per unordered pair of types, in the order of Parametrization.getPairIndex.
+     */
+    void computePairProducts(double[] child1Partials, int child1Offset, double[] child2Partials, int child2Offset,
+                             int numberOfCellTypes, double[] pairProducts);
+
+    /**
+     * For each type i of the mother cell between firstType and lastType (inclusive),
+     * nodePartials[offset + i] = emissions[offset + i] * sum over m of packedTransitionProbs[i][m] * pairProducts[m].
+     */
+    void contractDaughters(double[][] packedTransitionProbs, double[] pairProducts, double[] emissions,
+                           double[] nodePartials, int offset, int firstType, int lastType);
+
+    /**
+     * Partials of a cell whose daughters both have an unfixed type: computePairProducts followed by contractDaughters.
+     * pairProducts is a scratch array with one element per unordered pair of types.
+     * Kernels specialised for a number of cell types can override it to avoid the intermediate array.
+     */
+    default void pruneUnfixedDaughters(double[][] packedTransitionProbs,
+                                       double[] child1Partials, int child1Offset, double[] child2Partials, int child2Offset,
+                                       double[] emissions, double[] nodePartials, int offset, int firstType, int lastType,
+                                       int numberOfCellTypes, double[] pairProducts) {
+        computePairProducts(child1Partials, child1Offset, child2Partials, child2Offset, numberOfCellTypes, pairProducts);
+        contractDaughters(packedTransitionProbs, pairProducts, emissions, nodePartials, offset, firstType, lastType);
+    }
+
+    /**
+     * @return a kernel with loops unrolled for the given number of cell types, null if there is none (only 2, 3 and 4).
+     */
+    static PruningKernel getUnrolledKernel(int numberOfCellTypes) {
+        switch (numberOfCellTypes) {
+            case 2:
+                return new TwoTypePruningKernel();
+            case 3:
+                return new ThreeTypePruningKernel();
+            case 4:
+                return new FourTypePruningKernel();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the kernel using the JDK Vector API, null if it is not available
+     * (running on Java older than 16, kernel not compiled or jdk.incubator.vector module not added).
+     */
+    static PruningKernel getVectorKernel() {
+        try {
+            return (PruningKernel) Class.forName("BayesianCellClassifier.core.VectorPruningKernel")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+}
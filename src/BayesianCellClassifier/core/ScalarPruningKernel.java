@@ -0,0 +1,35 @@
+package BayesianCellClassifier.core;
+
+/**
+ * Plain Java implementation of the pruning kernel, available on all Java versions.
+ */
+public class ScalarPruningKernel implements PruningKernel {
+
+    @Override
+    public void computePairProducts(double[] child1Partials, int child1Offset, double[] child2Partials, int child2Offset,
+                                    int numberOfCellTypes, double[] pairProducts) {
+        int pairIdx = 0;
+        for (int j = 0; j < numberOfCellTypes; j++) {
+            double child1Partial = child1Partials[child1Offset + j];
+            double child2Partial = child2Partials[child2Offset + j];
+            pairProducts[pairIdx++] = child1Partial * child2Partial;
+            for (int k = j + 1; k < numberOfCellTypes; k++) {
+                pairProducts[pairIdx++] = child1Partial * child2Partials[child2Offset + k] +
+                        child1Partials[child1Offset + k] * child2Partial;
+            }
+        }
+    }
+
+    @Override
+    public void contractDaughters(double[][] packedTransitionProbs, double[] pairProducts, double[] emissions,
+                                  double[] nodePartials, int offset, int firstType, int lastType) {
+        for (int i = firstType; i <= lastType; i++) {
+            double[] motherTransitionProbs = packedTransitionProbs[i];
+            double p = 0;
+            for (int m = 0; m < pairProducts.length; m++) {
+                p += motherTransitionProbs[m] * pairProducts[m];
+            }
+            nodePartials[offset + i] = p * emissions[offset + i];
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package BayesianCellClassifier.core;
+
+/**
+ * Pruning kernel for models with three cell types, with all loops unrolled.
+ * Sums are taken in the same order as in ScalarPruningKernel, so both give identical results.
+ */
+public class ThreeTypePruningKernel extends ScalarPruningKernel {
+
+    @Override
+    public void pruneUnfixedDaughters(double[][] packedTransitionProbs,
+                                      double[] child1Partials, int child1Offset, double[] child2Partials, int child2Offset,
+                                      double[] emissions, double[] nodePartials, int offset, int firstType, int lastType,
+                                      int numberOfCellTypes, double[] pairProducts) {
+
+        double a0 = child1Partials[child1Offset];
+        double a1 = child1Partials[child1Offset + 1];
+        double a2 = child1Partials[child1Offset + 2];
+        double b0 = child2Partials[child2Offset];
+        double b1 = child2Partials[child2Offset + 1];
+        double b2 = child2Partials[child2Offset + 2];
+
+        double p00 = a0 * b0;
+        double p01 = a0 * b1 + a1 * b0;
+        double p02 = a0 * b2 + a2 * b0;
+        double p11 = a1 * b1;
+        double p12 = a1 * b2 + a2 * b1;
+        double p22 = a2 * b2;
+
+        if(firstType == 0 && lastType == 2) {
+            double[] t0 = packedTransitionProbs[0];
+            double[] t1 = packedTransitionProbs[1];
+            double[] t2 = packedTransitionProbs[2];
+            nodePartials[offset] = (t0[0] * p00 + t0[1] * p01 + t0[2] * p02 + t0[3] * p11 + t0[4] * p12 + t0[5] * p22)
+                    * emissions[offset];
+            nodePartials[offset + 1] = (t1[0] * p00 + t1[1] * p01 + t1[2] * p02 + t1[3] * p11 + t1[4] * p12 + t1[5] * p22)
+                    * emissions[offset + 1];
+            nodePartials[offset + 2] = (t2[0] * p00 + t2[1] * p01 + t2[2] * p02 + t2[3] * p11 + t2[4] * p12 + t2[5] * p22)
+                    * emissions[offset + 2];
+        }
+        else {
+            for (int i = firstType; i <= lastType; i++) {
+                double[] t = packedTransitionProbs[i];
+                nodePartials[offset + i] = (t[0] * p00 + t[1] * p01 + t[2] * p02 + t[3] * p11 + t[4] * p12 + t[5] * p22)
+                        * emissions[offset + i];
+            }
+        }
+    }
+}
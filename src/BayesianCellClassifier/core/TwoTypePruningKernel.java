@@ -0,0 +1,37 @@
+package BayesianCellClassifier.core;
+
+/**
+ * Pruning kernel for models with two cell types, with all loops unrolled.
+ * Sums are taken in the same order as in ScalarPruningKernel, so both give identical results.
+ */
+public class TwoTypePruningKernel extends ScalarPruningKernel {
+
+    @Override
+    public void pruneUnfixedDaughters(double[][] packedTransitionProbs,
+                                      double[] child1Partials, int child1Offset, double[] child2Partials, int child2Offset,
+                                      double[] emissions, double[] nodePartials, int offset, int firstType, int lastType,
+                                      int numberOfCellTypes, double[] pairProducts) {
+
+        double a0 = child1Partials[child1Offset];
+        double a1 = child1Partials[child1Offset + 1];
+        double b0 = child2Partials[child2Offset];
+        double b1 = child2Partials[child2Offset + 1];
+
+        double p00 = a0 * b0;
+        double p01 = a0 * b1 + a1 * b0;
+        double p11 = a1 * b1;
+
+        if(firstType == 0 && lastType == 1) {
+            double[] t0 = packedTransitionProbs[0];
+            double[] t1 = packedTransitionProbs[1];
+            nodePartials[offset] = (t0[0] * p00 + t0[1] * p01 + t0[2] * p11) * emissions[offset];
+            nodePartials[offset + 1] = (t1[0] * p00 + t1[1] * p01 + t1[2] * p11) * emissions[offset + 1];
+        }
+        else {
+            for (int i = firstType; i <= lastType; i++) {
+                double[] t = packedTransitionProbs[i];
+                nodePartials[offset + i] = (t[0] * p00 + t[1] * p01 + t[2] * p11) * emissions[offset + i];
+            }
+        }
+    }
+}
@@ -1,12 +1,11 @@
 package BayesianCellClassifier.lineagetree;
 
 import beast.evolution.tree.Node;
-import BayesianCellClassifier.parametrization.ExperimentalMeasurements;
 
 import java.text.DecimalFormat;
+import java.text.FieldPosition;
 import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.SortedSet;
 
@@ -24,9 +23,11 @@ public class Cell extends Node {
     protected final int trackNumber;
     boolean isIncompletelyMeasured;
     int childrenNum;
-    NumberFormat numberFormat = new DecimalFormat("####0.000");
+    // shared by all cells instead of being created with each cell. DecimalFormat is not thread-safe, so one per thread.
+    static final ThreadLocal<NumberFormat> numberFormat = ThreadLocal.withInitial(() -> new DecimalFormat("####0.000"));
 
-    HashMap<String, Double> experimentalMeasures = new HashMap<>();
+    // measurements made on the cells of the tree, indexed by node number.
+    MeasurementStore measurementStore;
 
 
     public Cell(int trackNumber) {
@@ -73,7 +74,8 @@ public class Cell extends Node {
 
     public static int getCellGeneration(int trackNumber) {
         //by convention, we set the root cell to be at generation number 1.
-        return (int) Math.floor(Math.log(trackNumber)/Math.log(2)) + 1;
+        // since daughters of cell n are 2n and 2n+1, the generation is the number of bits of the track number.
+        return 32 - Integer.numberOfLeadingZeros(trackNumber);
     }
 
     public boolean isRootCell(){
@@ -89,20 +91,14 @@ public class Cell extends Node {
             return (cellTrackNumber -1)/2;
     }
 
-    public void addExperimentalMeasures(List<ExperimentalMeasurements> measuresOnTree){
-        for(ExperimentalMeasurements measure : measuresOnTree) {
-
-            if(experimentalMeasures.containsKey(measure.getMeasurementTag())) continue;
-
-            experimentalMeasures.put(measure.getMeasurementTag(), measure.getMeasuredValues().get(trackNumber));
-        }
+    public void setMeasurementStore(MeasurementStore measurementStore) {
+        this.measurementStore = measurementStore;
     }
 
     public double getValueMeasured(String measurementTag){
-        if(experimentalMeasures.containsKey(measurementTag) && experimentalMeasures.get(measurementTag) != null)
-            return experimentalMeasures.get(measurementTag);
-        else
+        if(measurementStore == null)
             return Double.NaN;
+        return measurementStore.getValue(measurementTag, getNr());
     }
 
     public boolean getIsIncompletelyMeasured(){
@@ -158,12 +154,31 @@ public class Cell extends Node {
     }
 
     public String toCSVRecord(SortedSet<String> sortedTags){
-        String res = "";
-        res += trackNumber + "," + fate.toString();
+        StringBuffer record = new StringBuffer();
+        appendCSVRecord(record, sortedTags);
+        return record.toString();
+    }
+
+    /**
+     * Append the csv record of the cell to record, without line separator.
+     * Values are formatted directly into record, so that writing many cells does not create intermediate strings.
+     */
+    public void appendCSVRecord(StringBuffer record, SortedSet<String> sortedTags){
+        record.append(trackNumber).append(',').append(fate.toString());
+        appendCSVValues(record, sortedTags);
+    }
+
+    void appendCSVValues(StringBuffer record, SortedSet<String> sortedTags){
+        NumberFormat format = numberFormat.get();
+        FieldPosition fieldPosition = new FieldPosition(0);
         for(String tag : sortedTags) {
-            res += "," + numberFormat.format(experimentalMeasures.get(tag));
+            double value = getValueMeasured(tag);
+            // missing values are written as read by LineageForest, rather than with the locale-dependent symbol for NaN.
+            if(Double.isNaN(value))
+                record.append(",NA");
+            else
+                format.format(value, record.append(','), fieldPosition);
         }
-        return res;
     }
 
 }
@@ -5,24 +5,38 @@ import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.SortedSet;
-import java.util.TreeMap;
 
 public abstract class CellTree extends Tree {
 
     public Input<String> filePathInput = new Input<>("filePath", "File to write tree as a csv file in.");
 
+    public Input<Boolean> appendToFileInput = new Input<>("appendToFile",
+            "If true, the tree is added at the end of the csv file instead of overwriting it, " +
+                    "with its ID in a first column treeId, so that the trees written to one file can be read by LineageForest. " +
+                    "Default: false.",
+            Boolean.FALSE);
+
+    public Input<Boolean> compressFileInput = new Input<>("compressFile",
+            "If true, the csv file is gzip-compressed and its name ends with .csv.gz. Default: false.",
+            Boolean.FALSE);
+
     SortedSet<String> uniqueMeasurementTags;
 
     SortedSet<Integer> labelsOfAllCellsInTree;
 
+    // measurements made on the cells, indexed by node number. null if the measurements are kept with the cells.
+    MeasurementStore measurementStore;
+
+    // track numbers of the cells in increasing order, and node number of the cell with each of these track numbers.
+    int[] sortedTrackNumbers;
+    int[] nodeNrsOfSortedTrackNumbers;
+
     @Override
     public void initAndValidate() {
+        indexCellsByTrackNumber();
+
         super.initAndValidate();
 
         if(filePathInput.get() != null) {
@@ -31,22 +45,11 @@ public abstract class CellTree extends Tree {
     }
 
     public void writeToCSV(String filePath){
-
-        // build a sorted hashmap with the cell records, to sort them by track numbers
-        // as getNodesAsArray will not necessarily spit the cells out in order.
-        TreeMap<Integer, String> sortedCSVLines = new TreeMap<>();
-        // add header
-        sortedCSVLines.put(0, getHeaderOfCSV());
-        // add cells
-        for(Node cell : this.getNodesAsArray()){
-            sortedCSVLines.put(((Cell) cell).getTrackNumber(), ((Cell) cell).toCSVRecord(uniqueMeasurementTags));
-        }
-
-        Charset utf8 = StandardCharsets.UTF_8;
-        // write to file
-        try {
-            Files.write(Paths.get(filePath + ".csv"), sortedCSVLines.values(), utf8,
-                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        boolean compress = compressFileInput.get();
+        boolean append = appendToFileInput.get();
+        try (CellTreeCSVWriter writer = new CellTreeCSVWriter(filePath + (compress ? ".csv.gz" : ".csv"),
+                append, compress, append)) {
+            writer.write(this);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -54,6 +57,45 @@ public abstract class CellTree extends Tree {
 
     abstract public SortedSet<Integer> getLabelsOfAllCellsInTree();
 
+    /**
+     * Index the cells by track number, once the cells are numbered.
+     * Track numbers and node numbers are packed in longs, so that they are sorted together without boxing.
+     */
+    void indexCellsByTrackNumber() {
+        Node[] nodes = getNodesAsArray();
+        long[] trackNumbersAndNodeNrs = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+            trackNumbersAndNodeNrs[i] = ((long) ((Cell) nodes[i]).getTrackNumber() << 32) | nodes[i].getNr();
+        Arrays.sort(trackNumbersAndNodeNrs);
+
+        sortedTrackNumbers = new int[nodes.length];
+        nodeNrsOfSortedTrackNumbers = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            sortedTrackNumbers[i] = (int) (trackNumbersAndNodeNrs[i] >>> 32);
+            nodeNrsOfSortedTrackNumbers[i] = (int) trackNumbersAndNodeNrs[i];
+        }
+    }
+
+    /**
+     * Return the cell with the given track number, null if there is none in the tree.
+     */
+    public Cell getCellByTrackNumber(int trackNumber) {
+        int i = Arrays.binarySearch(sortedTrackNumbers, trackNumber);
+        return i < 0 ? null : (Cell) getNode(nodeNrsOfSortedTrackNumbers[i]);
+    }
+
+    public int getLargestTrackNumber() {
+        return sortedTrackNumbers[sortedTrackNumbers.length - 1];
+    }
+
+    /**
+     * Columnar store of the measurements made on the cells of the tree, null if there is none,
+     * in which case the measurements are read from the cells (see Cell.getValueMeasured).
+     */
+    public MeasurementStore getMeasurementStore() {
+        return measurementStore;
+    }
+
     public String getHeaderOfCSV(){
         String res="TrackNumber,Fate";
         for(String tag : uniqueMeasurementTags) {
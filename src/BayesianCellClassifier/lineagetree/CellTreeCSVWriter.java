@@ -0,0 +1,141 @@
+package BayesianCellClassifier.lineagetree;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes cell trees to a csv file, one line per cell in increasing track number order, with the header of
+ * CellTree.getHeaderOfCSV. Lines are formatted in a single reused buffer and streamed to the file,
+ * so that writing a tree does not hold its lines in memory.
+ * Several trees can be written to the same file, in which case the first column holds the id of the tree of each cell
+ * and the file can be read by LineageForest. The header is only written if the file is empty,
+ * otherwise the trees must have the columns of the header of the file.
+ * The file can be gzip-compressed. Compressed data appended to an existing compressed file is read back
+ * as one stream by gzip readers.
+ */
+public class CellTreeCSVWriter implements Closeable {
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    final String filePath;
+    final boolean writeTreeIds;
+
+    final Writer writer;
+
+    // whether a header still has to be written, and the header written, which the trees of the file must share.
+    boolean writeHeader;
+    String header;
+    // first line of the file appended to, null if the file is empty.
+    String headerOfFile;
+
+    final StringBuffer record = new StringBuffer();
+    // characters of record, copied before writing since Writer.append would copy record to a new String.
+    char[] recordChars = new char[256];
+
+    /**
+     * @param filePath path of the file, written as is.
+     * @param append if true, lines are added at the end of the file if it exists, otherwise the file is overwritten.
+     * @param compress if true, the lines are gzip-compressed.
+     * @param writeTreeIds if true, the id of the tree of each cell is written in a first column treeId.
+     */
+    public CellTreeCSVWriter(String filePath, boolean append, boolean compress, boolean writeTreeIds) throws IOException {
+
+        this.filePath = filePath;
+        this.writeTreeIds = writeTreeIds;
+
+        Path path = Paths.get(filePath);
+        writeHeader = !append || !Files.exists(path) || Files.size(path) == 0;
+        if(!writeHeader)
+            headerOfFile = readFirstLine(path, compress);
+
+        OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        if(compress)
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Write the cells of the tree, in increasing track number order.
+     * With tree ids, the id of the tree is its ID, which must be set.
+     */
+    public void write(CellTree tree) throws IOException {
+
+        String treeHeader = tree.getHeaderOfCSV();
+        if(header == null)
+            header = treeHeader;
+        else if(!header.equals(treeHeader))
+            throw new IllegalArgumentException("Trees written to " + filePath + " must have the same columns, " +
+                    "but tree " + tree.getID() + " has columns " + treeHeader + " instead of " + header + ".");
+
+        if(headerOfFile != null) {
+            String lineHeader = writeTreeIds ? LineageForest.TREE_ID_COLUMN + "," + treeHeader : treeHeader;
+            if(!headerOfFile.equals(lineHeader))
+                throw new IllegalArgumentException("Trees appended to " + filePath + " must have the columns of the file, " +
+                        "but tree " + tree.getID() + " has columns " + lineHeader + " instead of " + headerOfFile + ".");
+            headerOfFile = null;
+        }
+
+        String treeIdField = null;
+        if(writeTreeIds) {
+            if(tree.getID() == null)
+                throw new IllegalArgumentException("Trees written to " + filePath + " with their ids must have an ID.");
+            if(tree.getID().indexOf(',') != -1)
+                throw new IllegalArgumentException("Tree ID " + tree.getID() + " cannot contain commas.");
+            treeIdField = tree.getID() + ",";
+        }
+
+        if(writeHeader) {
+            if(writeTreeIds)
+                writer.write(LineageForest.TREE_ID_COLUMN + ",");
+            writer.write(header);
+            writer.write(System.lineSeparator());
+            writeHeader = false;
+        }
+
+        if(tree.sortedTrackNumbers == null)
+            tree.indexCellsByTrackNumber();
+
+        for (int nodeNr : tree.nodeNrsOfSortedTrackNumbers) {
+            record.setLength(0);
+            if(writeTreeIds)
+                record.append(treeIdField);
+            ((Cell) tree.getNode(nodeNr)).appendCSVRecord(record, tree.uniqueMeasurementTags);
+            record.append(System.lineSeparator());
+            if(record.length() > recordChars.length)
+                recordChars = new char[2 * record.length()];
+            record.getChars(0, record.length(), recordChars, 0);
+            writer.write(recordChars, 0, record.length());
+        }
+    }
+
+    /**
+     * First line of the file, null if the file is empty.
+     */
+    static String readFirstLine(Path path, boolean compressed) throws IOException {
+        try (InputStream in = Files.newInputStream(path);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     compressed ? new GZIPInputStream(in) : in, StandardCharsets.UTF_8))) {
+            return reader.readLine();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,319 @@
+package BayesianCellClassifier.lineagetree;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+
+@Description("Lineage trees read from a single csv file in long format, with one line per cell. " +
+        "The header names the columns: 'treeId', 'trackNumber', optionally 'fate' (D, A, U or L), " +
+        "and one column per measurement tag. The lines of a tree do not need to be contiguous. " +
+        "Empty values and 'NA' are missing measurements, an empty fate is set as in LineageTree. " +
+        "Fields are separated by commas and cannot be quoted. Files whose name ends with .gz are gzip-compressed. " +
+        "The file is read in a single pass and the trees are built in parallel. " +
+        "The file can also be in the binary format written by LineageForestConverter, which is memory-mapped. " +
+        "Used with the 'forest' input of LineageForestProb, which creates the likelihoods of the trees.")
+public class LineageForest extends BEASTObject {
+
+    public Input<String> filePathInput = new Input<>("filePath",
+            "Path of the csv file containing the cells of all trees, possibly gzip-compressed, or of a binary file written by LineageForestConverter.",
+            Input.Validate.REQUIRED);
+
+    public Input<Boolean> cellsAreFullyTrackedInput = new Input<>("cellsAreFullyTracked",
+            "Have the cells (besides the root) in all generations up to the last generation of interest been tracked for their entire lifespan? " +
+                    "Applies to all trees. Default: false.",
+            Boolean.FALSE );
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+            "Maximum number of threads used to build the trees. " +
+                    "If less than 1, the number of available processors is used. Default: -1",
+            -1);
+
+    static final String TREE_ID_COLUMN = "treeId";
+    static final String TRACK_NUMBER_COLUMN = "trackNumber";
+    static final String FATE_COLUMN = "fate";
+
+    SortedSet<String> measurementTags;
+
+    List<String> treeIds;
+
+    LineageTree[] trees;
+
+    @Override
+    public void initAndValidate() {
+
+        String filePath = filePathInput.get();
+
+        if(LineageForestFile.isLineageForestFile(filePath)) {
+            LineageForestFile file = new LineageForestFile(filePath);
+            measurementTags = file.getMeasurementTags();
+            treeIds = file.getTreeIds();
+            buildTrees(file::readTree);
+        }
+        else {
+            Map<String, TreeRecords> recordsOfTrees = readRecords(filePath);
+            treeIds = new ArrayList<>(recordsOfTrees.keySet());
+            TreeRecords[] records = recordsOfTrees.values().toArray(new TreeRecords[0]);
+            buildTrees(treeIdx -> records[treeIdx]);
+        }
+    }
+
+    /**
+     * Build the trees from their records, in parallel if there are several threads.
+     */
+    void buildTrees(IntFunction<TreeRecords> recordsOfTree) {
+
+        trees = new LineageTree[treeIds.size()];
+
+        int threads = threadsInput.get() < 1 ? Runtime.getRuntime().availableProcessors() : threadsInput.get();
+        if(threads == 1 || trees.length < 2) {
+            for (int treeIdx = 0; treeIdx < trees.length; treeIdx++)
+                trees[treeIdx] = buildTree(treeIds.get(treeIdx), recordsOfTree.apply(treeIdx));
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, trees.length).parallel()
+                    .forEach(treeIdx -> trees[treeIdx] = buildTree(treeIds.get(treeIdx), recordsOfTree.apply(treeIdx)))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the trees of " + filePathInput.get() + ".", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Records of the cells of one tree, in the order of the file.
+     * columns[columnIdx][cellIdx] is the measurement of cell cellIdx for the columnIdx-th tag.
+     * Only the first cellCount elements of the arrays are used.
+     */
+    static class TreeRecords {
+
+        int cellCount;
+        int[] trackNumbers;
+        Cell.Fate[] fates;
+        double[][] columns;
+
+        TreeRecords(int columnCount) {
+            this(new int[16], new Cell.Fate[16], new double[columnCount][16], 0);
+        }
+
+        TreeRecords(int[] trackNumbers, Cell.Fate[] fates, double[][] columns, int cellCount) {
+            this.trackNumbers = trackNumbers;
+            this.fates = fates;
+            this.columns = columns;
+            this.cellCount = cellCount;
+        }
+
+        void add(int trackNumber, Cell.Fate fate, double[] measuredValues) {
+            if(cellCount == trackNumbers.length) {
+                trackNumbers = Arrays.copyOf(trackNumbers, 2 * cellCount);
+                fates = Arrays.copyOf(fates, 2 * cellCount);
+                for (int columnIdx = 0; columnIdx < columns.length; columnIdx++)
+                    columns[columnIdx] = Arrays.copyOf(columns[columnIdx], 2 * cellCount);
+            }
+            trackNumbers[cellCount] = trackNumber;
+            fates[cellCount] = fate;
+            for (int columnIdx = 0; columnIdx < columns.length; columnIdx++)
+                columns[columnIdx][cellCount] = measuredValues[columnIdx];
+            cellCount++;
+        }
+    }
+
+    /**
+     * Read the lines of the file one at a time, and group the cells by tree in the order in which trees first appear.
+     */
+    Map<String, TreeRecords> readRecords(String filePath) {
+
+        Map<String, TreeRecords> recordsOfTrees = new LinkedHashMap<>();
+
+        try (BufferedReader reader = openCSVFile(filePath)) {
+
+            String line = reader.readLine();
+            if(line == null)
+                throw new IllegalArgumentException("File " + filePath + " is empty.");
+
+            String[] header = splitLine(line, new String[countFields(line)]);
+            int treeIdColumn = -1;
+            int trackNumberColumn = -1;
+            int fateColumn = -1;
+            for (int column = 0; column < header.length; column++) {
+                if(header[column].equalsIgnoreCase(TREE_ID_COLUMN))
+                    treeIdColumn = column;
+                else if(header[column].equalsIgnoreCase(TRACK_NUMBER_COLUMN))
+                    trackNumberColumn = column;
+                else if(header[column].equalsIgnoreCase(FATE_COLUMN))
+                    fateColumn = column;
+            }
+            if(treeIdColumn == -1 || trackNumberColumn == -1)
+                throw new IllegalArgumentException("The header of " + filePath + " must contain the columns '" +
+                        TREE_ID_COLUMN + "' and '" + TRACK_NUMBER_COLUMN + "'.");
+
+            measurementTags = new TreeSet<>();
+            for (int column = 0; column < header.length; column++) {
+                if(column != treeIdColumn && column != trackNumberColumn && column != fateColumn
+                        && !measurementTags.add(header[column]))
+                    throw new IllegalArgumentException("Duplicated tag: " + header[column] + " in header of " + filePath + ".");
+            }
+
+            // position in the sorted tags of the measurement in each column, -1 for the other columns.
+            int[] tagIndices = new int[header.length];
+            List<String> sortedTags = new ArrayList<>(measurementTags);
+            for (int column = 0; column < header.length; column++)
+                tagIndices[column] = sortedTags.indexOf(header[column]);
+            tagIndices[treeIdColumn] = -1;
+            tagIndices[trackNumberColumn] = -1;
+            if(fateColumn != -1)
+                tagIndices[fateColumn] = -1;
+
+            String[] fields = new String[header.length];
+            double[] measuredValues = new double[measurementTags.size()];
+            int lineNumber = 1;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.trim().isEmpty())
+                    continue;
+
+                if(countFields(line) != header.length)
+                    throw new IllegalArgumentException("Line " + lineNumber + " of " + filePath + " has " +
+                            countFields(line) + " fields instead of " + header.length + ".");
+                splitLine(line, fields);
+
+                try {
+                    int trackNumber = Integer.parseInt(fields[trackNumberColumn]);
+                    if(trackNumber < 1)
+                        throw new IllegalArgumentException("Track numbers must be > 0.");
+
+                    Cell.Fate fate = fateColumn == -1 || fields[fateColumn].isEmpty() ? null :
+                            Cell.Fate.valueOf(fields[fateColumn].toUpperCase());
+
+                    for (int column = 0; column < fields.length; column++) {
+                        if(tagIndices[column] != -1)
+                            measuredValues[tagIndices[column]] = parseValue(fields[column]);
+                    }
+
+                    recordsOfTrees.computeIfAbsent(fields[treeIdColumn], treeId -> new TreeRecords(measuredValues.length))
+                            .add(trackNumber, fate, measuredValues);
+                }
+                catch(IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unable to parse line " + lineNumber + " of " + filePath + ": " +
+                            e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read " + filePath + ": " + e.getMessage());
+        }
+
+        if(recordsOfTrees.isEmpty())
+            throw new IllegalArgumentException("File " + filePath + " does not contain any cell.");
+
+        return recordsOfTrees;
+    }
+
+    /**
+     * Reader of the csv file, decompressed if its name ends with .gz.
+     */
+    static BufferedReader openCSVFile(String filePath) throws IOException {
+        InputStream in = Files.newInputStream(Paths.get(filePath));
+        if(filePath.endsWith(".gz"))
+            in = new GZIPInputStream(in, 1 << 16);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    LineageTree buildTree(String treeId, TreeRecords records) {
+        LineageTree tree = new LineageTree();
+        tree.setID(treeId);
+        double[][] columns = new double[records.columns.length][];
+        for (int columnIdx = 0; columnIdx < columns.length; columnIdx++)
+            columns[columnIdx] = Arrays.copyOf(records.columns[columnIdx], records.cellCount);
+        tree.initFromRecords(Arrays.copyOf(records.trackNumbers, records.cellCount),
+                Arrays.copyOf(records.fates, records.cellCount),
+                columns, measurementTags, cellsAreFullyTrackedInput.get());
+        return tree;
+    }
+
+    static int countFields(String line) {
+        int count = 1;
+        for (int i = line.indexOf(','); i != -1; i = line.indexOf(',', i + 1))
+            count++;
+        return count;
+    }
+
+    /**
+     * Split a line on commas into fields, with surrounding whitespace removed.
+     * fields must have one element per field of the line.
+     */
+    static String[] splitLine(String line, String[] fields) {
+        int start = 0;
+        for (int field = 0; field < fields.length; field++) {
+            int end = line.indexOf(',', start);
+            if(end == -1)
+                end = line.length();
+            fields[field] = line.substring(start, end).trim();
+            start = end + 1;
+        }
+        return fields;
+    }
+
+    static double parseValue(String field) {
+        if(field.isEmpty() || field.equalsIgnoreCase("NA"))
+            return Double.NaN;
+        return Double.parseDouble(field);
+    }
+
+    public int getTreeCount() {
+        return trees.length;
+    }
+
+    public LineageTree getTree(int treeIdx) {
+        return trees[treeIdx];
+    }
+
+    public String getTreeId(int treeIdx) {
+        return treeIds.get(treeIdx);
+    }
+
+    public SortedSet<String> getMeasurementTags() {
+        return measurementTags;
+    }
+
+    /**
+     * Index of the first dimension of the cellType parameter of LineageTreeProb used by each tree (the treeIdx input),
+     * so that trees use consecutive, non-overlapping dimensions. If rootTypeOnly, each tree only uses one dimension,
+     * otherwise a tree uses as many dimensions as its largest track number.
+     */
+    public int[] getCellTypeOffsets(boolean rootTypeOnly) {
+        int[] offsets = new int[trees.length];
+        int offset = 0;
+        for (int treeIdx = 0; treeIdx < trees.length; treeIdx++) {
+            offsets[treeIdx] = offset;
+            offset += rootTypeOnly ? 1 : trees[treeIdx].getLargestTrackNumber();
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,71 @@
+package BayesianCellClassifier.lineagetree;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Runnable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Description("Converts lineage trees to the binary lineage forest format (see LineageForestFile), " +
+        "which LineageForest reads much faster than csv files or trees in XML. " +
+        "The trees are taken from a forest read from a csv file, from trees defined in XML, or from both. " +
+        "Can also be run from the command line to convert a csv file: LineageForestConverter <csv file> <binary file>.")
+public class LineageForestConverter extends Runnable {
+
+    public Input<LineageForest> forestInput = new Input<>("forest",
+            "Forest whose trees are converted.");
+
+    public Input<List<LineageTree>> treesInput = new Input<>("tree",
+            "Lineage trees converted, after the trees of the forest. " +
+                    "The id of a tree in the file is its ID, or its position in the list if it has no ID.",
+            new ArrayList<>());
+
+    public Input<String> filePathInput = new Input<>("filePath",
+            "Path of the binary file written.",
+            Input.Validate.REQUIRED);
+
+    @Override
+    public void initAndValidate() {
+        if(forestInput.get() == null && treesInput.get().isEmpty())
+            throw new IllegalArgumentException("A forest or at least one tree must be given.");
+    }
+
+    @Override
+    public void run() {
+
+        List<String> treeIds = new ArrayList<>();
+        List<LineageTree> trees = new ArrayList<>();
+
+        LineageForest forest = forestInput.get();
+        if(forest != null) {
+            for (int treeIdx = 0; treeIdx < forest.getTreeCount(); treeIdx++) {
+                treeIds.add(forest.getTreeId(treeIdx));
+                trees.add(forest.getTree(treeIdx));
+            }
+        }
+
+        for (int treeIdx = 0; treeIdx < treesInput.get().size(); treeIdx++) {
+            LineageTree tree = treesInput.get().get(treeIdx);
+            treeIds.add(tree.getID() != null ? tree.getID() : String.valueOf(treeIdx));
+            trees.add(tree);
+        }
+
+        LineageForestFile.write(filePathInput.get(), treeIds, trees);
+    }
+
+    public static void main(String[] args) {
+
+        if(args.length != 2) {
+            System.err.println("Usage: LineageForestConverter <csv file> <binary file>");
+            System.exit(1);
+        }
+
+        LineageForest forest = new LineageForest();
+        forest.initByName("filePath", args[0]);
+
+        LineageForestConverter converter = new LineageForestConverter();
+        converter.initByName("forest", forest, "filePath", args[1]);
+        converter.run();
+    }
+}
@@ -0,0 +1,246 @@
+package BayesianCellClassifier.lineagetree;
+
+import beast.evolution.tree.Node;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Binary, columnar file holding the cells of a forest of lineage trees, read through a memory mapping.
+ * Several processes reading the same file share its pages in the page cache, and the trees are built
+ * without parsing text (see LineageForest). Files are written by write, or by LineageForestConverter.
+ *
+ * Layout, in little-endian order:
+ * - header: magic number, version, number of trees, number of measurement tags and total number of cells (ints),
+ *   then the measurement tags in sorted order and the ids of the trees, each as a byte length followed by UTF-8 bytes.
+ * - index by tree (ints): the cells of tree treeIdx are the cells cellOffsets[treeIdx] to cellOffsets[treeIdx + 1] - 1.
+ * - topology (ints): the track number of each cell. Track numbers define the tree, as in LineageTree.
+ * - fates (bytes): the ordinal of the fate of each cell in Cell.Fate.
+ * - measurements (doubles): one column per tag, with one value per cell, NaN if missing.
+ * The index and the columns start at multiples of 8 bytes.
+ * Files are limited to 2 GB.
+ */
+public class LineageForestFile {
+
+    static final int MAGIC_NUMBER = 0x4C464F52; // "LFOR"
+    static final int VERSION = 1;
+
+    final String filePath;
+
+    final ByteBuffer buffer;
+
+    final int treeCount;
+    final int cellCount;
+
+    final SortedSet<String> measurementTags;
+    final List<String> treeIds;
+
+    final int[] cellOffsets;
+
+    // positions in the buffer of the sections of the file.
+    final int trackNumbersPosition;
+    final int fatesPosition;
+    final int columnsPosition;
+
+    public LineageForestFile(String filePath) {
+
+        this.filePath = filePath;
+
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+            if(file.length() > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("File " + filePath + " is larger than 2 GB.");
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read " + filePath + ": " + e.getMessage());
+        }
+
+        if(buffer.limit() < 20 || buffer.getInt(0) != MAGIC_NUMBER)
+            throw new IllegalArgumentException("File " + filePath + " is not a lineage forest file.");
+        if(buffer.getInt(4) != VERSION)
+            throw new IllegalArgumentException("Unsupported version " + buffer.getInt(4) + " of lineage forest file " + filePath + ".");
+
+        buffer.position(8);
+        treeCount = buffer.getInt();
+        int tagCount = buffer.getInt();
+        cellCount = buffer.getInt();
+        if(treeCount < 0 || tagCount < 0 || cellCount < 0)
+            throw new IllegalArgumentException("File " + filePath + " is truncated or corrupted.");
+
+        measurementTags = new TreeSet<>();
+        for (int tagIdx = 0; tagIdx < tagCount; tagIdx++)
+            measurementTags.add(readString(buffer));
+        treeIds = new ArrayList<>(treeCount);
+        for (int treeIdx = 0; treeIdx < treeCount; treeIdx++)
+            treeIds.add(readString(buffer));
+
+        int offsetsPosition = align(buffer.position());
+        trackNumbersPosition = offsetsPosition + 4 * (treeCount + 1);
+        fatesPosition = trackNumbersPosition + 4 * cellCount;
+        columnsPosition = align(fatesPosition + cellCount);
+        if((long) columnsPosition + 8L * tagCount * cellCount != buffer.limit())
+            throw new IllegalArgumentException("File " + filePath + " is truncated or corrupted.");
+
+        cellOffsets = new int[treeCount + 1];
+        buffer.position(offsetsPosition);
+        buffer.asIntBuffer().get(cellOffsets);
+        if(cellOffsets[0] != 0 || cellOffsets[treeCount] != cellCount)
+            throw new IllegalArgumentException("File " + filePath + " is truncated or corrupted.");
+        for (int treeIdx = 0; treeIdx < treeCount; treeIdx++) {
+            if(cellOffsets[treeIdx + 1] < cellOffsets[treeIdx])
+                throw new IllegalArgumentException("File " + filePath + " is truncated or corrupted.");
+        }
+    }
+
+    /**
+     * Return true if the file starts with the magic number of lineage forest files.
+     */
+    public static boolean isLineageForestFile(String filePath) {
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+            return file.length() >= 4 && Integer.reverseBytes(file.readInt()) == MAGIC_NUMBER;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int getTreeCount() {
+        return treeCount;
+    }
+
+    public SortedSet<String> getMeasurementTags() {
+        return measurementTags;
+    }
+
+    public List<String> getTreeIds() {
+        return treeIds;
+    }
+
+    /**
+     * Records of the cells of tree treeIdx, copied from the mapped file. Can be called concurrently.
+     */
+    LineageForest.TreeRecords readTree(int treeIdx) {
+
+        int from = cellOffsets[treeIdx];
+        int treeCellCount = cellOffsets[treeIdx + 1] - from;
+        // each call works on its own view of the buffer, since bulk reads move the position of the view.
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        int[] trackNumbers = new int[treeCellCount];
+        view.position(trackNumbersPosition + 4 * from);
+        view.asIntBuffer().get(trackNumbers);
+
+        Cell.Fate[] fates = new Cell.Fate[treeCellCount];
+        Cell.Fate[] allFates = Cell.Fate.values();
+        for (int cellIdx = 0; cellIdx < treeCellCount; cellIdx++) {
+            int fateOrdinal = view.get(fatesPosition + from + cellIdx);
+            if(fateOrdinal < 0 || fateOrdinal >= allFates.length)
+                throw new IllegalArgumentException("File " + filePath + " is truncated or corrupted.");
+            fates[cellIdx] = allFates[fateOrdinal];
+        }
+
+        double[][] columns = new double[measurementTags.size()][treeCellCount];
+        for (int columnIdx = 0; columnIdx < columns.length; columnIdx++) {
+            view.position(columnsPosition + 8 * (columnIdx * cellCount + from));
+            view.asDoubleBuffer().get(columns[columnIdx]);
+        }
+
+        return new LineageForest.TreeRecords(trackNumbers, fates, columns, treeCellCount);
+    }
+
+    /**
+     * Write the cells of the trees to a lineage forest file, with the cells of each tree sorted by track number.
+     * The measurement tags of the file are all the tags measured in at least one tree.
+     */
+    public static void write(String filePath, List<String> treeIds, List<? extends CellTree> trees) {
+
+        if(treeIds.size() != trees.size())
+            throw new IllegalArgumentException("There must be one id per tree.");
+
+        SortedSet<String> measurementTags = new TreeSet<>();
+        List<Cell[]> cellsOfTrees = new ArrayList<>(trees.size());
+        int cellCount = 0;
+        for (CellTree tree : trees) {
+            measurementTags.addAll(tree.uniqueMeasurementTags);
+            Node[] nodes = tree.getNodesAsArray();
+            Cell[] cells = Arrays.copyOf(nodes, nodes.length, Cell[].class);
+            Arrays.sort(cells, Comparator.comparingInt(Cell::getTrackNumber));
+            cellsOfTrees.add(cells);
+            cellCount += cells.length;
+        }
+
+        List<byte[]> strings = new ArrayList<>();
+        for (String tag : measurementTags)
+            strings.add(tag.getBytes(StandardCharsets.UTF_8));
+        for (String treeId : treeIds)
+            strings.add(treeId.getBytes(StandardCharsets.UTF_8));
+        long headerSize = 20;
+        for (byte[] string : strings)
+            headerSize += 4 + string.length;
+
+        long trackNumbersPosition = align(headerSize) + 4L * (trees.size() + 1);
+        long fatesPosition = trackNumbersPosition + 4L * cellCount;
+        long columnsPosition = align(fatesPosition + cellCount);
+        long size = columnsPosition + 8L * measurementTags.size() * cellCount;
+        if(size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The forest is too large for a lineage forest file (more than 2 GB).");
+
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
+            file.setLength(size);
+            ByteBuffer out = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+
+            out.putInt(MAGIC_NUMBER).putInt(VERSION).putInt(trees.size()).putInt(measurementTags.size()).putInt(cellCount);
+            for (byte[] string : strings)
+                out.putInt(string.length).put(string);
+
+            out.position(align(out.position()));
+            int cellOffset = 0;
+            for (Cell[] cells : cellsOfTrees) {
+                out.putInt(cellOffset);
+                cellOffset += cells.length;
+            }
+            out.putInt(cellOffset);
+
+            for (Cell[] cells : cellsOfTrees) {
+                for (Cell cell : cells)
+                    out.putInt(cell.getTrackNumber());
+            }
+            for (Cell[] cells : cellsOfTrees) {
+                for (Cell cell : cells)
+                    out.put((byte) cell.getFate().ordinal());
+            }
+
+            out.position((int) columnsPosition);
+            for (String tag : measurementTags) {
+                for (Cell[] cells : cellsOfTrees) {
+                    for (Cell cell : cells)
+                        out.putDouble(cell.getValueMeasured(tag));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to write " + filePath + ": " + e.getMessage());
+        }
+    }
+
+    static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
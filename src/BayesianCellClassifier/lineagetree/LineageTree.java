@@ -25,6 +25,9 @@ public class LineageTree extends CellTree {
 
     SortedSet<Integer> labelsOfAllCellsInTree;
 
+    // labels of all cells in the tree, in increasing order and without duplicates.
+    int[] sortedLabels;
+
 
     @Override
     public void initAndValidate() {
@@ -46,76 +49,170 @@ public class LineageTree extends CellTree {
         //TODO add check for correct formatting of the cellsInTree string (all cell numbers must be > 0 integers)
         String[] labelsOfCellsInTreeAsStrings = cellsInTreeInput.get().replaceAll("\\s","").split(",");
 
-        labelsOfAllCellsInTree = new TreeSet<>();
-
-        for(String s : labelsOfCellsInTreeAsStrings) {
-            labelsOfAllCellsInTree.add(Integer.parseInt(s));
+        int[] labels = new int[labelsOfCellsInTreeAsStrings.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = Integer.parseInt(labelsOfCellsInTreeAsStrings[i]);
         }
+        Arrays.sort(labels);
+        int labelCount = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if(i == 0 || labels[i] != labels[i - 1])
+                labels[labelCount++] = labels[i];
+        }
+        sortedLabels = Arrays.copyOf(labels, labelCount);
+        labelsOfAllCellsInTree = null;
 
-        Map<Integer, Cell> allCells =  buildAllCells();
-
-        Cell rootCell = buildTreeAndGetRoot(1, allCells);
+        Cell rootCell = getRootCell(buildCells());
         rootCell.labelNodesInTree();
 
         setRoot(rootCell);
         initArrays();
 
+        buildMeasurementStore();
+
         super.initAndValidate();
     }
 
-    // naive way of getting a node by its label number
-    public Node getNodeByLabel(int nodeLabel){
-        for (Node node : getNodesAsArray()) {
-            if (node.getNr() == nodeLabel) return node;
+    /**
+     * Build the tree from the records of its cells, as read by LineageForest, instead of from the inputs.
+     * Cell cellIdx has track number trackNumbers[cellIdx], and columns[columnIdx][cellIdx]
+     * is its measurement for the columnIdx-th tag of measurementTags, NaN if missing.
+     * fates[cellIdx] is the recorded fate of the cell, or null if it is not recorded,
+     * in which case the fate is set from the presence of daughters as in initAndValidate.
+     */
+    void initFromRecords(int[] trackNumbers, Cell.Fate[] fates, double[][] columns, SortedSet<String> measurementTags,
+                         boolean cellsAreFullyTracked) {
+
+        cellsAreFullyTrackedInput.setValue(cellsAreFullyTracked, this);
+        uniqueMeasurementTags = measurementTags;
+
+        // labels are sorted together with the index of their record, packed in longs.
+        long[] labelsAndCellIndices = new long[trackNumbers.length];
+        for (int cellIdx = 0; cellIdx < trackNumbers.length; cellIdx++)
+            labelsAndCellIndices[cellIdx] = ((long) trackNumbers[cellIdx] << 32) | cellIdx;
+        Arrays.sort(labelsAndCellIndices);
+
+        sortedLabels = new int[trackNumbers.length];
+        int[] cellIndices = new int[trackNumbers.length];
+        for (int i = 0; i < sortedLabels.length; i++) {
+            sortedLabels[i] = (int) (labelsAndCellIndices[i] >>> 32);
+            cellIndices[i] = (int) labelsAndCellIndices[i];
+            if(i > 0 && sortedLabels[i] == sortedLabels[i - 1])
+                throw new IllegalArgumentException("Duplicated cell " + sortedLabels[i] + " in tree " + getID() + ".");
         }
-        return null;
-    }
+        labelsOfAllCellsInTree = null;
 
-    public Map<Integer, Cell> buildAllCells() {
+        Cell[] cells = buildCells();
+        for (int i = 0; i < cells.length; i++) {
+            if(cells[i] != null && fates[cellIndices[i]] != null)
+                cells[i].setFate(fates[cellIndices[i]]);
+        }
+        Cell rootCell = getRootCell(cells);
+        rootCell.labelNodesInTree();
 
-        Map<Integer, Cell> cells  = new HashMap<>();
+        setRoot(rootCell);
+        initArrays();
 
-        for(Integer cellLabel : labelsOfAllCellsInTree) {
-            if (cells.containsKey(cellLabel))
+        measurementStore = new MeasurementStore(measurementTags, getNodeCount());
+        for (int i = 0; i < cells.length; i++) {
+            if(cells[i] == null)
                 continue;
+            for (int columnIdx = 0; columnIdx < columns.length; columnIdx++)
+                measurementStore.setValue(columnIdx, cells[i].getNr(), columns[columnIdx][cellIndices[i]]);
+            cells[i].setMeasurementStore(measurementStore);
+        }
+
+        super.initAndValidate();
+    }
 
-            Cell newCell = new Cell(cellLabel);
-            newCell.addExperimentalMeasures(measuresOnCellsInput.get());
+    // the label of a node is its node number, see getCellByTrackNumber for lookups by track number.
+    public Node getNodeByLabel(int nodeLabel){
+        if(nodeLabel < 0 || nodeLabel >= getNodeCount())
+            return null;
+        return getNode(nodeLabel);
+    }
 
-            cells.put(cellLabel, newCell);
+    /**
+     * Build the cells connected to the root cell from sortedLabels, and return them in the order of the labels,
+     * with null for cells that are not connected to the root.
+     * Since labels follow heap numbering (the daughters of cell n are 2n and 2n+1), mothers are built before
+     * their daughters, and are found by binary search in the labels instead of through boxed maps and sets.
+     */
+    Cell[] buildCells() {
+
+        Cell[] cells = new Cell[sortedLabels.length];
+        boolean cellsAreFullyTracked = cellsAreFullyTrackedInput.get();
+
+        for (int i = 0; i < sortedLabels.length; i++) {
+            int label = sortedLabels[i];
+            Cell mother = null;
+            if(label != 1) {
+                int motherIdx = label > 1 ? Arrays.binarySearch(sortedLabels, 0, i, label / 2) : -1;
+                if(motherIdx < 0 || cells[motherIdx] == null)
+                    continue;
+                mother = cells[motherIdx];
+            }
+
+            Cell cell = new Cell(label);
+            if(hasDaughterInTree(label) || cellsAreFullyTracked)
+                cell.setFate(Cell.Fate.D);
+            if(mother != null) {
+                cell.setParent(mother);
+                mother.addChild(cell);
+            }
+            cells[i] = cell;
         }
 
         return cells;
     }
 
-    public Cell buildTreeAndGetRoot(int rootKey, Map<Integer, Cell> cellsOfInterest) {
-        if(!cellsOfInterest.containsKey(rootKey))
-            throw new IllegalArgumentException("There is no cell with label " + rootKey + " in the set of cells of interest.");
-
-        Cell rootCell = cellsOfInterest.get(rootKey);
+    Cell getRootCell(Cell[] cells) {
+        int rootIdx = Arrays.binarySearch(sortedLabels, 1);
+        if(rootIdx < 0)
+            throw new IllegalArgumentException("There is no cell with label 1 in the set of cells of interest.");
+        return cells[rootIdx];
+    }
 
-        if(labelsOfAllCellsInTree.contains(2*rootKey) || labelsOfAllCellsInTree.contains(2*rootKey + 1) || cellsAreFullyTrackedInput.get())
-            rootCell.setFate(Cell.Fate.D);
+    boolean hasDaughterInTree(int label) {
+        return label <= (Integer.MAX_VALUE - 1) / 2 && (Arrays.binarySearch(sortedLabels, 2 * label) >= 0
+                || Arrays.binarySearch(sortedLabels, 2 * label + 1) >= 0);
+    }
 
-        if(cellsOfInterest.containsKey(2*rootKey)) {
-            Cell child1 = buildTreeAndGetRoot(2*rootKey, cellsOfInterest);
-            child1.setParent(rootCell);
-            rootCell.addChild(child1);
-        }
-        if(cellsOfInterest.containsKey(2*rootKey + 1)) {
-            Cell child2 = buildTreeAndGetRoot(2*rootKey + 1, cellsOfInterest);
-            child2.setParent(rootCell);
-            rootCell.addChild(child2);
+    /**
+     * Fill the columnar store of the measurements, once the cells are numbered.
+     */
+    void buildMeasurementStore() {
+
+        Node[] nodes = getNodesAsArray();
+        measurementStore = new MeasurementStore(uniqueMeasurementTags, nodes.length);
+
+        for (ExperimentalMeasurements measure : measuresOnCellsInput.get()) {
+            int columnIdx = measurementStore.getColumnIndex(measure.getMeasurementTag());
+            Map<Integer, Double> measuredValues = measure.getMeasuredValues();
+            for (Node node : nodes) {
+                Double value = measuredValues.get(((Cell) node).getTrackNumber());
+                if(value != null)
+                    measurementStore.setValue(columnIdx, node.getNr(), value);
+            }
         }
 
-        return rootCell;
+        for (Node node : nodes)
+            ((Cell) node).setMeasurementStore(measurementStore);
     }
 
     public String toCSV() {
         return super.toString();
     }
 
+    /**
+     * Labels of all cells in the tree, built on first use.
+     */
     public SortedSet<Integer> getLabelsOfAllCellsInTree(){
+        if(labelsOfAllCellsInTree == null) {
+            labelsOfAllCellsInTree = new TreeSet<>();
+            for (int label : sortedLabels)
+                labelsOfAllCellsInTree.add(label);
+        }
         return labelsOfAllCellsInTree;
     }
 
@@ -0,0 +1,91 @@
+package BayesianCellClassifier.lineagetree;
+
+import BayesianCellClassifier.parametrization.DistributionForMeasurement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+/**
+ * Columnar store of the measurements made on the cells of a tree: one array per measurement tag,
+ * indexed by the node number of the cells. Measurements missing for a cell are NaN.
+ * The likelihood reads the columns directly (see getColumn and getColumnIndices),
+ * without hashing or boxing the measured values.
+ */
+public class MeasurementStore {
+
+    final String[] tags;
+
+    final double[][] columns;
+
+    final Map<String, Integer> columnIndices;
+
+    public MeasurementStore(SortedSet<String> measurementTags, int nodeCount) {
+
+        tags = measurementTags.toArray(new String[0]);
+        columns = new double[tags.length][nodeCount];
+        columnIndices = new HashMap<>();
+        for (int columnIdx = 0; columnIdx < tags.length; columnIdx++) {
+            columnIndices.put(tags[columnIdx], columnIdx);
+            Arrays.fill(columns[columnIdx], Double.NaN);
+        }
+    }
+
+    void setValue(int columnIdx, int nodeNr, double value) {
+        columns[columnIdx][nodeNr] = value;
+    }
+
+    public int getNumberOfColumns() {
+        return tags.length;
+    }
+
+    public String getTag(int columnIdx) {
+        return tags[columnIdx];
+    }
+
+    /**
+     * Return the index of the column holding the measurements with the given tag, -1 if there is none.
+     */
+    public int getColumnIndex(String measurementTag) {
+        Integer columnIdx = columnIndices.get(measurementTag);
+        return columnIdx == null ? -1 : columnIdx;
+    }
+
+    /**
+     * Return the indices of the columns holding the measurements of each of the distributions,
+     * -1 for distributions whose measurement tag is not in the store.
+     */
+    public int[] getColumnIndices(List<DistributionForMeasurement> distributions) {
+        int[] indices = new int[distributions.size()];
+        for (int distrIdx = 0; distrIdx < indices.length; distrIdx++) {
+            indices[distrIdx] = getColumnIndex(distributions.get(distrIdx).getMeasurementTag());
+        }
+        return indices;
+    }
+
+    /**
+     * Measurements with the tag of column columnIdx, indexed by node number.
+     * The array is not copied and must not be modified.
+     */
+    public double[] getColumn(int columnIdx) {
+        return columns[columnIdx];
+    }
+
+    public double getValue(int columnIdx, int nodeNr) {
+        return columns[columnIdx][nodeNr];
+    }
+
+    /**
+     * Return the measurement with the given tag made on cell nodeNr, NaN if there is none.
+     */
+    public double getValue(String measurementTag, int nodeNr) {
+        int columnIdx = getColumnIndex(measurementTag);
+        return columnIdx == -1 ? Double.NaN : columns[columnIdx][nodeNr];
+    }
+
+    public boolean isMeasured(int columnIdx, int nodeNr) {
+        return !Double.isNaN(columns[columnIdx][nodeNr]);
+    }
+}
@@ -2,9 +2,10 @@ package BayesianCellClassifier.lineagetree;
 
 import BayesianCellClassifier.parametrization.DistributionForMeasurement;
 import BayesianCellClassifier.parametrization.Parametrization;
-import BayesianCellClassifier.utils.Utils;
+import BayesianCellClassifier.utils.SplittableRandomGenerator;
+import beast.util.Randomizer;
+import org.apache.commons.math3.random.RandomGenerator;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.SortedSet;
 
@@ -12,6 +13,11 @@ public class SimulatedCell extends Cell {
 
     private int cellType;
 
+    // simulated measurements are drawn before the cells are numbered, so they are kept with each cell,
+    // in the order of the distributions they are drawn from. null if no measurement was simulated.
+    List<DistributionForMeasurement> distributionsOfMeasures;
+    double[] experimentalMeasures;
+
     public SimulatedCell(int trackNumber) {
         super(trackNumber);
         this.cellType = 0;
@@ -36,35 +42,36 @@ public class SimulatedCell extends Cell {
      * So, for root cells we may end up simulating some useless values, (for measures not applied to root cells).
      */
     public void simulateExperimentalMeasures(Parametrization parametrizationInput, int cellType){
-        //wipe previous experimentalMeasures attached to this cell.
-        experimentalMeasures = new HashMap<>();
-
-        List<DistributionForMeasurement> distributionsForMeasures = parametrizationInput.getDistributions();
-
-        for(DistributionForMeasurement distribution : distributionsForMeasures) {
-
-            if(distribution.getHasZeroFraction() && Math.random() < distribution.getZeroFraction(cellType)) {
-                // is simulated value zero?
-                experimentalMeasures.put(distribution.getMeasurementTag(), 0.0);
-            }
-            else {
-                double drawnValue = Utils.getRandomValueFromDistribution(
-                        distribution.getDistributionType(),
-                        distribution.getParm1(cellType),
-                        distribution.getParm2(cellType));
+        simulateExperimentalMeasures(parametrizationInput, cellType, new SplittableRandomGenerator(Randomizer.nextLong()));
+    }
 
-                experimentalMeasures.put(distribution.getMeasurementTag(), drawnValue);
-            }
+    /**
+     * Simulate experimental measures as above, drawing from random.
+     */
+    public void simulateExperimentalMeasures(Parametrization parametrizationInput, int cellType, RandomGenerator random){
+        distributionsOfMeasures = parametrizationInput.getDistributions();
+        experimentalMeasures = new double[distributionsOfMeasures.size()];
 
-        }
+        for (int distributionIdx = 0; distributionIdx < experimentalMeasures.length; distributionIdx++)
+            experimentalMeasures[distributionIdx] = distributionsOfMeasures.get(distributionIdx).sample(cellType, random);
     }
 
     public void simulateCell(Parametrization parametrization, int maxGenerationNumber) {
+        parametrization.updateCaches();
+        simulateCell(parametrization, maxGenerationNumber, new SplittableRandomGenerator(Randomizer.nextLong()));
+    }
+
+    /**
+     * Simulate the cell and its descendants, drawing only from random, so that the subtree is determined by its seed.
+     * The transition probabilities of parametrization must be up to date (see Parametrization.updateCaches),
+     * so that several trees can be simulated in parallel with the same parametrization.
+     */
+    public void simulateCell(Parametrization parametrization, int maxGenerationNumber, RandomGenerator random) {
 
-        this.simulateExperimentalMeasures(parametrization, cellType);
+        this.simulateExperimentalMeasures(parametrization, cellType, random);
 
         //Draw whether cell was lost or not
-        double rand = Math.random();
+        double rand = random.nextDouble();
         if(rand < parametrization.getLossProbability()) {
             this.setFate(Cell.Fate.L);
             return;
@@ -72,7 +79,7 @@ public class SimulatedCell extends Cell {
 
         //Draw cell fate (either divides or dies)
         double[] fateProbs = parametrization.getFateProbability(cellType);
-        rand = Math.random();
+        rand = random.nextDouble();
         int idx = 0;
         while(idx < (fateProbs.length - 1)) {
             if(rand < fateProbs[idx])
@@ -95,19 +102,20 @@ public class SimulatedCell extends Cell {
         // if here, cell divides
 
         // check if we are at the max generation
-        if(Math.floor(Math.log(2*this.trackNumber)/Math.log(2.0)) >= maxGenerationNumber) return;
+        int generation = getCellGeneration(this.trackNumber);
+        if(generation >= maxGenerationNumber) return;
 
         // draw daughters types
-        int[] daughterTypes  = drawDaughterCellTypes(parametrization, cellType);
-        int idxTypeChild1 = Math.random()  < 0.5 ? 0 : 1; // shuffle which of the two daughters has which of the two types
+        int[] daughterTypes  = drawDaughterCellTypes(parametrization, cellType, generation, random);
+        int idxTypeChild1 = random.nextDouble()  < 0.5 ? 0 : 1; // shuffle which of the two daughters has which of the two types
         int idxTypeChild2 = idxTypeChild1 ^ 1; // idxTypeChild is 0 if idxTypeChild1 is 1 and vice-versa
 
         // simulate first child
         SimulatedCell child1 = new SimulatedCell(2 * this.trackNumber, daughterTypes[idxTypeChild1]);
-        child1.simulateCell(parametrization, maxGenerationNumber);
+        child1.simulateCell(parametrization, maxGenerationNumber, random);
         //simulate second child
         SimulatedCell child2 = new SimulatedCell(2 * this.trackNumber + 1, daughterTypes[idxTypeChild2]);
-        child2.simulateCell(parametrization, maxGenerationNumber);
+        child2.simulateCell(parametrization, maxGenerationNumber, random);
 
         child1.setParent(this);
         child2.setParent(this);
@@ -117,44 +125,51 @@ public class SimulatedCell extends Cell {
     }
 
 
-    private int[] drawDaughterCellTypes(Parametrization parametrization, int motherCellType){
-
-        double rand = Math.random();
-        double[] transitionProbs = parametrization.getTransitionProbabilitiesForMotherType(motherCellType);
-
-        int idx = 0;
-        int typeChild1 = 0;
-        int typeChild2 = 0;
-
-        while(idx < (transitionProbs.length - 1)){
-
-            if(rand < transitionProbs[idx])
-                break;
-            else{
-                rand -= transitionProbs[idx];
-                idx ++;
-
-                if(typeChild2 < (parametrization.getNumberOfCellTypes() -1))
-                    typeChild2 ++;
-                else {
-                    typeChild1 ++;
-                    typeChild2=typeChild1;
-                }
+    /**
+     * Draw the unordered pair of daughter types of a mother of type motherCellType at generation generationMother,
+     * from the transition probabilities used in the likelihood, which are generation-specific
+     * if the parametrization has generation-specific transition probabilities,
+     * and are products of type frequencies if kinship information is ignored.
+     */
+    private int[] drawDaughterCellTypes(Parametrization parametrization, int motherCellType, int generationMother,
+                                        RandomGenerator random){
+
+        // packed probabilities are halved for different daughter types, see Parametrization.getPackedTransitionProbabilities.
+        double[] transitionProbs = parametrization.getPackedTransitionProbabilities(generationMother, false)[motherCellType];
+        int numberOfCellTypes = parametrization.getNumberOfCellTypes();
+
+        double rand = random.nextDouble();
+        for (int typeChild1 = 0; typeChild1 < numberOfCellTypes; typeChild1++) {
+            for (int typeChild2 = typeChild1; typeChild2 < numberOfCellTypes; typeChild2++) {
+                double transitionProb = transitionProbs[parametrization.getPairIndex(typeChild1, typeChild2)];
+                if(typeChild1 != typeChild2)
+                    transitionProb *= 2;
+
+                if(rand < transitionProb)
+                    return new int[]{typeChild1, typeChild2};
+                rand -= transitionProb;
             }
         }
-        return new int[]{typeChild1, typeChild2};
+        // only reached through rounding errors.
+        return new int[]{numberOfCellTypes - 1, numberOfCellTypes - 1};
     }
 
 
     @Override
-    public String toCSVRecord(SortedSet<String> sortedTags){
-
-        String res = "";
-        res += trackNumber + "," + fate.toString() + ","  + cellType;
-        for(String tag : sortedTags) {
-            res += "," + numberFormat.format(experimentalMeasures.get(tag));
+    public double getValueMeasured(String measurementTag){
+        if(experimentalMeasures != null) {
+            for (int distributionIdx = 0; distributionIdx < experimentalMeasures.length; distributionIdx++) {
+                if(distributionsOfMeasures.get(distributionIdx).getMeasurementTag().equals(measurementTag))
+                    return experimentalMeasures[distributionIdx];
+            }
         }
-        return res;
+        return Double.NaN;
+    }
+
+    @Override
+    public void appendCSVRecord(StringBuffer record, SortedSet<String> sortedTags){
+        record.append(trackNumber).append(',').append(fate.toString()).append(',').append(cellType);
+        appendCSVValues(record, sortedTags);
     }
 
 }
@@ -0,0 +1,120 @@
+package BayesianCellClassifier.lineagetree;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.util.Randomizer;
+import BayesianCellClassifier.parametrization.Parametrization;
+import BayesianCellClassifier.utils.SplittableRandomGenerator;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+@Description("Lineage trees simulated independently under one parametrization, in parallel. " +
+        "Each tree draws from its own random stream, split from a generator seeded with the seed input, " +
+        "so that the same seed gives the same trees whatever the number of threads. " +
+        "The trees can be written to a single csv file that LineageForest reads.")
+public class SimulatedLineageForest extends BEASTObject {
+
+    public Input<Parametrization> parametrizationInput = new Input<>("parametrization",
+            "Parametrization the trees are simulated under.",
+            Input.Validate.REQUIRED);
+
+    public Input<Integer> lastGenerationInput = new Input<>("lastGeneration",
+            "Last generation of cells simulated in each tree, the root cell being at generation 1.",
+            Input.Validate.REQUIRED);
+
+    public Input<Integer> treeCountInput = new Input<>("treeCount",
+            "Number of trees simulated.",
+            Input.Validate.REQUIRED);
+
+    public Input<Long> seedInput = new Input<>("seed",
+            "Seed from which the random streams of the trees are derived. " +
+                    "Default: drawn from the BEAST random number generator.");
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+            "Maximum number of threads used to simulate the trees. " +
+                    "If less than 1, the number of available processors is used. Default: -1",
+            -1);
+
+    public Input<String> filePathInput = new Input<>("filePath",
+            "Csv file the trees are written to, with the index of the tree of each cell in a first column treeId. " +
+                    "The file is gzip-compressed if its name ends with .gz.");
+
+    SimulatedLineageTree[] trees;
+
+    @Override
+    public void initAndValidate() {
+
+        if(treeCountInput.get() < 1)
+            throw new IllegalArgumentException("treeCount must be at least 1.");
+
+        // the streams are split in tree order before any tree is simulated, so they do not depend on scheduling.
+        SplittableRandomGenerator random = new SplittableRandomGenerator(
+                seedInput.get() != null ? seedInput.get() : Randomizer.nextLong());
+        SplittableRandomGenerator[] randomOfTrees = new SplittableRandomGenerator[treeCountInput.get()];
+        for (int treeIdx = 0; treeIdx < randomOfTrees.length; treeIdx++)
+            randomOfTrees[treeIdx] = random.split();
+
+        // the transition probabilities are computed once, then only read by the threads.
+        parametrizationInput.get().updateCaches();
+
+        trees = new SimulatedLineageTree[randomOfTrees.length];
+
+        int threads = threadsInput.get() < 1 ? Runtime.getRuntime().availableProcessors() : threadsInput.get();
+        if(threads == 1 || trees.length < 2) {
+            for (int treeIdx = 0; treeIdx < trees.length; treeIdx++)
+                trees[treeIdx] = simulateTree(treeIdx, randomOfTrees[treeIdx]);
+        }
+        else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.submit(() -> IntStream.range(0, trees.length).parallel()
+                        .forEach(treeIdx -> trees[treeIdx] = simulateTree(treeIdx, randomOfTrees[treeIdx]))).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while simulating the trees.", e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        if(filePathInput.get() != null)
+            writeToCSV(filePathInput.get());
+    }
+
+    SimulatedLineageTree simulateTree(int treeIdx, SplittableRandomGenerator random) {
+        SimulatedLineageTree tree = new SimulatedLineageTree();
+        tree.setID(String.valueOf(treeIdx));
+        tree.setInputValue("parametrization", parametrizationInput.get());
+        tree.setInputValue("lastGeneration", lastGenerationInput.get());
+        tree.initFromSimulation(random);
+        return tree;
+    }
+
+    /**
+     * Write all trees to one csv file, in tree order.
+     */
+    public void writeToCSV(String filePath) {
+        try (CellTreeCSVWriter writer = new CellTreeCSVWriter(filePath, false, filePath.endsWith(".gz"), true)) {
+            for (SimulatedLineageTree tree : trees)
+                writer.write(tree);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to write " + filePath + ": " + e.getMessage());
+        }
+    }
+
+    public int getTreeCount() {
+        return trees.length;
+    }
+
+    public SimulatedLineageTree getTree(int treeIdx) {
+        return trees[treeIdx];
+    }
+}
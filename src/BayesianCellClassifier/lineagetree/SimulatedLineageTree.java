@@ -2,8 +2,11 @@ package BayesianCellClassifier.lineagetree;
 
 import beast.core.Input;
 import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
 import BayesianCellClassifier.parametrization.DistributionForMeasurement;
 import BayesianCellClassifier.parametrization.Parametrization;
+import BayesianCellClassifier.utils.SplittableRandomGenerator;
+import org.apache.commons.math3.random.RandomGenerator;
 
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -18,14 +21,37 @@ public class SimulatedLineageTree extends CellTree {
             "",
             Input.Validate.REQUIRED);
 
+    public Input<Long> seedInput = new Input<>("seed",
+            "Seed of the random draws of the simulation, so that the same tree is simulated with the same seed. " +
+                    "Default: drawn from the BEAST random number generator.");
+
     @Override
     public void initAndValidate() {
+        SplittableRandomGenerator random = new SplittableRandomGenerator(
+                seedInput.get() != null ? seedInput.get() : Randomizer.nextLong());
+        parametrizationInput.get().updateCaches();
+        initFromSimulation(random);
+    }
+
+    /**
+     * Simulate the tree drawing only from random, and initialize it.
+     * The caches of the parametrization must be up to date (see Parametrization.updateCaches),
+     * so that trees of a forest can be simulated in parallel (see SimulatedLineageForest).
+     */
+    void initFromSimulation(RandomGenerator random) {
+        Parametrization parametrization = parametrizationInput.get();
+
         if(lastGenerationInput.get() < 1)
             throw new IllegalArgumentException("lastGenerationOfInterest must be at least 1.");
+        if(parametrization.haveGenerationSpecificTransitionProbsInput.get()
+                && parametrization.getNumberOfGenerationIndices() < lastGenerationInput.get() - 1)
+            throw new IllegalArgumentException("Generation-specific transition probabilities are given for " +
+                    parametrization.getNumberOfGenerationIndices() + " generations of mothers, but cells up to generation " +
+                    lastGenerationInput.get() + " are simulated.");
 
-        uniqueMeasurementTags = parametrizationInput.get().getMeasurementTags();
+        uniqueMeasurementTags = parametrization.getMeasurementTags();
 
-        this.simulate();
+        this.simulate(random);
         initArrays();
 
         labelsOfAllCellsInTree = buildSetOfCellLabels((SimulatedCell) this.getRoot());
@@ -33,17 +59,17 @@ public class SimulatedLineageTree extends CellTree {
         super.initAndValidate();
     }
 
-    private void simulate(){
+    private void simulate(RandomGenerator random){
 
-        int rootType = drawRootCellType();
+        int rootType = drawRootCellType(random);
         SimulatedCell rootCell = new SimulatedCell(1, rootType);
-        rootCell.simulateCell(parametrizationInput.get(), lastGenerationInput.get());
+        rootCell.simulateCell(parametrizationInput.get(), lastGenerationInput.get(), random);
         rootCell.labelNodesInTree();
         setRoot(rootCell);
     }
 
-    private int drawRootCellType(){
-        double rand = Math.random();
+    private int drawRootCellType(RandomGenerator random){
+        double rand = random.nextDouble();
         int cellType = 0;
         while(cellType < (parametrizationInput.get().getNumberOfCellTypes() -1)){
             if(rand < parametrizationInput.get().getTypeFreq(cellType))
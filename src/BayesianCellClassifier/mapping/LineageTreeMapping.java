@@ -3,8 +3,8 @@ package BayesianCellClassifier.mapping;
 import beast.core.CalculationNode;
 import beast.core.Input;
 import beast.core.Loggable;
+import BayesianCellClassifier.core.FlattenedCellTree;
 import BayesianCellClassifier.core.LineageTreeProb;
-import BayesianCellClassifier.lineagetree.Cell;
 import BayesianCellClassifier.lineagetree.CellTree;
 import BayesianCellClassifier.parametrization.Parametrization;
 import BayesianCellClassifier.utils.Pair;
@@ -27,7 +27,13 @@ public class LineageTreeMapping extends CalculationNode implements Loggable {
 
     int numberOfCellTypes;
 
-    Map<Integer, Double[]> storedPruningProb;
+    FlattenedCellTree flattenedTree;
+
+    // weights of the types or pairs of types that can be drawn, reused from one draw to the next.
+    double[] typeProbs;
+    double[] pairProbs;
+    int[] firstTypes;
+    int[] secondTypes;
 
     Map<Integer, Integer> mappedCellTypes;
 
@@ -39,6 +45,10 @@ public class LineageTreeMapping extends CalculationNode implements Loggable {
         mappedCellTypes = new HashMap<>();
         random = new Random();
         numberOfCellTypes = parametrizationInput.get().numberOfCellTypes;
+        typeProbs = new double[numberOfCellTypes];
+        pairProbs = new double[numberOfCellTypes * numberOfCellTypes];
+        firstTypes = new int[numberOfCellTypes * numberOfCellTypes];
+        secondTypes = new int[numberOfCellTypes * numberOfCellTypes];
         paintTree();
     }
 
@@ -46,20 +56,22 @@ public class LineageTreeMapping extends CalculationNode implements Loggable {
 
         mappedCellTypes.clear(); // reinitialize painted types on tree
 
-        storedPruningProb = lineageTreeProbInput.get().updateStoredPruningProb();
+        lineageTreeProbInput.get().updatePartials();
+        flattenedTree = lineageTreeProbInput.get().getFlattenedTree();
 
         int rootTrackNumber = 1;
+        int rootNr = flattenedTree.getRootNr();
 
-        if(!lineageTreeInput.get().getLabelsOfAllCellsInTree().contains(rootTrackNumber))
+        if(flattenedTree.getTrackNumber(rootNr) != rootTrackNumber)
             throw new IllegalStateException("Types on tree cannot be painted as it does not contain a root cell," +
                     " at least not with track number " + rootTrackNumber + ".");
 
         // draw root type and store it.
-        int drawnRootType = drawRootType(rootTrackNumber);
+        int drawnRootType = drawRootType(rootNr);
         mappedCellTypes.put(rootTrackNumber, drawnRootType);
 
         // draw types in rest of the tree.
-        paintDaughterCells(rootTrackNumber, drawnRootType);
+        paintDaughterCells(rootNr, drawnRootType);
 
         if(!mappedCellTypes.keySet().containsAll(lineageTreeInput.get().getLabelsOfAllCellsInTree())) {
             throw new IllegalStateException("A cell in the tree was not painted with a cell type." +
@@ -68,42 +80,43 @@ public class LineageTreeMapping extends CalculationNode implements Loggable {
         }
     }
 
-    void paintDaughterCells(int motherTrackNumber, int motherType){
-
-        int child1TrackNumber = 2 * motherTrackNumber;
-        int child2TrackNumber = 2 * motherTrackNumber + 1;
-        int motherGeneration = Cell.getCellGeneration(motherTrackNumber);
+    void paintDaughterCells(int motherNr, int motherType){
 
         // check that motherCells has two daughters.
         // if it does, draw types of two daughters.
-        if(lineageTreeInput.get().getLabelsOfAllCellsInTree().contains(child1TrackNumber) &&
-                lineageTreeInput.get().getLabelsOfAllCellsInTree().contains(child2TrackNumber)) {
+        if(!flattenedTree.isLeaf(motherNr)) {
+
+            int child1Nr = flattenedTree.getChild1(motherNr);
+            int child2Nr = flattenedTree.getChild2(motherNr);
 
-            Pair drawnTypes = drawSisterTypes(child1TrackNumber, child2TrackNumber, motherType, motherGeneration);
+            Pair drawnTypes = drawSisterTypes(child1Nr, child2Nr, motherType, flattenedTree.getGeneration(motherNr));
 
             // store drawn types into mappedCellTypes
-            mappedCellTypes.put(child1TrackNumber, drawnTypes.getFirstInt());
-            mappedCellTypes.put(child2TrackNumber, drawnTypes.getSecondInt());
+            mappedCellTypes.put(flattenedTree.getTrackNumber(child1Nr), drawnTypes.getFirstInt());
+            mappedCellTypes.put(flattenedTree.getTrackNumber(child2Nr), drawnTypes.getSecondInt());
 
             // go to next generation
-            paintDaughterCells(child1TrackNumber, drawnTypes.getFirstInt());
-            paintDaughterCells(child2TrackNumber, drawnTypes.getSecondInt());
+            paintDaughterCells(child1Nr, drawnTypes.getFirstInt());
+            paintDaughterCells(child2Nr, drawnTypes.getSecondInt());
         }
 
         return;
     }
 
-    int drawRootType(int rootTrackNumber){
+    int drawRootType(int rootNr){
 
         // if root cell type is already fixed, do not draw, just return it.
-        if(lineageTreeProbInput.get().getFixedCellType(rootTrackNumber) > -1)
-            return lineageTreeProbInput.get().getFixedCellType(rootTrackNumber);
+        int rootType = lineageTreeProbInput.get().getFixedCellTypeOfNode(rootNr);
+        if(rootType > -1)
+            return rootType;
+
+        double[] rootPartials = lineageTreeProbInput.get().getPartials(rootNr);
+        int rootOffset = lineageTreeProbInput.get().getPartialsOffset(rootNr);
 
-        double[] typeProbs = new double[numberOfCellTypes];
         double sumTypeProbs = 0;
 
         for (int i = 0; i < numberOfCellTypes; i++) {
-            typeProbs[i] = parametrizationInput.get().getTypeFreq(i) * storedPruningProb.get(rootTrackNumber)[i];
+            typeProbs[i] = parametrizationInput.get().getTypeFreq(i) * rootPartials[rootOffset + i];
             sumTypeProbs += typeProbs[i];
         }
 
@@ -120,71 +133,109 @@ public class LineageTreeMapping extends CalculationNode implements Loggable {
         return -1;
     }
 
-    Pair drawSisterTypes(int child1TrackNumber, int child2TrackNumber, int motherType, int motherGeneration){
+    Pair drawSisterTypes(int child1Nr, int child2Nr, int motherType, int motherGeneration){
 
-        int child1Type = lineageTreeProbInput.get().getFixedCellType(child1TrackNumber);
-        int child2Type = lineageTreeProbInput.get().getFixedCellType(child2TrackNumber);
+        int child1Type = lineageTreeProbInput.get().getFixedCellTypeOfNode(child1Nr);
+        int child2Type = lineageTreeProbInput.get().getFixedCellTypeOfNode(child2Nr);
 
         if(child1Type > -1 && child2Type > -1) // daughter types are already fixed, no need to draw them.
             return new Pair(child1Type, child2Type);
 
-        LinkedHashMap<Pair, Double> intermediateProbs = new LinkedHashMap<>();
+        double[] child1Partials = lineageTreeProbInput.get().getPartials(child1Nr);
+        double[] child2Partials = lineageTreeProbInput.get().getPartials(child2Nr);
+        int child1Offset = lineageTreeProbInput.get().getPartialsOffset(child1Nr);
+        int child2Offset = lineageTreeProbInput.get().getPartialsOffset(child2Nr);
+
+        int numberOfPairs = 0;
         double sumTypeProbs = 0;
+        boolean isOfKnownType = lineageTreeProbInput.get().isOfKnownTypeInput.get();
+        double[][] transitionProbs = parametrizationInput.get().getTransitionProbabilities(motherGeneration, isOfKnownType)[motherType];
 
         if(child1Type == -1 && child2Type == -1) { // neither daughter types are fixed, draw both of them.
 
+            // draw the unordered pair of types first, then which daughter gets which type.
+            double[] packedTransitionProbs = parametrizationInput.get().getPackedTransitionProbabilities(motherGeneration, isOfKnownType)[motherType];
+
             for (int j = 0; j < numberOfCellTypes; j++) {
-                for (int k = 0; k < numberOfCellTypes; k++) {
+                for (int k = j; k < numberOfCellTypes; k++) {
 
-                    Double typeProb = storedPruningProb.get(child1TrackNumber)[j] *
-                            storedPruningProb.get(child2TrackNumber)[k] *
-                            parametrizationInput.get().getTransitionProbability(motherType, j, k, motherGeneration, lineageTreeProbInput.get().isOfKnownTypeInput.get());
+                    double pairProb = j == k ? child1Partials[child1Offset + j] * child2Partials[child2Offset + k] :
+                            child1Partials[child1Offset + j] * child2Partials[child2Offset + k] +
+                                    child1Partials[child1Offset + k] * child2Partials[child2Offset + j];
 
-                    intermediateProbs.put(new Pair(j,k), typeProb);
+                    pairProbs[numberOfPairs] = packedTransitionProbs[numberOfPairs] * pairProb;
+                    firstTypes[numberOfPairs] = j;
+                    secondTypes[numberOfPairs] = k;
 
-                    sumTypeProbs += typeProb;
+                    sumTypeProbs += pairProbs[numberOfPairs];
+                    numberOfPairs++;
                 }
             }
 
-        } else if(child1Type > -1 && child2Type == -1) { // fixed type for just one of the two children
+            int drawnPairIdx = drawPair(numberOfPairs, sumTypeProbs);
+            if(drawnPairIdx == -1)
+                return null;
 
-            for (int k = 0; k < numberOfCellTypes; k++) {
-                Double typeProb = storedPruningProb.get(child1TrackNumber)[child1Type] *
-                        storedPruningProb.get(child2TrackNumber)[k] *
-                        parametrizationInput.get().getTransitionProbability(motherType, child1Type, k, motherGeneration, lineageTreeProbInput.get().isOfKnownTypeInput.get());
+            int j = firstTypes[drawnPairIdx];
+            int k = secondTypes[drawnPairIdx];
+            double orderedProb = child1Partials[child1Offset + j] * child2Partials[child2Offset + k];
+            if(j != k && random.nextDouble() * (orderedProb + child1Partials[child1Offset + k] * child2Partials[child2Offset + j]) > orderedProb)
+                return new Pair(k, j);
+            return new Pair(j, k);
 
-                intermediateProbs.put(new Pair(child1Type,k), typeProb);
+        } else if(child1Type > -1 && child2Type == -1) { // fixed type for just one of the two children
 
-                sumTypeProbs += typeProb;
+            for (int k = 0; k < numberOfCellTypes; k++) {
+                pairProbs[numberOfPairs] = child1Partials[child1Offset + child1Type] *
+                        child2Partials[child2Offset + k] *
+                        transitionProbs[child1Type][k];
+                firstTypes[numberOfPairs] = child1Type;
+                secondTypes[numberOfPairs] = k;
+
+                sumTypeProbs += pairProbs[numberOfPairs];
+                numberOfPairs++;
             }
 
         } else if(child1Type == -1 && child2Type > -1) { // fixed type for just one of the two children
 
             for (int j = 0; j < numberOfCellTypes; j++) {
 
-                Double typeProb = storedPruningProb.get(child1TrackNumber)[j] *
-                        storedPruningProb.get(child2TrackNumber)[child2Type] *
-                        parametrizationInput.get().getTransitionProbability(motherType, j, child2Type, motherGeneration, lineageTreeProbInput.get().isOfKnownTypeInput.get());
-
-                intermediateProbs.put(new Pair(j, child2Type), typeProb);
+                pairProbs[numberOfPairs] = child1Partials[child1Offset + j] *
+                        child2Partials[child2Offset + child2Type] *
+                        transitionProbs[j][child2Type];
+                firstTypes[numberOfPairs] = j;
+                secondTypes[numberOfPairs] = child2Type;
 
-                sumTypeProbs += typeProb;
+                sumTypeProbs += pairProbs[numberOfPairs];
+                numberOfPairs++;
             }
         } else {
             throw new IllegalStateException("Child1's and/or Child2's type are/is fixed to invalid value(s).");
         }
 
+        int drawnPairIdx = drawPair(numberOfPairs, sumTypeProbs);
+        if(drawnPairIdx == -1)
+            return null;
+        return new Pair(firstTypes[drawnPairIdx], secondTypes[drawnPairIdx]);
+    }
+
+    /**
+     * Draw one of the first numberOfPairs pairs of types, with probabilities proportional to pairProbs.
+     * @return the index of the drawn pair, -1 if none was drawn.
+     */
+    int drawPair(int numberOfPairs, double sumTypeProbs) {
+
         // draw random value between 0 and sumTypeProbs
         double randValue = random.nextDouble() * sumTypeProbs;
         // find drawn cell type
-        for (Pair p : intermediateProbs.keySet()) {
-            if(randValue <= intermediateProbs.get(p))
-                return p;
+        for (int pairIdx = 0; pairIdx < numberOfPairs; pairIdx++) {
+            if(randValue <= pairProbs[pairIdx])
+                return pairIdx;
             else
-                randValue -= intermediateProbs.get(p);
+                randValue -= pairProbs[pairIdx];
         }
 
-        return null;
+        return -1;
     }
 
     /**
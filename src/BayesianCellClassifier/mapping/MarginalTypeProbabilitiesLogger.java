@@ -0,0 +1,77 @@
+package BayesianCellClassifier.mapping;
+
+import beast.core.CalculationNode;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import BayesianCellClassifier.core.FlattenedCellTree;
+import BayesianCellClassifier.core.LineageTreeProb;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+@Description("Logs the marginal posterior probability of each type for each cell of a lineage tree, " +
+        "given the data and the current parameters (see LineageTreeProb.calculateMarginalTypeProbabilities). " +
+        "Averaging these probabilities over the samples gives more precise estimates of the cell types " +
+        "than counting the types drawn by a LineageTreeMapping.")
+public class MarginalTypeProbabilitiesLogger extends CalculationNode implements Loggable {
+
+    public Input<LineageTreeProb> lineageTreeProbInput = new Input<>("lineageTreeProb",
+            "Likelihood of the lineage tree whose cells are classified.",
+            Input.Validate.REQUIRED);
+
+    int numberOfCellTypes;
+
+    // node numbers of the cells, in increasing order of track number.
+    int[] nodeNrs;
+
+    @Override
+    public void initAndValidate() {
+
+        LineageTreeProb treeProb = lineageTreeProbInput.get();
+        numberOfCellTypes = treeProb.getParametrization().numberOfCellTypes;
+
+        FlattenedCellTree flattenedTree = treeProb.getFlattenedTree();
+        nodeNrs = new int[flattenedTree.getNodeCount()];
+        Integer[] sortedNodeNrs = new Integer[nodeNrs.length];
+        for (int nodeNr = 0; nodeNr < nodeNrs.length; nodeNr++)
+            sortedNodeNrs[nodeNr] = nodeNr;
+        Arrays.sort(sortedNodeNrs, Comparator.comparingInt(flattenedTree::getTrackNumber));
+        for (int i = 0; i < nodeNrs.length; i++)
+            nodeNrs[i] = sortedNodeNrs[i];
+    }
+
+    /**
+     * Loggable interface implementation follows.
+     */
+
+    @Override
+    public void init(final PrintStream out) {
+        FlattenedCellTree flattenedTree = lineageTreeProbInput.get().getFlattenedTree();
+
+        for (int nodeNr : nodeNrs) {
+            for (int i = 0; i < numberOfCellTypes; i++) {
+                out.print(getID() + "_" + flattenedTree.getTrackNumber(nodeNr) + "_" + i + "\t");
+            }
+        }
+    }
+
+    @Override
+    public void log(long sampleNr, PrintStream out) {
+        LineageTreeProb treeProb = lineageTreeProbInput.get();
+        double[] marginalTypeProbabilities = treeProb.calculateMarginalTypeProbabilities();
+
+        for (int nodeNr : nodeNrs) {
+            int offset = treeProb.getPartialsOffset(nodeNr);
+            for (int i = 0; i < numberOfCellTypes; i++) {
+                out.print(marginalTypeProbabilities[offset + i] + "\t");
+            }
+        }
+    }
+
+    @Override
+    public void close(final PrintStream out) {
+        // nothing to do
+    }
+}
@@ -0,0 +1,185 @@
+package BayesianCellClassifier.parametrization;
+
+import org.apache.commons.math3.special.Beta;
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * Cumulative distribution of a gamma or beta distribution, tabulated on a regular grid of a transformed variable t
+ * and interpolated between grid points with cubic Hermite polynomials, using the exact derivatives.
+ * The gamma distribution with shape k is tabulated in t = log(k*x/mu), so that one table serves all means.
+ * The beta distribution is tabulated in t = log(x/(1-x)).
+ * In both variables the derivative of the cumulative distribution stays bounded whatever the parameters.
+ * The grid covers the range where both tails are larger than the tolerance, and is refined until the interpolation
+ * error in the middle of each interval is below half of the tolerance.
+ * Tables for which the tolerance cannot be met are empty, and getValue always returns NaN.
+ * Tables are immutable, so that trees evaluated in parallel can share them.
+ */
+public class CumulativeDistributionTable {
+
+    static final int INITIAL_INTERVAL_COUNT = 16;
+    // tables needing more intervals are not built, and the exact functions are used instead.
+    static final int MAX_INTERVAL_COUNT = 1 << 14;
+    // maximum extent of a table on each side of the mean of t, in standard deviations of t.
+    static final int MAX_RANGE_STEPS = 64;
+
+    final boolean isGamma;
+
+    // parameters the table was built for. The mean of a gamma distribution is not used and is NaN.
+    final double parm1;
+    final double parm2;
+
+    final double start;
+    final double end;
+    final double step;
+
+    final double[] values;
+    final double[] derivatives;
+
+    private CumulativeDistributionTable(boolean isGamma, double parm1, double parm2, double start, double step,
+                                        double[] values, double[] derivatives) {
+        this.isGamma = isGamma;
+        this.parm1 = parm1;
+        this.parm2 = parm2;
+        this.start = start;
+        this.step = step;
+        this.end = start + step * (values.length - 1);
+        this.values = values;
+        this.derivatives = derivatives;
+    }
+
+    /**
+     * Table of the cumulative distribution of the gamma distribution with shape k, in t = log(k*x/mu).
+     * The table is empty if the tolerance cannot be met with at most MAX_INTERVAL_COUNT intervals.
+     */
+    public static CumulativeDistributionTable forGamma(double k, double tolerance) {
+        return build(true, Double.NaN, k, Gamma.digamma(k), Math.sqrt(Gamma.trigamma(k)), tolerance);
+    }
+
+    /**
+     * Table of the cumulative distribution of the beta distribution with parameters alpha and beta, in t = log(x/(1-x)).
+     * The table is empty if the tolerance cannot be met with at most MAX_INTERVAL_COUNT intervals.
+     */
+    public static CumulativeDistributionTable forBeta(double alpha, double beta, double tolerance) {
+        return build(false, alpha, beta, Gamma.digamma(alpha) - Gamma.digamma(beta),
+                Math.sqrt(Gamma.trigamma(alpha) + Gamma.trigamma(beta)), tolerance);
+    }
+
+    /**
+     * Whether the table was built for these parameters of the distribution.
+     */
+    public boolean isFor(double parm1, double parm2) {
+        return (isGamma || parm1 == this.parm1) && parm2 == this.parm2;
+    }
+
+    /**
+     * Interpolated cumulative distribution at t, NaN if t is outside of the table.
+     */
+    public double getValue(double t) {
+
+        if(!(t >= start && t <= end))
+            return Double.NaN;
+
+        double position = (t - start) / step;
+        int i = Math.min((int) position, values.length - 2);
+        double value = interpolate(values[i], derivatives[i], values[i + 1], derivatives[i + 1], position - i, step);
+        return Math.min(Math.max(value, 0), 1);
+    }
+
+    private static double interpolate(double value0, double derivative0, double value1, double derivative1,
+                                      double s, double step) {
+        double s2 = s * s;
+        double s3 = s2 * s;
+        return (2 * s3 - 3 * s2 + 1) * value0 + (s3 - 2 * s2 + s) * step * derivative0
+                + (3 * s2 - 2 * s3) * value1 + (s3 - s2) * step * derivative1;
+    }
+
+    private static CumulativeDistributionTable build(boolean isGamma, double parm1, double parm2,
+                                                     double mean, double standardDeviation, double tolerance) {
+
+        CumulativeDistributionTable emptyTable = new CumulativeDistributionTable(isGamma, parm1, parm2,
+                Double.NaN, Double.NaN, new double[0], new double[0]);
+
+        if(!(standardDeviation > 0) || Double.isInfinite(standardDeviation) || Double.isNaN(mean))
+            return emptyTable;
+
+        double logNormalizingConstant = isGamma ? Gamma.logGamma(parm2) : Beta.logBeta(parm1, parm2);
+
+        double start = mean - standardDeviation;
+        int rangeSteps = 1;
+        while(getExactValue(isGamma, parm1, parm2, start) >= tolerance) {
+            if(rangeSteps++ == MAX_RANGE_STEPS)
+                return emptyTable;
+            start -= standardDeviation;
+        }
+        double end = mean + standardDeviation;
+        rangeSteps = 1;
+        while(1 - getExactValue(isGamma, parm1, parm2, end) >= tolerance) {
+            if(rangeSteps++ == MAX_RANGE_STEPS)
+                return emptyTable;
+            end += standardDeviation;
+        }
+
+        int intervalCount = INITIAL_INTERVAL_COUNT;
+        double step = (end - start) / intervalCount;
+        double[] values = new double[intervalCount + 1];
+        double[] derivatives = new double[intervalCount + 1];
+        for (int i = 0; i <= intervalCount; i++) {
+            values[i] = getExactValue(isGamma, parm1, parm2, start + i * step);
+            derivatives[i] = getDerivative(isGamma, parm1, parm2, logNormalizingConstant, start + i * step);
+        }
+
+        while(true) {
+            // exact values in the middle of the intervals, which become grid points if the grid is refined.
+            double[] middleValues = new double[intervalCount];
+            boolean isAccurate = true;
+            for (int i = 0; i < intervalCount; i++) {
+                middleValues[i] = getExactValue(isGamma, parm1, parm2, start + (i + 0.5) * step);
+                double interpolatedValue = interpolate(values[i], derivatives[i], values[i + 1], derivatives[i + 1], 0.5, step);
+                if(!(Math.abs(interpolatedValue - middleValues[i]) <= tolerance / 2))
+                    isAccurate = false;
+            }
+
+            if(isAccurate)
+                return new CumulativeDistributionTable(isGamma, parm1, parm2, start, step, values, derivatives);
+
+            if(intervalCount == MAX_INTERVAL_COUNT)
+                return emptyTable;
+
+            double[] refinedValues = new double[2 * intervalCount + 1];
+            double[] refinedDerivatives = new double[2 * intervalCount + 1];
+            for (int i = 0; i < intervalCount; i++) {
+                refinedValues[2 * i] = values[i];
+                refinedDerivatives[2 * i] = derivatives[i];
+                refinedValues[2 * i + 1] = middleValues[i];
+                refinedDerivatives[2 * i + 1] = getDerivative(isGamma, parm1, parm2, logNormalizingConstant,
+                        start + (i + 0.5) * step);
+            }
+            refinedValues[2 * intervalCount] = values[intervalCount];
+            refinedDerivatives[2 * intervalCount] = derivatives[intervalCount];
+
+            values = refinedValues;
+            derivatives = refinedDerivatives;
+            intervalCount *= 2;
+            step /= 2;
+        }
+    }
+
+    private static double getExactValue(boolean isGamma, double parm1, double parm2, double t) {
+        if(isGamma)
+            return Gamma.regularizedGammaP(parm2, Math.exp(t));
+        else if(t > 0) // through 1-x, which is not rounded to 0 when x is close to 1.
+            return 1 - Beta.regularizedBeta(1 / (1 + Math.exp(t)), parm2, parm1);
+        else
+            return Beta.regularizedBeta(1 / (1 + Math.exp(-t)), parm1, parm2);
+    }
+
+    /**
+     * Derivative of the cumulative distribution with respect to t.
+     */
+    private static double getDerivative(boolean isGamma, double parm1, double parm2, double logNormalizingConstant, double t) {
+        if(isGamma)
+            return Math.exp(parm2 * t - Math.exp(t) - logNormalizingConstant);
+        else
+            return Math.exp(-parm1 * Math.log1p(Math.exp(-t)) - parm2 * Math.log1p(Math.exp(t)) - logNormalizingConstant);
+    }
+}
@@ -6,6 +6,11 @@ import beast.core.Input;
 import beast.core.parameter.RealParameter;
 import BayesianCellClassifier.lineagetree.Cell;
 import BayesianCellClassifier.utils.Utils;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.special.Beta;
+import org.apache.commons.math3.special.Gamma;
+
+import java.util.Arrays;
 
 //TODO change name of class
 public class DistributionForMeasurement extends CalculationNode {
@@ -65,6 +70,15 @@ public class DistributionForMeasurement extends CalculationNode {
             "Default: false",
             false);
 
+    public Input<Double> cumulativeDistributionToleranceInput = new Input<>("cumulativeDistributionTolerance",
+            "Optional, only used by the gamma and beta distributions. " +
+            "If larger than 0, the cumulative distributions of incompletely observed measurements are interpolated " +
+            "in a table built for the current parameters of each cell type, with an absolute error below this tolerance. " +
+            "Values in the tails of the distribution are always evaluated exactly. " +
+            "Useful when many measurements are incomplete, since the table of a cell type is rebuilt when its parameters change. " +
+            "Default: 0 (exact cumulative distributions)",
+            0.0);
+
 
     DistributionType distributionType;
 
@@ -80,6 +94,44 @@ public class DistributionForMeasurement extends CalculationNode {
 
     public int numberOfCellTypes;
 
+    // how the measurement of a cell enters its probability, see prepareMeasurements.
+    static final int IGNORED_CELL = 0;
+    static final int DENSITY_CELL = 1;
+    static final int CUMULATIVE_CELL = 2;
+    static final int OPPOSITE_CUMULATIVE_CELL = 3;
+
+    // relative step of the finite differences used for the derivatives of incomplete gamma and beta functions.
+    static final double FINITE_DIFFERENCE_STEP = 1e-5;
+
+    // constant of the density of each cell type, see getDensityConstant.
+    DensityConstant[] densityConstants;
+
+    // 0 if cumulative distributions are evaluated exactly, see getTabulatedCumulativeDistribution.
+    double cumulativeDistributionTolerance;
+
+    // table of the cumulative distribution of each cell type, null if not built yet.
+    CumulativeDistributionTable[] cumulativeDistributionTables;
+
+    // sampler of the measurements of each cell type, see sample.
+    MeasurementSampler[] samplers;
+
+    /**
+     * Constant of the density of one cell type, with the parameter values it was calculated for.
+     * Entries are replaced and never modified, so that trees evaluated in parallel can share them.
+     */
+    private static final class DensityConstant {
+
+        final double parm1;
+        final double parm2;
+        final double value;
+
+        DensityConstant(double parm1, double parm2, double value) {
+            this.parm1 = parm1;
+            this.parm2 = parm2;
+            this.value = value;
+        }
+    }
+
     @Override
     public void initAndValidate() {
         if(parm1DistributionInput.get().getDimension() != parm2DistributionInput.get().getDimension())
@@ -88,6 +140,8 @@ public class DistributionForMeasurement extends CalculationNode {
 
         numberOfCellTypes = parm1DistributionInput.get().getDimension();
 
+        densityConstants = new DensityConstant[numberOfCellTypes];
+        samplers = new MeasurementSampler[numberOfCellTypes];
 
         // set hasZeroFraction to true if input zeroFraction is not null and if at least one of the values is not zero.
         // we assume that only scaling operators and that the zero fractions will stay 0 if they start at 0.
@@ -145,6 +199,13 @@ public class DistributionForMeasurement extends CalculationNode {
 
         measurementTag = measurementTagInput.get();
 
+        cumulativeDistributionTolerance = cumulativeDistributionToleranceInput.get();
+        if(!(cumulativeDistributionTolerance >= 0 && cumulativeDistributionTolerance < 1))
+            throw new IllegalArgumentException("Invalid cumulativeDistributionTolerance. It should be >= 0 and < 1.");
+        if(distributionType != DistributionType.GAMMA_MEAN_SHAPE && distributionType != DistributionType.BETA)
+            cumulativeDistributionTolerance = 0;
+        cumulativeDistributionTables = new CumulativeDistributionTable[numberOfCellTypes];
+
         isAppliedToRootCells = isAppliedToRootCellsInput.get();
 
         isAppliedToRootCellsOnly = isAppliedToRootCellsOnlyInput.get();
@@ -209,11 +270,13 @@ public class DistributionForMeasurement extends CalculationNode {
 
         if(measuredValue == 0 && hasZeroFraction) return zeroFractionInput.get().getArrayValue(cellType);
 
+        double parm1 = parm1DistributionInput.get().getArrayValue(cellType);
+        double parm2 = parm2DistributionInput.get().getArrayValue(cellType);
+
         switch(distributionType) {
             case WEIBULL_MEDIAN_SHAPE:
-                p *= Utils.getWeibullDensityMedianShapeParam(measuredValue,
-                        parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
+                p *= Utils.getWeibullDensityMedianShapeParam(measuredValue, parm1, parm2,
+                        getDensityConstant(cellType, parm1, parm2));
                 break;
             case WEIBULL_SCALE_SHAPE:
                 p *= Utils.getWeibullDensity(measuredValue,
@@ -221,24 +284,20 @@ public class DistributionForMeasurement extends CalculationNode {
                         parm2DistributionInput.get().getArrayValue(cellType));
                 break;
             case BETA:
-                p *= Utils.getBetaDensity(measuredValue,
-                        parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
+                p *= Utils.getBetaDensity(measuredValue, parm1, parm2,
+                        getDensityConstant(cellType, parm1, parm2));
                 break;
             case GAMMA_MEAN_SHAPE:
-                p *= Utils.getGammaDensityMeanShapeParam(measuredValue,
-                        parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
+                p *= Utils.getGammaDensityMeanShapeParam(measuredValue, parm1, parm2,
+                        getDensityConstant(cellType, parm1, parm2));
                 break;
             case LOGNORMAL:
-                p *= Utils.getLogNormalDensity(measuredValue,
-                        parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
+                p *= Utils.getLogNormalDensity(measuredValue, parm1, parm2,
+                        getDensityConstant(cellType, parm1, parm2));
                 break;
             case NORMAL:
-                p *= Utils.getNormalDensity(measuredValue,
-                        parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
+                p *= Utils.getNormalDensity(measuredValue, parm1, parm2,
+                        getDensityConstant(cellType, parm1, parm2));
                 break;
             default:
                 throw new IllegalArgumentException("Unknown distribution type");
@@ -257,7 +316,8 @@ public class DistributionForMeasurement extends CalculationNode {
             case WEIBULL_MEDIAN_SHAPE:
                 p += Utils.getWeibullCumulativeDistributionMedianShapeParam(measuredValue,
                         parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
+                        parm2DistributionInput.get().getArrayValue(cellType),
+                        getDensityConstant(cellType));
                 break;
             case WEIBULL_SCALE_SHAPE:
                 p += Utils.getWeibullCumulativeDistribution(measuredValue,
@@ -265,14 +325,8 @@ public class DistributionForMeasurement extends CalculationNode {
                         parm2DistributionInput.get().getArrayValue(cellType));
                 break;
             case BETA:
-                p += Utils.getBetaCumulativeDistribution(measuredValue,
-                        parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
-                break;
             case GAMMA_MEAN_SHAPE:
-                p += Utils.getGammaCumulativeDistributionMeanShapeParam(measuredValue,
-                        parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
+                p += getTabulatedCumulativeDistribution(measuredValue, cellType);
                 break;
             case LOGNORMAL:
                 p += Utils.getLogNormalCumulativeDistribution(measuredValue,
@@ -308,7 +362,8 @@ public class DistributionForMeasurement extends CalculationNode {
             case WEIBULL_MEDIAN_SHAPE:
                 p += 1- Utils.getWeibullCumulativeDistributionMedianShapeParam(measuredValue,
                         parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
+                        parm2DistributionInput.get().getArrayValue(cellType),
+                        getDensityConstant(cellType));
                 break;
             case WEIBULL_SCALE_SHAPE:
                 p += 1- Utils.getWeibullCumulativeDistribution(measuredValue,
@@ -316,14 +371,8 @@ public class DistributionForMeasurement extends CalculationNode {
                         parm2DistributionInput.get().getArrayValue(cellType));
                 break;
             case BETA:
-                p += 1- Utils.getBetaCumulativeDistribution(measuredValue,
-                        parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
-                break;
             case GAMMA_MEAN_SHAPE:
-                p += 1- Utils.getGammaCumulativeDistributionMeanShapeParam(measuredValue,
-                        parm1DistributionInput.get().getArrayValue(cellType),
-                        parm2DistributionInput.get().getArrayValue(cellType));
+                p += 1- getTabulatedCumulativeDistribution(measuredValue, cellType);
                 break;
             case LOGNORMAL:
                 p += 1- Utils.getLogNormalCumulativeDistribution(measuredValue,
@@ -350,6 +399,463 @@ public class DistributionForMeasurement extends CalculationNode {
         return p;
     }
 
+    /**
+     * Constant part of the density of cell type cellType, which only depends on the parameters of the type:
+     * the scale parameter lambda for Weibull distributions, log(B(alpha, beta)) for beta distributions,
+     * log(Gamma(k)) for gamma distributions and 1/(sigma sqrt(2 pi)) for normal and lognormal distributions.
+     * It is only recalculated when the parameters of the type change.
+     * Not defined for parameters outside of the domain of the distribution.
+     */
+    double getDensityConstant(int cellType, double parm1, double parm2) {
+
+        DensityConstant densityConstant = densityConstants[cellType];
+        if(densityConstant != null && densityConstant.parm1 == parm1 && densityConstant.parm2 == parm2)
+            return densityConstant.value;
+
+        double value;
+        switch(distributionType) {
+            case WEIBULL_MEDIAN_SHAPE:
+                value = Utils.getWeibullScaleFromMedian(parm1, parm2);
+                break;
+            case WEIBULL_SCALE_SHAPE:
+                value = parm1;
+                break;
+            case BETA:
+                value = Beta.logBeta(parm1, parm2);
+                break;
+            case GAMMA_MEAN_SHAPE:
+                value = Gamma.logGamma(parm2);
+                break;
+            case LOGNORMAL:
+            case NORMAL:
+                value = Utils.getNormalNormalizingConstant(parm2);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown distribution type");
+        }
+
+        densityConstants[cellType] = new DensityConstant(parm1, parm2, value);
+        return value;
+    }
+
+    double getDensityConstant(int cellType) {
+        return getDensityConstant(cellType, parm1DistributionInput.get().getArrayValue(cellType),
+                parm2DistributionInput.get().getArrayValue(cellType));
+    }
+
+    /**
+     * Cumulative distribution of the gamma or beta distribution of cell type cellType at measuredValue.
+     * If cumulativeDistributionTolerance is larger than 0, it is interpolated in the table of the current parameters
+     * of the type (see CumulativeDistributionTable), which is only rebuilt when these parameters change.
+     * Values outside of the table, in the tails of the distribution, and parameters for which no table
+     * meets the tolerance, go through the exact functions.
+     */
+    private double getTabulatedCumulativeDistribution(double measuredValue, int cellType) {
+
+        double parm1 = parm1DistributionInput.get().getArrayValue(cellType);
+        double parm2 = parm2DistributionInput.get().getArrayValue(cellType);
+        boolean isGamma = distributionType == DistributionType.GAMMA_MEAN_SHAPE;
+
+        if(cumulativeDistributionTolerance > 0 && measuredValue > 0 && parm1 > 0 && parm2 > 0
+                && (isGamma || measuredValue < 1)) {
+
+            CumulativeDistributionTable table = cumulativeDistributionTables[cellType];
+            if(table == null || !table.isFor(parm1, parm2)) {
+                table = isGamma ? CumulativeDistributionTable.forGamma(parm2, cumulativeDistributionTolerance) :
+                        CumulativeDistributionTable.forBeta(parm1, parm2, cumulativeDistributionTolerance);
+                cumulativeDistributionTables[cellType] = table;
+            }
+
+            double t = isGamma ? Math.log(parm2 * measuredValue / parm1) :
+                    Math.log(measuredValue) - Math.log1p(-measuredValue);
+            double p = table.getValue(t);
+            if(!Double.isNaN(p))
+                return p;
+        }
+
+        if(isGamma)
+            return Utils.getGammaCumulativeDistributionMeanShapeParam(measuredValue, parm1, parm2);
+        else
+            return Utils.getBetaCumulativeDistribution(measuredValue, parm1, parm2);
+    }
+
+    /**
+     * Prepare the measurements of this distribution on a set of cells for getProbabilities.
+     * Arrays are indexed by cell. The values are copied, NaN marks missing measurements.
+     * Which cells the measurement applies to, and whether it enters the likelihood through the density or the
+     * cumulative distribution, is decided here once, as in getProbability.
+     */
+    public PreparedMeasurements prepareMeasurements(double[] measuredValues, boolean[] isIncompleteObservation,
+                                                    Cell.Fate[] cellFates, boolean[] isRootCell) {
+
+        int cellCount = measuredValues.length;
+        int[] cellKinds = new int[cellCount];
+        int[] kindCounts = new int[4];
+        for (int cellIdx = 0; cellIdx < cellCount; cellIdx++) {
+            int kind;
+            if(Double.isNaN(measuredValues[cellIdx]) || (isRootCell[cellIdx] && !isAppliedToRootCells)
+                    || (!isRootCell[cellIdx] && isAppliedToRootCellsOnly))
+                kind = IGNORED_CELL;
+            else if(estimateType == EstimateType.MEAN || !(isIncompleteObservation[cellIdx] || cellFates[cellIdx] == Cell.Fate.U))
+                kind = DENSITY_CELL;
+            else
+                kind = estimateType == EstimateType.MIN ? CUMULATIVE_CELL : OPPOSITE_CUMULATIVE_CELL;
+            cellKinds[cellIdx] = kind;
+            kindCounts[kind]++;
+        }
+
+        int[][] cellsOfKind = new int[4][];
+        for (int kind = 0; kind < 4; kind++)
+            cellsOfKind[kind] = new int[kindCounts[kind]];
+        Arrays.fill(kindCounts, 0);
+        for (int cellIdx = 0; cellIdx < cellCount; cellIdx++)
+            cellsOfKind[cellKinds[cellIdx]][kindCounts[cellKinds[cellIdx]]++] = cellIdx;
+
+        double[] values = measuredValues.clone();
+        double[] logValues = null;
+        double[] inverseValues = null;
+        double[] logOneMinusValues = null;
+        if(distributionType != DistributionType.NORMAL) {
+            logValues = new double[cellCount];
+            for (int cellIdx = 0; cellIdx < cellCount; cellIdx++)
+                logValues[cellIdx] = values[cellIdx] > 0 ? Math.log(values[cellIdx]) : Double.NaN;
+        }
+        if(distributionType == DistributionType.LOGNORMAL) {
+            inverseValues = new double[cellCount];
+            for (int cellIdx = 0; cellIdx < cellCount; cellIdx++)
+                inverseValues[cellIdx] = 1.0 / values[cellIdx];
+        }
+        if(distributionType == DistributionType.BETA) {
+            logOneMinusValues = new double[cellCount];
+            for (int cellIdx = 0; cellIdx < cellCount; cellIdx++)
+                logOneMinusValues[cellIdx] = values[cellIdx] < 1 ? Math.log1p(-values[cellIdx]) : Double.NaN;
+        }
+
+        return new PreparedMeasurements(values, cellsOfKind[IGNORED_CELL], cellsOfKind[DENSITY_CELL],
+                cellsOfKind[CUMULATIVE_CELL], cellsOfKind[OPPOSITE_CUMULATIVE_CELL],
+                logValues, inverseValues, logOneMinusValues);
+    }
+
+    /**
+     * Batched version of getProbability over all prepared cells and all cell types:
+     * probabilities[cellIdx * numberOfCellTypes + cellType] is set to the probability of the measurement of cell cellIdx
+     * given that it is of type cellType. The parameters are read once per type, and the densities are calculated from the
+     * precomputed transforms of the measured values.
+     * Values for which the transforms are not defined (e.g. at the boundaries of the support) go through getProbability.
+     */
+    public void getProbabilities(PreparedMeasurements measurements, double[] probabilities) {
+
+        for (int cellType = 0; cellType < numberOfCellTypes; cellType++) {
+            for (int cellIdx : measurements.ignoredCells)
+                probabilities[cellIdx * numberOfCellTypes + cellType] = 1.0;
+
+            getProbabilityDensities(measurements, cellType, probabilities);
+
+            for (int cellIdx : measurements.cumulativeCells)
+                probabilities[cellIdx * numberOfCellTypes + cellType] = getCumulativeDistribution(measurements.values[cellIdx], cellType);
+            for (int cellIdx : measurements.oppositeCumulativeCells)
+                probabilities[cellIdx * numberOfCellTypes + cellType] = getOppositeCumulativeDistribution(measurements.values[cellIdx], cellType);
+        }
+    }
+
+    private void getProbabilityDensities(PreparedMeasurements measurements, int cellType, double[] probabilities) {
+
+        int[] cells = measurements.densityCells;
+        double[] values = measurements.values;
+        double[] logValues = measurements.logValues;
+        double parm1 = parm1DistributionInput.get().getArrayValue(cellType);
+        double parm2 = parm2DistributionInput.get().getArrayValue(cellType);
+        // values at zero, which carry the zero fraction, go through getProbabilityDensity.
+        double nonZeroFraction = hasZeroFraction ? 1 - zeroFractionInput.get().getArrayValue(cellType) : 1;
+
+        switch(distributionType) {
+            case WEIBULL_MEDIAN_SHAPE:
+            case WEIBULL_SCALE_SHAPE: {
+                if(parm1 <= 0 || parm2 <= 0) {
+                    getScalarProbabilityDensities(measurements, cellType, probabilities);
+                    return;
+                }
+                double k = parm2;
+                double lambda = distributionType == DistributionType.WEIBULL_SCALE_SHAPE ? parm1 :
+                        getDensityConstant(cellType, parm1, parm2);
+                double logLambda = Math.log(lambda);
+                for (int cellIdx : cells) {
+                    if(values[cellIdx] > 0) {
+                        double u = logValues[cellIdx] - logLambda;
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = nonZeroFraction * k / lambda * Math.exp((k - 1) * u - Math.exp(k * u));
+                    }
+                    else
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = getProbabilityDensity(values[cellIdx], cellType);
+                }
+                break;
+            }
+            case BETA: {
+                if(parm1 <= 0 || parm2 <= 0) {
+                    getScalarProbabilityDensities(measurements, cellType, probabilities);
+                    return;
+                }
+                double logBeta = getDensityConstant(cellType, parm1, parm2);
+                double[] logOneMinusValues = measurements.logOneMinusValues;
+                for (int cellIdx : cells) {
+                    if(values[cellIdx] > 0 && values[cellIdx] < 1)
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = nonZeroFraction *
+                                Math.exp((parm1 - 1) * logValues[cellIdx] + (parm2 - 1) * logOneMinusValues[cellIdx] - logBeta);
+                    else
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = getProbabilityDensity(values[cellIdx], cellType);
+                }
+                break;
+            }
+            case GAMMA_MEAN_SHAPE: {
+                if(parm1 <= 0 || parm2 <= 0) {
+                    getScalarProbabilityDensities(measurements, cellType, probabilities);
+                    return;
+                }
+                double rate = parm2 / parm1;
+                double logConstant = parm2 * Math.log(rate) - getDensityConstant(cellType, parm1, parm2);
+                for (int cellIdx : cells) {
+                    if(values[cellIdx] > 0)
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = nonZeroFraction *
+                                Math.exp((parm2 - 1) * logValues[cellIdx] - rate * values[cellIdx] + logConstant);
+                    else
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = getProbabilityDensity(values[cellIdx], cellType);
+                }
+                break;
+            }
+            case LOGNORMAL: {
+                double normalizingConstant = nonZeroFraction * getDensityConstant(cellType, parm1, parm2);
+                double twoVariance = 2 * parm2 * parm2;
+                double[] inverseValues = measurements.inverseValues;
+                for (int cellIdx : cells) {
+                    if(values[cellIdx] > 0) {
+                        double logDifference = logValues[cellIdx] - parm1;
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = normalizingConstant * inverseValues[cellIdx] *
+                                Math.exp(-logDifference * logDifference / twoVariance);
+                    }
+                    else
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = getProbabilityDensity(values[cellIdx], cellType);
+                }
+                break;
+            }
+            case NORMAL: {
+                double normalizingConstant = getDensityConstant(cellType, parm1, parm2);
+                double twoVariance = 2 * parm2 * parm2;
+                for (int cellIdx : cells) {
+                    if(values[cellIdx] != 0 || !hasZeroFraction) {
+                        double difference = values[cellIdx] - parm1;
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = nonZeroFraction * normalizingConstant *
+                                Math.exp(-difference * difference / twoVariance);
+                    }
+                    else
+                        probabilities[cellIdx * numberOfCellTypes + cellType] = getProbabilityDensity(values[cellIdx], cellType);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown distribution type");
+        }
+    }
+
+    /**
+     * Densities of all density cells through getProbabilityDensity, for parameters outside of the domain of the fast path.
+     */
+    private void getScalarProbabilityDensities(PreparedMeasurements measurements, int cellType, double[] probabilities) {
+        for (int cellIdx : measurements.densityCells)
+            probabilities[cellIdx * numberOfCellTypes + cellType] = getProbabilityDensity(measurements.values[cellIdx], cellType);
+    }
+
+    /**
+     * Derivatives of the log of getProbability with respect to parm1, parm2 and zeroFraction for the given cell type,
+     * written to gradient[0], gradient[1] and gradient[2].
+     * Derivatives are analytical, except for the derivatives of the cumulative distributions of the gamma and beta
+     * distributions with respect to their shape parameters, which are taken by central finite differences.
+     * All derivatives are 0 where the probability is 0 or does not depend on the parameters.
+     */
+    public void getLogProbabilityGradient(double measuredValue, int cellType, boolean isIncompleteObservation, Cell.Fate cellFate,
+                                          boolean isRootCell, double[] gradient) {
+
+        gradient[0] = 0;
+        gradient[1] = 0;
+        gradient[2] = 0;
+
+        if(Double.isNaN(measuredValue) || (isRootCell && !isAppliedToRootCells) || (!isRootCell && isAppliedToRootCellsOnly))
+            return;
+
+        if(estimateType == EstimateType.MEAN || !(isIncompleteObservation || cellFate == Cell.Fate.U)) {
+            getLogProbabilityDensityGradient(measuredValue, cellType, gradient);
+            return;
+        }
+
+        double p = getCumulativeDistributionGradient(measuredValue, cellType, gradient);
+        double zeroMass = 0;
+        if(estimateType == EstimateType.MAX) {
+            p = 1 - p;
+            gradient[0] = -gradient[0];
+            gradient[1] = -gradient[1];
+            zeroMass = measuredValue == 0 ? 1 : 0;
+        }
+        else if(measuredValue >= 0) {
+            zeroMass = 1;
+        }
+
+        if(hasZeroFraction) {
+            double zeroFraction = zeroFractionInput.get().getArrayValue(cellType);
+            p += zeroMass * zeroFraction;
+            if(p > 0)
+                gradient[2] = zeroMass / p - 1 / (1 + zeroFraction);
+        }
+
+        if(p > 0) {
+            gradient[0] /= p;
+            gradient[1] /= p;
+        }
+        else {
+            gradient[0] = 0;
+            gradient[1] = 0;
+        }
+    }
+
+    private void getLogProbabilityDensityGradient(double x, int cellType, double[] gradient) {
+
+        if(hasZeroFraction) {
+            double zeroFraction = zeroFractionInput.get().getArrayValue(cellType);
+            if(x == 0) {
+                gradient[2] = 1 / zeroFraction;
+                return;
+            }
+            gradient[2] = -1 / (1 - zeroFraction);
+        }
+
+        double parm1 = parm1DistributionInput.get().getArrayValue(cellType);
+        double parm2 = parm2DistributionInput.get().getArrayValue(cellType);
+
+        switch(distributionType) {
+            case WEIBULL_MEDIAN_SHAPE: {
+                if(x <= 0 || parm1 <= 0 || parm2 <= 0)
+                    break;
+                double lambda = getDensityConstant(cellType, parm1, parm2);
+                double t = Math.pow(x / lambda, parm2);
+                double dLambda = parm2 / lambda * (t - 1);
+                gradient[0] = dLambda * lambda / parm1;
+                gradient[1] = 1 / parm2 + Math.log(x / lambda) * (1 - t) + dLambda * lambda * Math.log(Math.log(2)) / (parm2 * parm2);
+                break;
+            }
+            case WEIBULL_SCALE_SHAPE: {
+                if(x <= 0)
+                    break;
+                double t = Math.pow(x / parm1, parm2);
+                gradient[0] = parm2 / parm1 * (t - 1);
+                gradient[1] = 1 / parm2 + Math.log(x / parm1) * (1 - t);
+                break;
+            }
+            case BETA: {
+                if(x <= 0 || x >= 1 || parm1 <= 0 || parm2 <= 0)
+                    break;
+                double digammaSum = Gamma.digamma(parm1 + parm2);
+                gradient[0] = Math.log(x) - Gamma.digamma(parm1) + digammaSum;
+                gradient[1] = Math.log(1 - x) - Gamma.digamma(parm2) + digammaSum;
+                break;
+            }
+            case GAMMA_MEAN_SHAPE: {
+                if(x <= 0 || parm1 <= 0 || parm2 <= 0)
+                    break;
+                gradient[0] = parm2 / parm1 * (x / parm1 - 1);
+                gradient[1] = Math.log(parm2 * x / parm1) + 1 - x / parm1 - Gamma.digamma(parm2);
+                break;
+            }
+            case LOGNORMAL: {
+                if(x <= 0)
+                    break;
+                double z = (Math.log(x) - parm1) / parm2;
+                gradient[0] = z / parm2;
+                gradient[1] = (z * z - 1) / parm2;
+                break;
+            }
+            case NORMAL: {
+                double z = (x - parm1) / parm2;
+                gradient[0] = z / parm2;
+                gradient[1] = (z * z - 1) / parm2;
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown distribution type");
+        }
+    }
+
+    /**
+     * Writes the derivatives of the cumulative distribution with respect to parm1 and parm2 to gradient[0] and gradient[1].
+     * @return the cumulative distribution, without zero fraction.
+     */
+    private double getCumulativeDistributionGradient(double x, int cellType, double[] gradient) {
+
+        double parm1 = parm1DistributionInput.get().getArrayValue(cellType);
+        double parm2 = parm2DistributionInput.get().getArrayValue(cellType);
+
+        switch(distributionType) {
+            case WEIBULL_MEDIAN_SHAPE: {
+                if(x <= 0 || parm1 <= 0 || parm2 <= 0)
+                    return 0;
+                double lambda = getDensityConstant(cellType, parm1, parm2);
+                double t = Math.pow(x / lambda, parm2);
+                double survival = Math.exp(-t);
+                double dLambda = -survival * parm2 * t / lambda;
+                gradient[0] = dLambda * lambda / parm1;
+                gradient[1] = survival * t * Math.log(x / lambda) + dLambda * lambda * Math.log(Math.log(2)) / (parm2 * parm2);
+                return 1 - survival;
+            }
+            case WEIBULL_SCALE_SHAPE: {
+                if(x <= 0)
+                    return 0;
+                double t = Math.pow(x / parm1, parm2);
+                double survival = Math.exp(-t);
+                gradient[0] = -survival * parm2 * t / parm1;
+                gradient[1] = survival * t * Math.log(x / parm1);
+                return 1 - survival;
+            }
+            case BETA: {
+                if(x < 0 || x > 1 || parm1 <= 0 || parm2 <= 0)
+                    return 0;
+                double h1 = FINITE_DIFFERENCE_STEP * parm1;
+                double h2 = FINITE_DIFFERENCE_STEP * parm2;
+                gradient[0] = (Utils.getBetaCumulativeDistribution(x, parm1 + h1, parm2)
+                        - Utils.getBetaCumulativeDistribution(x, parm1 - h1, parm2)) / (2 * h1);
+                gradient[1] = (Utils.getBetaCumulativeDistribution(x, parm1, parm2 + h2)
+                        - Utils.getBetaCumulativeDistribution(x, parm1, parm2 - h2)) / (2 * h2);
+                return Utils.getBetaCumulativeDistribution(x, parm1, parm2);
+            }
+            case GAMMA_MEAN_SHAPE: {
+                if(x <= 0 || parm1 <= 0 || parm2 <= 0)
+                    return 0;
+                // F = P(k, k*x/mu), with P the regularized lower incomplete gamma function.
+                double y = parm2 * x / parm1;
+                double density = Math.exp((parm2 - 1) * Math.log(y) - y - getDensityConstant(cellType, parm1, parm2));
+                double h = FINITE_DIFFERENCE_STEP * parm2;
+                gradient[0] = -density * y / parm1;
+                gradient[1] = (Gamma.regularizedGammaP(parm2 + h, y) - Gamma.regularizedGammaP(parm2 - h, y)) / (2 * h)
+                        + density * x / parm1;
+                return Gamma.regularizedGammaP(parm2, y);
+            }
+            case LOGNORMAL: {
+                if(x <= 0)
+                    return 0;
+                // derivatives of Utils.getLogNormalCumulativeDistribution, which is the normal cumulative distribution at u.
+                double u = (Math.log(x) + parm1) / parm2;
+                double density = Math.exp(-u * u / 2) / Math.sqrt(2 * Math.PI);
+                gradient[0] = density / parm2;
+                gradient[1] = -density * u / parm2;
+                return Utils.getLogNormalCumulativeDistribution(x, parm1, parm2);
+            }
+            case NORMAL: {
+                double z = (x - parm1) / parm2;
+                double density = Math.exp(-z * z / 2) / Math.sqrt(2 * Math.PI);
+                gradient[0] = -density / parm2;
+                gradient[1] = -density * z / parm2;
+                return Utils.getNormalCumulativeDistribution(x, parm1, parm2);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown distribution type");
+        }
+    }
+
     public String getMeasurementTag(){
         return measurementTag;
     }
@@ -379,6 +885,23 @@ public class DistributionForMeasurement extends CalculationNode {
         return parm2DistributionInput.get().getArrayValue(cellType);
     }
 
+    /**
+     * Draw a measurement of a cell of type cellType from random, 0 with the zero fraction of the type.
+     * The sampler of a type is only rebuilt when the parameters of the type change, and draws do not allocate objects.
+     */
+    public double sample(int cellType, RandomGenerator random) {
+        double parm1 = getParm1(cellType);
+        double parm2 = getParm2(cellType);
+        double zeroFraction = getZeroFraction(cellType);
+
+        MeasurementSampler sampler = samplers[cellType];
+        if(sampler == null || !sampler.isFor(parm1, parm2, zeroFraction)) {
+            sampler = new MeasurementSampler(distributionType, parm1, parm2, zeroFraction);
+            samplers[cellType] = sampler;
+        }
+        return sampler.sample(random);
+    }
+
     public int getNumberOfCellTypes(){
         return numberOfCellTypes;
     }
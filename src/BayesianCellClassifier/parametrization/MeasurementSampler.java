@@ -0,0 +1,161 @@
+package BayesianCellClassifier.parametrization;
+
+import BayesianCellClassifier.utils.Utils;
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * Draws measurements from the distribution of one cell type, with its zero fraction, using a random generator
+ * given by the caller. The constants of the distribution are computed once, and draws do not allocate objects.
+ * Gamma values are drawn with the method of Marsaglia and Tsang, beta values as ratios of gamma values,
+ * and Weibull values by inversion of the cumulative distribution.
+ * Samplers are immutable, so that trees simulated in parallel can share them (see DistributionForMeasurement.sample).
+ */
+public class MeasurementSampler {
+
+    final DistributionForMeasurement.DistributionType distributionType;
+
+    // parameters the sampler was built for.
+    final double parm1;
+    final double parm2;
+    final double zeroFraction;
+
+    // scale of the drawn values: sigma for normal and lognormal distributions, mean/shape for gamma distributions,
+    // and the scale parameter lambda for Weibull distributions.
+    final double scale;
+    // 1/k for Weibull distributions.
+    final double inverseShape;
+
+    // gamma distributions drawn: the gamma distribution itself, or the distributions of alpha and beta for beta distributions.
+    final GammaShape gammaShape1;
+    final GammaShape gammaShape2;
+
+    /**
+     * Constants of the method of Marsaglia and Tsang for shape k.
+     * Shapes below 1 are drawn from the shape k+1, multiplied by U^(1/k).
+     */
+    private static final class GammaShape {
+
+        final boolean isBoosted;
+        final double d;
+        final double c;
+        final double inverseShape;
+
+        GammaShape(double k) {
+            if(!(k > 0) || Double.isInfinite(k))
+                throw new IllegalArgumentException("Shape parameters of gamma and beta distributions must be positive.");
+            isBoosted = k < 1;
+            d = (isBoosted ? k + 1 : k) - 1.0 / 3;
+            c = 1 / Math.sqrt(9 * d);
+            inverseShape = 1 / k;
+        }
+
+        /**
+         * Logarithm of a gamma value with this shape and scale 1, which does not underflow for small shapes.
+         */
+        double sampleLog(RandomGenerator random) {
+            double logValue = Math.log(sampleWithShapeAboveOne(random));
+            if(isBoosted)
+                logValue += Math.log(1 - random.nextDouble()) * inverseShape; // U in (0, 1]
+            return logValue;
+        }
+
+        double sample(RandomGenerator random) {
+            return isBoosted ? Math.exp(sampleLog(random)) : sampleWithShapeAboveOne(random);
+        }
+
+        /**
+         * Gamma value with shape d + 1/3 and scale 1.
+         */
+        private double sampleWithShapeAboveOne(RandomGenerator random) {
+            while(true) {
+                double x, v;
+                do {
+                    x = random.nextGaussian();
+                    v = 1 + c * x;
+                } while(v <= 0);
+                v = v * v * v;
+                double u = random.nextDouble();
+                double x2 = x * x;
+                if(u < 1 - 0.0331 * x2 * x2 || Math.log(u) < 0.5 * x2 + d * (1 - v + Math.log(v)))
+                    return d * v;
+            }
+        }
+    }
+
+    public MeasurementSampler(DistributionForMeasurement.DistributionType distributionType,
+                              double parm1, double parm2, double zeroFraction) {
+
+        if(!(zeroFraction >= 0 && zeroFraction <= 1))
+            throw new IllegalArgumentException("Zero fraction must be between 0 and 1.");
+
+        this.distributionType = distributionType;
+        this.parm1 = parm1;
+        this.parm2 = parm2;
+        this.zeroFraction = zeroFraction;
+
+        double scale = Double.NaN;
+        double inverseShape = Double.NaN;
+        GammaShape gammaShape1 = null;
+        GammaShape gammaShape2 = null;
+        switch (distributionType) {
+            case NORMAL:
+            case LOGNORMAL:
+                if(!(parm2 > 0))
+                    throw new IllegalArgumentException("Standard deviation of normal and lognormal distributions must be positive.");
+                scale = parm2;
+                break;
+            case GAMMA_MEAN_SHAPE:
+                gammaShape1 = new GammaShape(parm2);
+                scale = parm1 / parm2;
+                break;
+            case BETA:
+                gammaShape1 = new GammaShape(parm1);
+                gammaShape2 = new GammaShape(parm2);
+                break;
+            case WEIBULL_SCALE_SHAPE:
+            case WEIBULL_MEDIAN_SHAPE:
+                if(!(parm1 > 0 && parm2 > 0))
+                    throw new IllegalArgumentException("Parameters of Weibull distributions must be positive.");
+                scale = distributionType == DistributionForMeasurement.DistributionType.WEIBULL_SCALE_SHAPE ?
+                        parm1 : Utils.getWeibullScaleFromMedian(parm1, parm2);
+                inverseShape = 1 / parm2;
+                break;
+            default:
+                throw new IllegalArgumentException("Distribution type not implemented yet in simulation.");
+        }
+        this.scale = scale;
+        this.inverseShape = inverseShape;
+        this.gammaShape1 = gammaShape1;
+        this.gammaShape2 = gammaShape2;
+    }
+
+    /**
+     * Whether the sampler was built for these parameters of the distribution.
+     */
+    public boolean isFor(double parm1, double parm2, double zeroFraction) {
+        return parm1 == this.parm1 && parm2 == this.parm2 && zeroFraction == this.zeroFraction;
+    }
+
+    /**
+     * Draw a value from random: 0 with probability zeroFraction, otherwise a value of the distribution.
+     */
+    public double sample(RandomGenerator random) {
+
+        if(zeroFraction > 0 && random.nextDouble() < zeroFraction)
+            return 0.0;
+
+        switch (distributionType) {
+            case NORMAL:
+                return parm1 + scale * random.nextGaussian();
+            case LOGNORMAL:
+                return Math.exp(parm1 + scale * random.nextGaussian());
+            case GAMMA_MEAN_SHAPE:
+                return scale * gammaShape1.sample(random);
+            case BETA:
+                // X/(X+Y) for gamma values X and Y, from their logarithms so that small shapes do not give 0/0.
+                return 1 / (1 + Math.exp(gammaShape2.sampleLog(random) - gammaShape1.sampleLog(random)));
+            default: // Weibull distributions, 1-U in (0, 1].
+                return scale * Math.pow(-Math.log(1 - random.nextDouble()), inverseShape);
+        }
+    }
+}
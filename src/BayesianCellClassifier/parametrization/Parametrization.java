@@ -7,6 +7,7 @@ import beast.core.parameter.RealParameter;
 import BayesianCellClassifier.lineagetree.Cell;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -61,6 +62,20 @@ public class Parametrization extends CalculationNode {
 
     SortedSet<String> uniqueMeasurementTags;
 
+    // transitionTensor[generationIdx][typeMother][typeChild1][typeChild2] holds the values of getTransitionProbability,
+    // expanded to both orders of the daughter types.
+    // There is a single generation index if transition probabilities are not generation-specific.
+    double[][][][] transitionTensor;
+    // transition probabilities for trees of known type when kinship is ignored: all equal to 1.
+    double[][][] unitTransitionProbabilities;
+    double[][][][] unitTransitionTensor;
+    // packedTransitionProbs[generationIdx][typeMother][getPairIndex(typeChild1, typeChild2)]: the same values,
+    // stored once per unordered pair of daughter types.
+    double[][][] packedTransitionProbs;
+    double[][] unitPackedTransitionProbs;
+    boolean transitionTensorIsDirty;
+    boolean transitionTensorChangedSinceStore;
+
     @Override
     public void initAndValidate() {
 
@@ -142,6 +157,23 @@ public class Parametrization extends CalculationNode {
 
         if(lossProbInput.get() != null && lossProbInput.get().getDimension() != 1)
             throw new IllegalArgumentException("lossProb must be of dimension 1.");
+
+        int numberOfGenerationIndices = haveGenerationSpecificTransitionProbsInput.get() ?
+                transitionUponDivisionProbsInput.get().size() / numberOfCellTypes : 1;
+        transitionTensor = new double[numberOfGenerationIndices][numberOfCellTypes][numberOfCellTypes][numberOfCellTypes];
+        unitTransitionProbabilities = new double[numberOfCellTypes][numberOfCellTypes][numberOfCellTypes];
+        for (double[][] motherProbs : unitTransitionProbabilities) {
+            for (double[] child1Probs : motherProbs)
+                Arrays.fill(child1Probs, 1.0);
+        }
+        unitTransitionTensor = new double[numberOfGenerationIndices][][][];
+        Arrays.fill(unitTransitionTensor, unitTransitionProbabilities);
+        int numberOfTypePairs = numberOfCellTypes * (numberOfCellTypes + 1) / 2;
+        packedTransitionProbs = new double[numberOfGenerationIndices][numberOfCellTypes][numberOfTypePairs];
+        unitPackedTransitionProbs = new double[numberOfCellTypes][numberOfTypePairs];
+        for (double[] motherProbs : unitPackedTransitionProbs)
+            Arrays.fill(motherProbs, 1.0);
+        transitionTensorIsDirty = true;
     }
 
     public List<DistributionForMeasurement> getDistributions() {
@@ -194,6 +226,169 @@ public class Parametrization extends CalculationNode {
 
     }
     
+    /**
+     * Returns all transition probabilities as a read-only [generationIdx][typeMother][typeChild1][typeChild2] tensor,
+     * with the same values as getTransitionProbability.
+     * Use getTransitionTensorIndex to get the generation index of a mother cell.
+     * The tensor is rebuilt only when transitionUponDivisionProbs, typeFrequencies or ignoreKinshipInfo have changed.
+     * @param isTreeOfKnowType
+     * @return
+     */
+    public double[][][][] getTransitionTensor(boolean isTreeOfKnowType) {
+        if(isTreeOfKnowType && ignoreKinshipInfoInput.get().getValue())
+            return unitTransitionTensor;
+
+        if(transitionTensorIsDirty)
+            updateTransitionTensor();
+
+        return transitionTensor;
+    }
+
+    /**
+     * Returns the read-only [typeMother][typeChild1][typeChild2] array of transition probabilities
+     * for mothers at generation generationMother, with the same values as getTransitionProbability.
+     * @param generationMother
+     * @param isTreeOfKnowType
+     * @return
+     */
+    public double[][][] getTransitionProbabilities(int generationMother, boolean isTreeOfKnowType) {
+        if(isTreeOfKnowType && ignoreKinshipInfoInput.get().getValue())
+            return unitTransitionProbabilities;
+
+        if(transitionTensorIsDirty)
+            updateTransitionTensor();
+
+        return transitionTensor[getTransitionTensorIndex(generationMother)];
+    }
+
+    /**
+     * Returns the read-only [typeMother][pairIndex] array of transition probabilities for mothers at generation
+     * generationMother, with one element per unordered pair of daughter types (see getPairIndex).
+     * Elements are equal to getTransitionProbability(typeMother, typeChild1, typeChild2, ...) for either order
+     * of the daughter types, so that the sum over all ordered pairs of daughter types of T[i][j][k]*a[j]*b[k]
+     * is the sum over unordered pairs of T[i][j][k]*(a[j]*b[k] + a[k]*b[j]), without the second term on the diagonal.
+     * @param generationMother
+     * @param isTreeOfKnowType
+     * @return
+     */
+    public double[][] getPackedTransitionProbabilities(int generationMother, boolean isTreeOfKnowType) {
+        if(isTreeOfKnowType && ignoreKinshipInfoInput.get().getValue())
+            return unitPackedTransitionProbs;
+
+        if(transitionTensorIsDirty)
+            updateTransitionTensor();
+
+        return packedTransitionProbs[getTransitionTensorIndex(generationMother)];
+    }
+
+    /**
+     * Index of the unordered pair of daughter types (typeChild1, typeChild2) in the flattened upper triangle,
+     * the same indexing as in the transitionUponDivisionProbs vectors.
+     */
+    public int getPairIndex(int typeChild1, int typeChild2) {
+        if(typeChild1 > typeChild2)
+            return numberOfCellTypes * typeChild2 + typeChild1 - typeChild2 * (typeChild2 + 1) / 2;
+        return numberOfCellTypes * typeChild1 + typeChild2 - typeChild1 * (typeChild1 + 1) / 2;
+    }
+
+    /**
+     * Brings the cached transition probabilities up to date,
+     * so that they can then be read concurrently by several threads.
+     */
+    public void updateCaches() {
+        if(transitionTensorIsDirty)
+            updateTransitionTensor();
+    }
+
+    /**
+     * Marks all cached values as out of date, for callers changing the parameters
+     * without the changes being propagated through requiresRecalculation.
+     */
+    public void invalidateCaches() {
+        transitionTensorIsDirty = true;
+    }
+
+    /**
+     * Number of generations of mother cells with their own transition probabilities,
+     * 1 if transition probabilities are not generation-specific.
+     */
+    public int getNumberOfGenerationIndices() {
+        return transitionTensor.length;
+    }
+
+    public int getTransitionTensorIndex(int generationMother) {
+        // the root cell is, by convention, at generation number 1.
+        return haveGenerationSpecificTransitionProbsInput.get() ? generationMother - 1 : 0;
+    }
+
+    void updateTransitionTensor() {
+
+        boolean ignoreKinshipInfo = ignoreKinshipInfoInput.get().getValue();
+
+        for (int generationIdx = 0; generationIdx < transitionTensor.length; generationIdx++) {
+            for (int i = 0; i < numberOfCellTypes; i++) {
+                RealParameter transitionProbs = transitionUponDivisionProbsInput.get().get(i + numberOfCellTypes * generationIdx);
+                for (int j = 0; j < numberOfCellTypes; j++) {
+                    for (int k = j; k < numberOfCellTypes; k++) {
+                        double transitionProb;
+                        if(ignoreKinshipInfo)
+                            transitionProb = typeFrequenciesInput.get().getArrayValue(j) * typeFrequenciesInput.get().getArrayValue(k);
+                        else if(j != k)
+                            transitionProb = transitionProbs.getArrayValue(numberOfCellTypes * j + k - j * (j + 1) / 2) * 0.5;
+                        else
+                            transitionProb = transitionProbs.getArrayValue(numberOfCellTypes * j + k - j * (j + 1) / 2);
+
+                        transitionTensor[generationIdx][i][j][k] = transitionProb;
+                        transitionTensor[generationIdx][i][k][j] = transitionProb;
+                        packedTransitionProbs[generationIdx][i][numberOfCellTypes * j + k - j * (j + 1) / 2] = transitionProb;
+                    }
+                }
+            }
+        }
+
+        transitionTensorIsDirty = false;
+        transitionTensorChangedSinceStore = true;
+    }
+
+    /**
+     * @return true if the fate probabilities or the loss probability have changed.
+     */
+    public boolean fateProbabilitiesAreDirty() {
+        for (RealParameter fateProbs : fateProbabilitiesInput.get()) {
+            if(fateProbs.somethingIsDirty())
+                return true;
+        }
+        return lossProbInput.get().somethingIsDirty();
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        boolean transitionProbsAreDirty = typeFrequenciesInput.get().somethingIsDirty()
+                || ignoreKinshipInfoInput.get().somethingIsDirty();
+        for (RealParameter transitionProbs : transitionUponDivisionProbsInput.get()) {
+            transitionProbsAreDirty |= transitionProbs.somethingIsDirty();
+        }
+
+        if(transitionProbsAreDirty)
+            transitionTensorIsDirty = true;
+
+        return super.requiresRecalculation();
+    }
+
+    @Override
+    protected void store() {
+        transitionTensorChangedSinceStore = false;
+        super.store();
+    }
+
+    @Override
+    protected void restore() {
+        // the tensor is rebuilt from the restored parameters next time it is needed.
+        if(transitionTensorChangedSinceStore)
+            transitionTensorIsDirty = true;
+        super.restore();
+    }
+
     public double[] getTransitionProbabilitiesForMotherType(int typeMother){
 
         double[] probs = new double[transitionUponDivisionProbsInput.get().get(typeMother).getDimension()];
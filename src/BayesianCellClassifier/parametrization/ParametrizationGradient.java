@@ -0,0 +1,156 @@
+package BayesianCellClassifier.parametrization;
+
+import beast.core.Function;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Derivatives of a log-likelihood with respect to the inputs of a Parametrization.
+ * There is one array of derivatives per parameter, in the same order as the inputs of the parametrization
+ * and of its distributions.
+ * Since the same parameter may be used in several inputs, use getGradient to get the total derivative with respect to a parameter.
+ */
+public class ParametrizationGradient {
+
+    final Parametrization parametrization;
+
+    final double[][] transitionUponDivisionProbs;
+    final double[][] fateProbabilities;
+    final double[] typeFrequencies;
+    final double[] lossProb;
+
+    // one array per distribution, null for the zero fractions of distributions without zero fraction.
+    final double[][] parm1Distribution;
+    final double[][] parm2Distribution;
+    final double[][] zeroFraction;
+
+    public ParametrizationGradient(Parametrization parametrization) {
+        this.parametrization = parametrization;
+
+        transitionUponDivisionProbs = allocate(parametrization.transitionUponDivisionProbsInput.get());
+        fateProbabilities = allocate(parametrization.fateProbabilitiesInput.get());
+        typeFrequencies = new double[parametrization.typeFrequenciesInput.get().getDimension()];
+        lossProb = new double[parametrization.lossProbInput.get().getDimension()];
+
+        List<DistributionForMeasurement> distributions = parametrization.getDistributions();
+        parm1Distribution = new double[distributions.size()][];
+        parm2Distribution = new double[distributions.size()][];
+        zeroFraction = new double[distributions.size()][];
+        for (int distrIdx = 0; distrIdx < distributions.size(); distrIdx++) {
+            DistributionForMeasurement distr = distributions.get(distrIdx);
+            parm1Distribution[distrIdx] = new double[distr.parm1DistributionInput.get().getDimension()];
+            parm2Distribution[distrIdx] = new double[distr.parm2DistributionInput.get().getDimension()];
+            if(distr.getHasZeroFraction())
+                zeroFraction[distrIdx] = new double[distr.zeroFractionInput.get().getDimension()];
+        }
+    }
+
+    static double[][] allocate(List<? extends Function> parameters) {
+        double[][] gradient = new double[parameters.size()][];
+        for (int i = 0; i < parameters.size(); i++) {
+            gradient[i] = new double[parameters.get(i).getDimension()];
+        }
+        return gradient;
+    }
+
+    public Parametrization getParametrization() {
+        return parametrization;
+    }
+
+    public void clear() {
+        for (double[][] gradients : new double[][][]{transitionUponDivisionProbs, fateProbabilities,
+                parm1Distribution, parm2Distribution, zeroFraction}) {
+            for (double[] gradient : gradients) {
+                if(gradient != null)
+                    Arrays.fill(gradient, 0);
+            }
+        }
+        Arrays.fill(typeFrequencies, 0);
+        Arrays.fill(lossProb, 0);
+    }
+
+    /**
+     * @return true if the parametrization depends on the given parameter.
+     */
+    public boolean dependsOn(Function parameter) {
+        return getGradient(parameter, new double[parameter.getDimension()]);
+    }
+
+    /**
+     * Writes the derivatives with respect to each element of the given parameter to gradient,
+     * summed over all the inputs the parameter is used in.
+     * @return false if the parameter is not used by the parametrization, in which case the derivatives are all 0.
+     */
+    public boolean getGradient(Function parameter, double[] gradient) {
+        Arrays.fill(gradient, 0);
+        boolean isUsed = false;
+
+        isUsed |= addGradient(parameter, parametrization.transitionUponDivisionProbsInput.get(), transitionUponDivisionProbs, gradient);
+        isUsed |= addGradient(parameter, parametrization.fateProbabilitiesInput.get(), fateProbabilities, gradient);
+        isUsed |= addGradient(parameter, parametrization.typeFrequenciesInput.get(), typeFrequencies, gradient);
+        isUsed |= addGradient(parameter, parametrization.lossProbInput.get(), lossProb, gradient);
+
+        List<DistributionForMeasurement> distributions = parametrization.getDistributions();
+        for (int distrIdx = 0; distrIdx < distributions.size(); distrIdx++) {
+            DistributionForMeasurement distr = distributions.get(distrIdx);
+            isUsed |= addGradient(parameter, distr.parm1DistributionInput.get(), parm1Distribution[distrIdx], gradient);
+            isUsed |= addGradient(parameter, distr.parm2DistributionInput.get(), parm2Distribution[distrIdx], gradient);
+            if(zeroFraction[distrIdx] != null)
+                isUsed |= addGradient(parameter, distr.zeroFractionInput.get(), zeroFraction[distrIdx], gradient);
+        }
+
+        return isUsed;
+    }
+
+    static boolean addGradient(Function parameter, List<? extends Function> inputs, double[][] inputGradients, double[] gradient) {
+        boolean isUsed = false;
+        for (int i = 0; i < inputs.size(); i++) {
+            isUsed |= addGradient(parameter, inputs.get(i), inputGradients[i], gradient);
+        }
+        return isUsed;
+    }
+
+    static boolean addGradient(Function parameter, Function input, double[] inputGradient, double[] gradient) {
+        if(input != parameter)
+            return false;
+        for (int i = 0; i < gradient.length; i++) {
+            gradient[i] += inputGradient[i];
+        }
+        return true;
+    }
+
+    /**
+     * Derivatives with respect to the vectors of transitionUponDivisionProbs, in the order of the input.
+     */
+    public double[][] getTransitionUponDivisionProbs() {
+        return transitionUponDivisionProbs;
+    }
+
+    public double[][] getFateProbabilities() {
+        return fateProbabilities;
+    }
+
+    public double[] getTypeFrequencies() {
+        return typeFrequencies;
+    }
+
+    public double[] getLossProb() {
+        return lossProb;
+    }
+
+    public double[] getParm1Distribution(int distrIdx) {
+        return parm1Distribution[distrIdx];
+    }
+
+    public double[] getParm2Distribution(int distrIdx) {
+        return parm2Distribution[distrIdx];
+    }
+
+    /**
+     * @return the derivatives with respect to the zero fraction of a distribution, null if it has no zero fraction.
+     */
+    public double[] getZeroFraction(int distrIdx) {
+        return zeroFraction[distrIdx];
+    }
+}
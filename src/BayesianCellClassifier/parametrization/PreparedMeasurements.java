@@ -0,0 +1,50 @@
+package BayesianCellClassifier.parametrization;
+
+/**
+ * Measurements of one DistributionForMeasurement on all the cells of a tree, prepared once by
+ * DistributionForMeasurement.prepareMeasurements for the batched evaluation of getProbabilities.
+ * Cells are sorted by how their measurement enters the likelihood (not at all, through the density,
+ * or through the cumulative distribution), and the transforms of the measured values that do not depend
+ * on the parameters of the distribution are precomputed.
+ */
+public class PreparedMeasurements {
+
+    final int cellCount;
+
+    final double[] values;
+
+    // indices of the cells whose measurement is missing or does not apply to them.
+    final int[] ignoredCells;
+    final int[] densityCells;
+    final int[] cumulativeCells;
+    final int[] oppositeCumulativeCells;
+
+    // log of the measured values, only for the distributions defined on positive values. NaN for values <= 0.
+    final double[] logValues;
+    // 1/x, only for the lognormal distribution.
+    final double[] inverseValues;
+    // log(1-x), only for the beta distribution. NaN for values >= 1.
+    final double[] logOneMinusValues;
+
+    PreparedMeasurements(double[] values, int[] ignoredCells, int[] densityCells, int[] cumulativeCells,
+                         int[] oppositeCumulativeCells, double[] logValues, double[] inverseValues,
+                         double[] logOneMinusValues) {
+        this.cellCount = values.length;
+        this.values = values;
+        this.ignoredCells = ignoredCells;
+        this.densityCells = densityCells;
+        this.cumulativeCells = cumulativeCells;
+        this.oppositeCumulativeCells = oppositeCumulativeCells;
+        this.logValues = logValues;
+        this.inverseValues = inverseValues;
+        this.logOneMinusValues = logOneMinusValues;
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    public double getValue(int cellIdx) {
+        return values[cellIdx];
+    }
+}
@@ -0,0 +1,390 @@
+package BayesianCellClassifier.utils;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import BayesianCellClassifier.core.DifferentiableLikelihood;
+import BayesianCellClassifier.parametrization.ParametrizationGradient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hamiltonian Monte Carlo proposal, moving all the given parameters jointly along a leapfrog trajectory.
+ * Parameters are moved on an unconstrained scale: unchanged, on the log scale for positive parameters,
+ * and on the additive log-ratio scale for simplices. The Hastings ratio contains the change in kinetic energy
+ * and the Jacobian of these transformations, so the posterior ratio evaluated by the MCMC completes the
+ * acceptance probability of HMC.
+ * Only the gradient of the likelihood drives the trajectory, priors on the parameters are not differentiated.
+ * The proposal remains valid, but is less efficient when priors are strongly informative.
+ */
+@Description("Hamiltonian Monte Carlo operator for the parameters of the parametrization of lineage tree likelihoods, " +
+        "using the analytical gradient of the likelihood.")
+public class HamiltonianMonteCarloOperator extends Operator {
+
+    final public Input<Distribution> likelihoodInput = new Input<>("likelihood",
+            "Likelihood whose gradient drives the proposal: a LineageTreeProb or a LineageForestProb.",
+            Input.Validate.REQUIRED);
+
+    final public Input<List<RealParameter>> parameterInput = new Input<>("parameter",
+            "Parameters moved without transformation.",
+            new ArrayList<>());
+
+    final public Input<List<RealParameter>> positiveParameterInput = new Input<>("positiveParameter",
+            "Parameters with positive elements, moved on the log scale.",
+            new ArrayList<>());
+
+    final public Input<List<RealParameter>> simplexInput = new Input<>("simplex",
+            "Parameters whose elements sum to 1 (transition probabilities, fate probabilities, type frequencies), " +
+                    "moved on the additive log-ratio scale. Elements equal to 0 stay equal to 0.",
+            new ArrayList<>());
+
+    final public Input<Double> stepSizeInput = new Input<>("stepSize",
+            "Initial step size of the leapfrog integrator. Default: 0.01",
+            0.01);
+
+    final public Input<Integer> numberOfStepsInput = new Input<>("numberOfSteps",
+            "Maximum number of leapfrog steps. The number of steps of each proposal is drawn uniformly between 1 and this value. " +
+                    "Default: 10",
+            10);
+
+    final public Input<Boolean> optimiseInput = new Input<>("optimise",
+            "If true, the step size is tuned during the run. Default: true",
+            true);
+
+    static final int NO_TRANSFORM = 0;
+    static final int LOG_TRANSFORM = 1;
+    static final int SIMPLEX_TRANSFORM = 2;
+
+    // one block of coordinates per parameter.
+    RealParameter[] parameters;
+    int[] transforms;
+    // elements of each parameter which are moved. For simplices, the last one is the reference of the log-ratios.
+    int[][] movedElements;
+    int[] firstCoordinates;
+    // sum of the moved elements of each simplex, kept constant.
+    double[] simplexSums;
+
+    int numberOfCoordinates;
+
+    DifferentiableLikelihood likelihood;
+    ParametrizationGradient gradient;
+    // derivatives of the likelihood with respect to the elements of one parameter.
+    double[][] parameterGradients;
+
+    double stepSize;
+
+    @Override
+    public void initAndValidate() {
+
+        if(!(likelihoodInput.get() instanceof DifferentiableLikelihood))
+            throw new IllegalArgumentException("likelihood must be a LineageTreeProb or a LineageForestProb.");
+        likelihood = (DifferentiableLikelihood) likelihoodInput.get();
+        gradient = new ParametrizationGradient(likelihood.getParametrization());
+
+        List<RealParameter> parameterList = new ArrayList<>();
+        List<Integer> transformList = new ArrayList<>();
+        for (RealParameter parameter : parameterInput.get()) {
+            parameterList.add(parameter);
+            transformList.add(NO_TRANSFORM);
+        }
+        for (RealParameter parameter : positiveParameterInput.get()) {
+            parameterList.add(parameter);
+            transformList.add(LOG_TRANSFORM);
+        }
+        for (RealParameter parameter : simplexInput.get()) {
+            parameterList.add(parameter);
+            transformList.add(SIMPLEX_TRANSFORM);
+        }
+
+        if(parameterList.size() == 0)
+            throw new IllegalArgumentException("At least one parameter must be given.");
+
+        parameters = parameterList.toArray(new RealParameter[0]);
+        transforms = new int[parameters.length];
+        movedElements = new int[parameters.length][];
+        firstCoordinates = new int[parameters.length];
+        simplexSums = new double[parameters.length];
+        parameterGradients = new double[parameters.length][];
+
+        numberOfCoordinates = 0;
+        for (int paramIdx = 0; paramIdx < parameters.length; paramIdx++) {
+            RealParameter parameter = parameters[paramIdx];
+            transforms[paramIdx] = transformList.get(paramIdx);
+            parameterGradients[paramIdx] = new double[parameter.getDimension()];
+
+            if(!gradient.dependsOn(parameter))
+                throw new IllegalArgumentException("Parameter " + parameter.getID() +
+                        " is not an input of the parametrization of the likelihood.");
+
+            List<Integer> elements = new ArrayList<>();
+            for (int i = 0; i < parameter.getDimension(); i++) {
+                if(transforms[paramIdx] == LOG_TRANSFORM && parameter.getArrayValue(i) <= 0)
+                    throw new IllegalArgumentException("Elements of positiveParameter " + parameter.getID() + " must be positive.");
+                if(transforms[paramIdx] != SIMPLEX_TRANSFORM || parameter.getArrayValue(i) > 0)
+                    elements.add(i);
+            }
+            movedElements[paramIdx] = new int[elements.size()];
+            for (int i = 0; i < elements.size(); i++) {
+                movedElements[paramIdx][i] = elements.get(i);
+            }
+
+            firstCoordinates[paramIdx] = numberOfCoordinates;
+            if(transforms[paramIdx] == SIMPLEX_TRANSFORM)
+                numberOfCoordinates += Math.max(elements.size() - 1, 0);
+            else
+                numberOfCoordinates += elements.size();
+        }
+
+        stepSize = stepSizeInput.get();
+        if(stepSize <= 0)
+            throw new IllegalArgumentException("stepSize must be positive.");
+        if(numberOfStepsInput.get() < 1)
+            throw new IllegalArgumentException("numberOfSteps must be at least 1.");
+    }
+
+    @Override
+    public double proposal() {
+
+        double[] position = new double[numberOfCoordinates];
+        double[] momentum = new double[numberOfCoordinates];
+        double[] positionGradient = new double[numberOfCoordinates];
+
+        double[][] initialValues = new double[parameters.length][];
+        for (int paramIdx = 0; paramIdx < parameters.length; paramIdx++) {
+            initialValues[paramIdx] = new double[parameters[paramIdx].getDimension()];
+            for (int i = 0; i < initialValues[paramIdx].length; i++) {
+                initialValues[paramIdx][i] = parameters[paramIdx].getArrayValue(i);
+            }
+        }
+
+        double initialLogJacobian = readPosition(position);
+        if(!calculatePositionGradient(positionGradient))
+            return Double.NEGATIVE_INFINITY;
+
+        double initialKineticEnergy = 0;
+        for (int c = 0; c < numberOfCoordinates; c++) {
+            momentum[c] = Randomizer.nextGaussian();
+            initialKineticEnergy += momentum[c] * momentum[c] / 2;
+        }
+
+        int numberOfSteps = 1 + Randomizer.nextInt(numberOfStepsInput.get());
+        double logJacobian = initialLogJacobian;
+        for (int step = 0; step < numberOfSteps; step++) {
+            for (int c = 0; c < numberOfCoordinates; c++) {
+                momentum[c] += stepSize / 2 * positionGradient[c];
+                position[c] += stepSize * momentum[c];
+            }
+
+            logJacobian = writePosition(position);
+            if(logJacobian == Double.NEGATIVE_INFINITY || !calculatePositionGradient(positionGradient)) {
+                // trajectory left the support of the parameters.
+                writeValues(initialValues);
+                return Double.NEGATIVE_INFINITY;
+            }
+
+            for (int c = 0; c < numberOfCoordinates; c++) {
+                momentum[c] += stepSize / 2 * positionGradient[c];
+            }
+        }
+
+        double kineticEnergy = 0;
+        for (int c = 0; c < numberOfCoordinates; c++) {
+            kineticEnergy += momentum[c] * momentum[c] / 2;
+        }
+
+        return initialKineticEnergy - kineticEnergy + logJacobian - initialLogJacobian;
+    }
+
+    /**
+     * Read the unconstrained coordinates of the current values of the parameters.
+     * @return log of the Jacobian of the transformation from coordinates to parameter values, up to a constant.
+     */
+    double readPosition(double[] position) {
+        double logJacobian = 0;
+        for (int paramIdx = 0; paramIdx < parameters.length; paramIdx++) {
+            RealParameter parameter = parameters[paramIdx];
+            int[] elements = movedElements[paramIdx];
+            int c = firstCoordinates[paramIdx];
+
+            switch (transforms[paramIdx]) {
+                case NO_TRANSFORM:
+                    for (int element : elements) {
+                        position[c++] = parameter.getArrayValue(element);
+                    }
+                    break;
+                case LOG_TRANSFORM:
+                    for (int element : elements) {
+                        double value = parameter.getArrayValue(element);
+                        position[c++] = Math.log(value);
+                        logJacobian += Math.log(value);
+                    }
+                    break;
+                case SIMPLEX_TRANSFORM: {
+                    if(elements.length < 2)
+                        break;
+                    double referenceValue = parameter.getArrayValue(elements[elements.length - 1]);
+                    simplexSums[paramIdx] = 0;
+                    for (int i = 0; i < elements.length; i++) {
+                        double value = parameter.getArrayValue(elements[i]);
+                        simplexSums[paramIdx] += value;
+                        logJacobian += Math.log(value);
+                        if(i < elements.length - 1)
+                            position[c++] = Math.log(value / referenceValue);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown transform.");
+            }
+        }
+        return logJacobian;
+    }
+
+    /**
+     * Set the parameters to the values of the given unconstrained coordinates.
+     * @return log of the Jacobian of the transformation, as in readPosition,
+     * or negative infinity if the values are outside of the bounds of the parameters.
+     */
+    double writePosition(double[] position) {
+        double logJacobian = 0;
+        for (int paramIdx = 0; paramIdx < parameters.length; paramIdx++) {
+            RealParameter parameter = parameters[paramIdx];
+            int[] elements = movedElements[paramIdx];
+            int c = firstCoordinates[paramIdx];
+
+            switch (transforms[paramIdx]) {
+                case NO_TRANSFORM:
+                    for (int element : elements) {
+                        if(!setValue(parameter, element, position[c++]))
+                            return Double.NEGATIVE_INFINITY;
+                    }
+                    break;
+                case LOG_TRANSFORM:
+                    for (int element : elements) {
+                        double value = Math.exp(position[c++]);
+                        if(!setValue(parameter, element, value))
+                            return Double.NEGATIVE_INFINITY;
+                        logJacobian += Math.log(value);
+                    }
+                    break;
+                case SIMPLEX_TRANSFORM: {
+                    if(elements.length < 2)
+                        break;
+                    int numberOfRatios = elements.length - 1;
+                    double maxLogRatio = 0;
+                    for (int i = 0; i < numberOfRatios; i++) {
+                        maxLogRatio = Math.max(maxLogRatio, position[c + i]);
+                    }
+                    double sum = Math.exp(-maxLogRatio);
+                    for (int i = 0; i < numberOfRatios; i++) {
+                        sum += Math.exp(position[c + i] - maxLogRatio);
+                    }
+                    for (int i = 0; i < elements.length; i++) {
+                        double logRatio = i < numberOfRatios ? position[c + i] : 0;
+                        double value = simplexSums[paramIdx] * Math.exp(logRatio - maxLogRatio) / sum;
+                        if(value <= 0 || !setValue(parameter, elements[i], value))
+                            return Double.NEGATIVE_INFINITY;
+                        logJacobian += Math.log(value);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown transform.");
+            }
+        }
+        return logJacobian;
+    }
+
+    static boolean setValue(RealParameter parameter, int element, double value) {
+        if(Double.isNaN(value) || Double.isInfinite(value) || value < parameter.getLower() || value > parameter.getUpper())
+            return false;
+        parameter.setValue(element, value);
+        return true;
+    }
+
+    void writeValues(double[][] values) {
+        for (int paramIdx = 0; paramIdx < parameters.length; paramIdx++) {
+            for (int i = 0; i < values[paramIdx].length; i++) {
+                if(parameters[paramIdx].getArrayValue(i) != values[paramIdx][i])
+                    parameters[paramIdx].setValue(i, values[paramIdx][i]);
+            }
+        }
+    }
+
+    /**
+     * Derivatives of the log-likelihood, plus the log of the Jacobian of the transformation,
+     * with respect to the unconstrained coordinates of the current values of the parameters.
+     * @return false if the likelihood is zero or not finite.
+     */
+    boolean calculatePositionGradient(double[] positionGradient) {
+        gradient.clear();
+        double logP = likelihood.calculateLogPGradient(gradient);
+        if(Double.isNaN(logP) || Double.isInfinite(logP))
+            return false;
+
+        for (int paramIdx = 0; paramIdx < parameters.length; paramIdx++) {
+            RealParameter parameter = parameters[paramIdx];
+            double[] parameterGradient = parameterGradients[paramIdx];
+            gradient.getGradient(parameter, parameterGradient);
+            int[] elements = movedElements[paramIdx];
+            int c = firstCoordinates[paramIdx];
+
+            switch (transforms[paramIdx]) {
+                case NO_TRANSFORM:
+                    for (int element : elements) {
+                        positionGradient[c++] = parameterGradient[element];
+                    }
+                    break;
+                case LOG_TRANSFORM:
+                    for (int element : elements) {
+                        positionGradient[c++] = parameter.getArrayValue(element) * parameterGradient[element] + 1;
+                    }
+                    break;
+                case SIMPLEX_TRANSFORM: {
+                    if(elements.length < 2)
+                        break;
+                    // x_i = s * softmax(y)_i, so that dx_i/dy_j = x_i * (delta_ij - x_j / s).
+                    double weightedSum = 0;
+                    for (int element : elements) {
+                        weightedSum += parameter.getArrayValue(element) * parameterGradient[element];
+                    }
+                    for (int i = 0; i < elements.length - 1; i++) {
+                        double value = parameter.getArrayValue(elements[i]);
+                        double fraction = value / simplexSums[paramIdx];
+                        positionGradient[c++] = value * parameterGradient[elements[i]] - fraction * weightedSum
+                                + 1 - elements.length * fraction;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown transform.");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return stepSize;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        stepSize = value;
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        if(optimiseInput.get())
+            stepSize *= Math.exp(calcDelta(logAlpha));
+    }
+
+    @Override
+    public double getTargetAcceptanceProbability() {
+        return 0.65;
+    }
+}
@@ -0,0 +1,113 @@
+package BayesianCellClassifier.utils;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+import java.util.SplittableRandom;
+
+/**
+ * Random generator drawing from a SplittableRandom, for commons-math distributions and the simulation of lineage trees.
+ * Unlike Math.random, there is no shared state between generators, so that each thread can draw from its own stream,
+ * and generators split from one seeded generator give the same draws whatever the number of threads.
+ * A generator must not be used by several threads at once.
+ */
+public class SplittableRandomGenerator implements RandomGenerator {
+
+    SplittableRandom random;
+
+    // second of the two gaussian values drawn together, NaN if there is none.
+    double nextGaussian = Double.NaN;
+
+    public SplittableRandomGenerator(SplittableRandom random) {
+        this.random = random;
+    }
+
+    public SplittableRandomGenerator(long seed) {
+        this(new SplittableRandom(seed));
+    }
+
+    /**
+     * New generator with a stream independent of this one, also used to give each tree its own stream.
+     */
+    public SplittableRandomGenerator split() {
+        return new SplittableRandomGenerator(random.split());
+    }
+
+    @Override
+    public void setSeed(int seed) {
+        setSeed((long) seed);
+    }
+
+    @Override
+    public void setSeed(int[] seed) {
+        long combinedSeed = 0;
+        for (int s : seed)
+            combinedSeed = 31 * combinedSeed + s;
+        setSeed(combinedSeed);
+    }
+
+    @Override
+    public void setSeed(long seed) {
+        random = new SplittableRandom(seed);
+        nextGaussian = Double.NaN;
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+        for (int i = 0; i < bytes.length; ) {
+            for (int value = random.nextInt(), n = Math.min(bytes.length - i, 4); n-- > 0; value >>= 8)
+                bytes[i++] = (byte) value;
+        }
+    }
+
+    @Override
+    public int nextInt() {
+        return random.nextInt();
+    }
+
+    @Override
+    public int nextInt(int n) {
+        return random.nextInt(n);
+    }
+
+    @Override
+    public long nextLong() {
+        return random.nextLong();
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        return random.nextBoolean();
+    }
+
+    @Override
+    public float nextFloat() {
+        return (random.nextInt() >>> 8) * 0x1.0p-24f;
+    }
+
+    @Override
+    public double nextDouble() {
+        return random.nextDouble();
+    }
+
+    /**
+     * Standard normal value, drawn with the polar method as in java.util.Random.
+     */
+    @Override
+    public double nextGaussian() {
+        if(!Double.isNaN(nextGaussian)) {
+            double value = nextGaussian;
+            nextGaussian = Double.NaN;
+            return value;
+        }
+
+        double v1, v2, s;
+        do {
+            v1 = 2 * random.nextDouble() - 1;
+            v2 = 2 * random.nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while(s >= 1 || s == 0);
+        double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+        nextGaussian = v2 * multiplier;
+        return v1 * multiplier;
+    }
+}
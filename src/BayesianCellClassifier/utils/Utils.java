@@ -1,10 +1,5 @@
 package BayesianCellClassifier.utils;
 
-import BayesianCellClassifier.parametrization.DistributionForMeasurement;
-import org.apache.commons.math3.distribution.BetaDistribution;
-import org.apache.commons.math3.distribution.GammaDistribution;
-import org.apache.commons.math3.distribution.LogNormalDistribution;
-import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.special.Gamma;
 import org.apache.commons.math3.special.Beta;
 import org.apache.commons.math3.special.Erf;
@@ -59,10 +54,27 @@ public class Utils {
 
         if(x < 0.0 || m <= 0 || k <= 0)
             return 0.0;
-        else{
-            double lambda = m/Math.pow(Math.log(2), 1/k);
+        else
+            return getWeibullDensityMedianShapeParam(x, m, k, getWeibullScaleFromMedian(m, k));
+    }
+
+    /**
+     * Same as getWeibullDensityMedianShapeParam(x, m, k), with the scale parameter lambda
+     * corresponding to m and k already calculated (see getWeibullScaleFromMedian).
+     */
+    public static double getWeibullDensityMedianShapeParam(double x, double m, double k, double lambda) {
+
+        if(x < 0.0 || m <= 0 || k <= 0)
+            return 0.0;
+        else
             return k/lambda * Math.pow(x/lambda, k-1) * Math.exp(-Math.pow(x/lambda, k));
-        }
+    }
+
+    /**
+     * Scale parameter of the Weibull distribution with median m and shape parameter k.
+     */
+    public static double getWeibullScaleFromMedian(double m, double k) {
+        return m/Math.pow(Math.log(2), 1/k);
     }
 
     public static double getWeibullCumulativeDistribution(double x, double lambda, double k) {
@@ -76,10 +88,20 @@ public class Utils {
 
         if(x < 0.0 || m <= 0 || k <= 0)
             return 0.0;
-        else{
-            double lambda = m/Math.pow(Math.log(2), 1/k);
+        else
+            return getWeibullCumulativeDistributionMedianShapeParam(x, m, k, getWeibullScaleFromMedian(m, k));
+    }
+
+    /**
+     * Same as getWeibullCumulativeDistributionMedianShapeParam(x, m, k), with the scale parameter lambda
+     * corresponding to m and k already calculated (see getWeibullScaleFromMedian).
+     */
+    public static double getWeibullCumulativeDistributionMedianShapeParam(double x, double m, double k, double lambda) {
+
+        if(x < 0.0 || m <= 0 || k <= 0)
+            return 0.0;
+        else
             return 1 - Math.exp(-Math.pow(x/lambda, k));
-        }
     }
 
 
@@ -149,10 +171,17 @@ public class Utils {
     }
 
     public static double getLogNormalDensity(double x, double mu, double sigma) {
+        return getLogNormalDensity(x, mu, sigma, getNormalNormalizingConstant(sigma));
+    }
+
+    /**
+     * Same as getLogNormalDensity(x, mu, sigma), with the normalizing constant already calculated (see getNormalNormalizingConstant).
+     */
+    public static double getLogNormalDensity(double x, double mu, double sigma, double normalizingConstant) {
         if(x <= 0)
             return 0;
         else
-            return 1.0/ (x * sigma * Math.sqrt(2*Math.PI)) * Math.exp(-(Math.log(x) - mu)*(Math.log(x)-mu)/(2*sigma*sigma));
+            return normalizingConstant / x * Math.exp(-(Math.log(x) - mu)*(Math.log(x)-mu)/(2*sigma*sigma));
     }
 
     public static double getLogNormalCumulativeDistribution(double x, double mu, double sigma) {
@@ -180,7 +209,17 @@ public class Utils {
         if (x < 0 || k <= 0 || mu <= 0)
             return 0;
         else
-            return Math.pow(x * k/mu, k - 1) * k/mu * Math.exp(-x * k/mu) / Gamma.gamma(k);
+            return getGammaDensityMeanShapeParam(x, mu, k, Gamma.logGamma(k));
+    }
+
+    /**
+     * Same as getGammaDensityMeanShapeParam(x, mu, k), with log(Gamma(k)) already calculated.
+     */
+    public static double getGammaDensityMeanShapeParam(double x, double mu, double k, double logGammaK) {
+        if (x < 0 || k <= 0 || mu <= 0)
+            return 0;
+        else
+            return Math.pow(x * k/mu, k - 1) * k/mu * Math.exp(-x * k/mu - logGammaK);
     }
 
     public static double getGammaCumulativeDistributionShapeMeanParam(double x, double k, double mu) {
@@ -199,7 +238,21 @@ public class Utils {
 
 
     public static double getNormalDensity(double x, double mu, double sigma) {
-        return 1.0/Math.sqrt(2*Math.PI*sigma*sigma)*Math.exp(-(x - mu)*(x-mu)/(2*sigma*sigma));
+        return getNormalDensity(x, mu, sigma, getNormalNormalizingConstant(sigma));
+    }
+
+    /**
+     * Same as getNormalDensity(x, mu, sigma), with the normalizing constant already calculated (see getNormalNormalizingConstant).
+     */
+    public static double getNormalDensity(double x, double mu, double sigma, double normalizingConstant) {
+        return normalizingConstant*Math.exp(-(x - mu)*(x-mu)/(2*sigma*sigma));
+    }
+
+    /**
+     * Normalizing constant 1/(sigma sqrt(2 pi)) of the densities of the normal and lognormal distributions.
+     */
+    public static double getNormalNormalizingConstant(double sigma) {
+        return 1.0/Math.sqrt(2*Math.PI*sigma*sigma);
     }
 
     public static double getNormalCumulativeDistribution(double x, double mu, double sigma) {
@@ -212,13 +265,23 @@ public class Utils {
 
     public static double getBetaDensity(double x, double alpha, double beta) {
 
+        if(x <0 || x>1 || alpha <= 0 || beta <= 0)
+            return 0;
+        else
+            return getBetaDensity(x, alpha, beta, Beta.logBeta(alpha, beta));
+    }
+
+    /**
+     * Same as getBetaDensity(x, alpha, beta), with log(B(alpha, beta)) already calculated.
+     */
+    public static double getBetaDensity(double x, double alpha, double beta, double logBeta) {
+
         if(x <0 || x>1 || alpha <= 0 || beta <= 0)
             return 0;
         else {
-            double logBetaDensity = (alpha - 1) * Math.log(x) + (beta - 1) * Math.log(1 - x) - Beta.logBeta(alpha, beta);
+            double logBetaDensity = (alpha - 1) * Math.log(x) + (beta - 1) * Math.log(1 - x) - logBeta;
             return Math.exp(logBetaDensity);
         }
-
     }
 
     public static double getBetaCumulativeDistribution(double x, double alpha, double beta) {
@@ -228,25 +291,6 @@ public class Utils {
             return Beta.regularizedBeta(x, alpha, beta);
     }
 
-    public static double getRandomValueFromDistribution(DistributionForMeasurement.DistributionType distrType, double parm1, double parm2) {
-        switch (distrType) {
-            case NORMAL:
-                return new NormalDistribution(parm1, parm2).sample();
-            case LOGNORMAL:
-                return new LogNormalDistribution(parm1, parm2).sample();
-            case BETA:
-                return new BetaDistribution(parm1, parm2).sample();
-            case GAMMA_MEAN_SHAPE:
-                if(parm2 == 0)
-                    throw new IllegalArgumentException("Shape parameter of gamma distribution cannot be 0.");
-                double shape = parm2;
-                double scale = parm1/parm2;
-                return new GammaDistribution(shape, scale).sample();
-            default:
-                throw new IllegalArgumentException("Distribution type not implemented yet in simulation.");
-        }
-    }
-
 
     public static void main(String[] args){
         double alpha = 80;
@@ -1,18 +1,44 @@
 package test;
 
+import beast.core.parameter.BooleanParameter;
 import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import BayesianCellClassifier.core.FlattenedCellTree;
+import BayesianCellClassifier.core.LineageForestProb;
 import BayesianCellClassifier.core.LineageTreeProb;
+import BayesianCellClassifier.core.PruningKernel;
+import BayesianCellClassifier.lineagetree.Cell;
+import BayesianCellClassifier.lineagetree.CellTreeCSVWriter;
+import BayesianCellClassifier.lineagetree.LineageForest;
+import BayesianCellClassifier.lineagetree.LineageForestConverter;
 import BayesianCellClassifier.lineagetree.LineageTree;
+import BayesianCellClassifier.lineagetree.MeasurementStore;
+import BayesianCellClassifier.lineagetree.SimulatedCell;
+import BayesianCellClassifier.lineagetree.SimulatedLineageForest;
+import BayesianCellClassifier.lineagetree.SimulatedLineageTree;
 import BayesianCellClassifier.mapping.LineageTreeMapping;
 import BayesianCellClassifier.parametrization.DistributionForMeasurement;
 import BayesianCellClassifier.parametrization.ExperimentalMeasurements;
 import BayesianCellClassifier.parametrization.Parametrization;
+import BayesianCellClassifier.parametrization.ParametrizationGradient;
+import BayesianCellClassifier.parametrization.PreparedMeasurements;
+import BayesianCellClassifier.utils.HamiltonianMonteCarloOperator;
+import BayesianCellClassifier.utils.SplittableRandomGenerator;
+import BayesianCellClassifier.utils.Utils;
 import junit.framework.TestCase;
+import org.apache.commons.math3.special.Gamma;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.SortedSet;
 
 
 public class LikelihoodTests extends TestCase{
@@ -484,4 +510,1340 @@ public class LikelihoodTests extends TestCase{
             System.out.println(mapping.printMapping(true));
         }
     }
+
+    @Test
+    /**
+     * The flattened post-order pruning must give the same result as the recursive implementation,
+     * up to the rounding differences due to the order of summation over daughter types.
+     */
+    public void testFlattenedPruningMatchesRecursion() throws Exception {
+
+        Parametrization parametrization = getThreeTypeParametrization();
+        LineageTree tree = getElevenCellTree();
+
+        String[] cellTypes = {"-1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1",
+                "0 -1 2 -1 1 -1 -1 0 -1 -1 -1 -1 -1 1 -1",
+                "1 2 -1 -1 -1 0 -1 -1 2 -1 -1 -1 -1 -1 0",
+                "2 -1 -1"};
+
+        for (String cellType : cellTypes) {
+            LineageTreeProb treeProb = new LineageTreeProb();
+            treeProb.setInputValue("tree", tree);
+            treeProb.setInputValue("parametrization", parametrization);
+            treeProb.setInputValue("cellType", new IntegerParameter(cellType));
+            treeProb.initAndValidate();
+
+            double[] recursivePruning = calculatePruningProb(treeProb, (Cell) tree.getRoot());
+            double p = 0;
+            for (int i = 0; i < recursivePruning.length; i++)
+                p += recursivePruning[i] * parametrization.getTypeFreq(i);
+
+            assertEquals(Math.log(p), treeProb.calculateLogP(), Math.abs(Math.log(p)) * 1e-13);
+        }
+    }
+
+    @Test
+    /**
+     * Changing the type of single cells only recalculates their path to the root,
+     * and restoring after a rejected proposal brings back the previous partials.
+     */
+    public void testPartialsStoreRestore() throws Exception {
+
+        Parametrization parametrization = getThreeTypeParametrization();
+        LineageTree tree = getElevenCellTree();
+
+        IntegerParameter cellType = new IntegerParameter("0 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1");
+
+        InspectableLineageTreeProb treeProb = new InspectableLineageTreeProb();
+        treeProb.initByName("tree", tree, "parametrization", parametrization, "cellType", cellType);
+        double initialLogP = treeProb.calculateLogP();
+
+        // accepted proposal on cell 5
+        treeProb.store();
+        cellType.setValue(4, 2);
+        assertTrue(treeProb.checkRequiresRecalculation());
+        double logP = treeProb.calculateLogP();
+        assertEquals(getLogPFromScratch(tree, parametrization, cellType), logP, 0.0);
+        cellType.setEverythingDirty(false);
+
+        // rejected proposal on cell 14
+        treeProb.store();
+        cellType.setValue(13, 1);
+        assertTrue(treeProb.checkRequiresRecalculation());
+        int nodeNr = -1;
+        for (Node node : tree.getNodesAsArray()) {
+            if(((Cell) node).getTrackNumber() == 14)
+                nodeNr = node.getNr();
+        }
+        assertEquals(1, treeProb.getFixedCellTypeOfNode(nodeNr));
+        treeProb.calculateLogP();
+        cellType.setValue(13, -1);
+        cellType.setEverythingDirty(false);
+        treeProb.restore();
+        assertEquals(-1, treeProb.getFixedCellTypeOfNode(nodeNr));
+        assertEquals(logP, treeProb.getCurrentLogP(), 0.0);
+
+        // proposal on the root, after the rejection
+        treeProb.store();
+        cellType.setValue(0, 1);
+        assertTrue(treeProb.checkRequiresRecalculation());
+        assertEquals(getLogPFromScratch(tree, parametrization, cellType), treeProb.calculateLogP(), 0.0);
+        assertFalse(initialLogP == treeProb.getCurrentLogP());
+
+        // dimensions of cells which are not in the tree do not require recalculation
+        cellType.setEverythingDirty(false);
+        treeProb.store();
+        cellType.setValue(10, 0);
+        assertFalse(treeProb.checkRequiresRecalculation());
+    }
+
+    @Test
+    /**
+     * On a ten-generation tree the unscaled partials underflow, the rescaled ones must not.
+     * When kinship information is ignored, cell types are independent so the likelihood
+     * factorizes over cells and can be calculated directly.
+     */
+    public void testRescalingOnDeepTree() throws Exception {
+
+        Parametrization parametrization = getThreeTypeParametrization();
+        parametrization.setInputValue("ignoreKinshipInfo", new BooleanParameter("true"));
+
+        int numberOfCells = 1023;
+        String cellsInTree = "1";
+        String lifetimeValues = "1:1.9";
+        String measure1Values = "1:2.5";
+        for (int trackNumber = 2; trackNumber <= numberOfCells; trackNumber++) {
+            cellsInTree += "," + trackNumber;
+            lifetimeValues += "," + trackNumber + ":" + (1.5 + 0.001 * trackNumber);
+            measure1Values += "," + trackNumber + ":" + (2.5 - 0.002 * trackNumber);
+        }
+
+        ExperimentalMeasurements lifetime = new ExperimentalMeasurements();
+        lifetime.initByName("measurementTag", "lifetime", "values", lifetimeValues);
+        ExperimentalMeasurements measure_1 = new ExperimentalMeasurements();
+        measure_1.initByName("measurementTag", "measure_1", "values", measure1Values);
+
+        List<ExperimentalMeasurements> experimentalMeasurements = new LinkedList<>();
+        experimentalMeasurements.add(lifetime);
+        experimentalMeasurements.add(measure_1);
+
+        LineageTree tree = new LineageTree();
+        tree.setInputValue("measurement", experimentalMeasurements);
+        tree.setInputValue("cellsInTree", cellsInTree);
+        tree.initAndValidate();
+
+        LineageTreeProb treeProb = new LineageTreeProb();
+        treeProb.initByName("tree", tree, "parametrization", parametrization);
+
+        double[] recursivePruning = calculatePruningProb(treeProb, (Cell) tree.getRoot());
+        for (int i = 0; i < recursivePruning.length; i++)
+            assertEquals(0.0, recursivePruning[i]);
+
+        double expectedLogP = 0;
+        for (Node node : tree.getNodesAsArray()) {
+            double p = 0;
+            for (int i = 0; i < parametrization.getNumberOfCellTypes(); i++)
+                p += parametrization.getTypeFreq(i) * treeProb.getCellProbability((Cell) node, i);
+            expectedLogP += Math.log(p);
+        }
+
+        double logP = treeProb.calculateLogP();
+        assertTrue(expectedLogP < -1000);
+        assertEquals(expectedLogP, logP, Math.abs(expectedLogP) * 1e-12);
+    }
+
+    @Test
+    /**
+     * The cached transition tensor holds the values of getTransitionProbability
+     * and follows changes of the transition probabilities.
+     */
+    public void testTransitionTensor() throws Exception {
+
+        DistributionForMeasurement distr_lifetime = new DistributionForMeasurement();
+        distr_lifetime.initByName("measurementTag", "lifetime",
+                "parm1Distribution", new RealParameter("1.1 1.4"),
+                "parm2Distribution", new RealParameter("1.5 2.0"),
+                "distributionType", "gamma",
+                "estimateType", "max",
+                "isAppliedToRootCells", true);
+
+        RealParameter firstGenerationProbs = new RealParameter("0.5 0.2 0.3");
+        BooleanParameter ignoreKinshipInfo = new BooleanParameter("false");
+
+        Parametrization parametrization = new Parametrization();
+        parametrization.initByName("distribution", distr_lifetime,
+                "transitionUponDivisionProbs", firstGenerationProbs,
+                "transitionUponDivisionProbs", new RealParameter("0.1 0.6 0.3"),
+                "transitionUponDivisionProbs", new RealParameter("0.25 0.25 0.5"),
+                "transitionUponDivisionProbs", new RealParameter("0.7 0.2 0.1"),
+                "haveGenerationSpecificTransitionProbs", true,
+                "ignoreKinshipInfo", ignoreKinshipInfo);
+
+        assertTransitionTensorMatches(parametrization, 2);
+
+        firstGenerationProbs.setValue(1, 0.4);
+        firstGenerationProbs.setValue(2, 0.1);
+        parametrization.checkDirtiness();
+        assertEquals(0.2, parametrization.getTransitionProbabilities(1, false)[0][1][0], 0.0);
+        assertTransitionTensorMatches(parametrization, 2);
+
+        firstGenerationProbs.setEverythingDirty(false);
+        ignoreKinshipInfo.setValue(true);
+        parametrization.checkDirtiness();
+        assertTransitionTensorMatches(parametrization, 2);
+        assertEquals(1.0, parametrization.getTransitionTensor(true)[1][1][0][1], 0.0);
+    }
+
+    void assertTransitionTensorMatches(Parametrization parametrization, int numberOfGenerations) {
+        int numberOfCellTypes = parametrization.getNumberOfCellTypes();
+        for (int generation = 1; generation <= numberOfGenerations; generation++) {
+            double[][][] transitionProbs = parametrization.getTransitionTensor(false)[parametrization.getTransitionTensorIndex(generation)];
+            for (int i = 0; i < numberOfCellTypes; i++) {
+                for (int j = 0; j < numberOfCellTypes; j++) {
+                    for (int k = 0; k < numberOfCellTypes; k++) {
+                        assertEquals(parametrization.getTransitionProbability(i, j, k, generation, false),
+                                transitionProbs[i][j][k], 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Emission probabilities are only recalculated when the distributions, fate probabilities or loss probability change.
+     */
+    public void testEmissionCache() throws Exception {
+
+        Parametrization parametrization = getThreeTypeParametrization();
+        LineageTree tree = getElevenCellTree();
+        IntegerParameter cellType = new IntegerParameter("0 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1");
+        RealParameter transitionProbs = parametrization.transitionUponDivisionProbsInput.get().get(1);
+        RealParameter fateProbs = parametrization.fateProbabilitiesInput.get().get(2);
+
+        InspectableLineageTreeProb treeProb = new InspectableLineageTreeProb();
+        treeProb.initByName("tree", tree, "parametrization", parametrization, "cellType", cellType);
+        treeProb.calculateLogP();
+        int numberOfEmissions = treeProb.cellProbabilityCount;
+        assertEquals(11 * 3, numberOfEmissions);
+
+        // accepted change of transition probabilities
+        treeProb.store();
+        transitionProbs.setValue(0, 0.05);
+        transitionProbs.setValue(1, 0.25);
+        parametrization.checkDirtiness();
+        assertTrue(treeProb.checkRequiresRecalculation());
+        assertEquals(getLogPFromScratch(tree, parametrization, cellType), treeProb.calculateLogP(), 0.0);
+        assertEquals(numberOfEmissions, treeProb.cellProbabilityCount);
+        transitionProbs.setEverythingDirty(false);
+
+        // rejected change of fate probabilities
+        double logP = treeProb.getCurrentLogP();
+        treeProb.store();
+        fateProbs.setValue(0, 0.6);
+        fateProbs.setValue(1, 0.4);
+        parametrization.checkDirtiness();
+        assertTrue(treeProb.checkRequiresRecalculation());
+        assertEquals(getLogPFromScratch(tree, parametrization, cellType), treeProb.calculateLogP(), 0.0);
+        assertEquals(2 * numberOfEmissions, treeProb.cellProbabilityCount);
+        fateProbs.setValue(0, 0.8);
+        fateProbs.setValue(1, 0.2);
+        fateProbs.setEverythingDirty(false);
+        treeProb.restore();
+        assertEquals(logP, treeProb.getCurrentLogP(), 0.0);
+
+        // cell type change after the rejection uses the restored emissions
+        treeProb.store();
+        cellType.setValue(5, 1);
+        assertTrue(treeProb.checkRequiresRecalculation());
+        assertEquals(getLogPFromScratch(tree, parametrization, cellType), treeProb.calculateLogP(), 0.0);
+        assertEquals(2 * numberOfEmissions, treeProb.cellProbabilityCount);
+    }
+
+    @Test
+    /**
+     * The likelihood of a forest is the sum of the likelihoods of its trees,
+     * whether trees are calculated in parallel or not, and only dirty trees are recalculated.
+     */
+    public void testForestLikelihood() throws Exception {
+
+        Parametrization parametrization = getThreeTypeParametrization();
+        LineageTree tree = getElevenCellTree();
+
+        String[] cellTypes = {"-1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1",
+                "0 -1 2 -1 1 -1 -1 0 -1 -1 -1 -1 -1 1 -1",
+                "1 2 -1 -1 -1 0 -1 -1 2 -1 -1 -1 -1 -1 0",
+                "2 -1 -1",
+                "0 0 0 0 0 0 0 0 0 0 0 0 0 0 0",
+                "1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 2 -1"};
+
+        List<LineageTreeProb> treeProbs = new LinkedList<>();
+        List<IntegerParameter> cellTypeParameters = new LinkedList<>();
+        double sumLogP = 0;
+        for (String cellType : cellTypes) {
+            IntegerParameter cellTypeParameter = new IntegerParameter(cellType);
+            LineageTreeProb treeProb = new LineageTreeProb();
+            treeProb.initByName("tree", tree, "parametrization", parametrization, "cellType", cellTypeParameter);
+            treeProbs.add(treeProb);
+            cellTypeParameters.add(cellTypeParameter);
+            sumLogP += getLogPFromScratch(tree, parametrization, cellTypeParameter);
+        }
+
+        LineageForestProb sequentialForest = new LineageForestProb();
+        sequentialForest.initByName("treeProb", treeProbs, "threads", 1);
+        assertEquals(sumLogP, sequentialForest.calculateLogP(), 1e-10);
+
+        LineageForestProb parallelForest = new LineageForestProb();
+        parallelForest.initByName("treeProb", treeProbs, "threads", 4, "minChunkCost", 1);
+        assertEquals(sequentialForest.getCurrentLogP(), parallelForest.calculateLogP(), 0.0);
+
+        // change the type of a cell in two trees
+        cellTypeParameters.get(1).setValue(6, 1);
+        cellTypeParameters.get(4).setValue(3, 2);
+        sumLogP = 0;
+        for (int treeIdx = 0; treeIdx < treeProbs.size(); treeIdx++) {
+            treeProbs.get(treeIdx).checkDirtiness();
+            assertEquals(treeIdx == 1 || treeIdx == 4, treeProbs.get(treeIdx).isDirtyCalculation());
+            sumLogP += getLogPFromScratch(tree, parametrization, cellTypeParameters.get(treeIdx));
+        }
+        assertEquals(sumLogP, parallelForest.calculateLogP(), 1e-10);
+        assertEquals(getLogPFromScratch(tree, parametrization, cellTypeParameters.get(4)), parallelForest.getTreeLogP(4), 0.0);
+    }
+
+    @Test
+    /**
+     * A forest read from a csv file in long format gives the same likelihood as the same trees given one by one,
+     * with the dimensions of cellType assigned to the trees in the order of the file.
+     */
+    public void testForestFromCSV() throws Exception {
+
+        File file = getForestCSVFile();
+
+        LineageForest forest = new LineageForest();
+        forest.initByName("filePath", file.getPath(), "threads", 2);
+        assertEquals(2, forest.getTreeCount());
+        assertEquals("b", forest.getTreeId(1));
+        for (Node node : forest.getTree(1).getNodesAsArray()) {
+            if (((Cell) node).getTrackNumber() == 2)
+                assertEquals(Cell.Fate.A, ((Cell) node).getFate());
+        }
+
+        LineageTree treeB = new LineageTree();
+        ExperimentalMeasurements lifetime = new ExperimentalMeasurements();
+        lifetime.initByName("measurementTag", "lifetime", "values", "1:1.6,2:0.4");
+        ExperimentalMeasurements measure_1 = new ExperimentalMeasurements();
+        measure_1.initByName("measurementTag", "measure_1", "values", "1:-0.2,3:0.7");
+        treeB.initByName("measurement", lifetime, "measurement", measure_1, "cellsInTree", "1,2,3");
+        ((Cell) treeB.getRoot().getChild(0)).setFate(Cell.Fate.A);
+        ((Cell) treeB.getRoot().getChild(1)).setFate(Cell.Fate.U);
+
+        Parametrization parametrization = getThreeTypeParametrization();
+        IntegerParameter cellTypes = new IntegerParameter("0 -1 2 -1 1 -1 -1 0 -1 -1 -1 -1 -1 1 -1 2 -1 -1");
+
+        LineageForestProb forestProb = new LineageForestProb();
+        forestProb.initByName("forest", forest, "parametrization", parametrization, "cellType", cellTypes);
+        assertEquals(2, forestProb.getTreeCount());
+
+        double sumLogP = getLogPFromScratch(getElevenCellTree(), parametrization, cellTypes);
+        LineageTreeProb treeProbB = new LineageTreeProb();
+        treeProbB.initByName("tree", treeB, "parametrization", parametrization, "cellType", cellTypes, "treeIdx", 15);
+        sumLogP += treeProbB.calculateLogP();
+
+        assertEquals(sumLogP, forestProb.calculateLogP(), 1e-10);
+    }
+
+    @Test
+    /**
+     * Without cellType, a forest with rootTypeOnly sums over the types of the cells of each of its trees.
+     */
+    public void testForestWithRootTypeOnlyWithoutCellType() throws Exception {
+
+        LineageForest forest = new LineageForest();
+        forest.initByName("filePath", getForestCSVFile().getPath(), "threads", 1);
+        assertEquals(2, forest.getTreeCount());
+
+        Parametrization parametrization = getThreeTypeParametrization();
+        LineageForestProb forestProb = new LineageForestProb();
+        forestProb.initByName("forest", forest, "parametrization", parametrization, "rootTypeOnly", true);
+        assertEquals(2, forestProb.getTreeCount());
+
+        double sumLogP = 0;
+        for (int treeIdx = 0; treeIdx < forest.getTreeCount(); treeIdx++) {
+            LineageTreeProb treeProb = new LineageTreeProb();
+            treeProb.initByName("tree", forest.getTree(treeIdx), "parametrization", parametrization, "rootTypeOnly", true);
+            sumLogP += treeProb.calculateLogP();
+        }
+
+        assertEquals(sumLogP, forestProb.calculateLogP(), 1e-10);
+    }
+
+    @Test
+    /**
+     * Converting a forest to the binary format keeps the trees, their fates and their measurements,
+     * for trees read from csv as well as for trees defined in XML.
+     */
+    public void testBinaryForestFile() throws Exception {
+
+        LineageForest csvForest = new LineageForest();
+        csvForest.initByName("filePath", getForestCSVFile().getPath(), "threads", 1);
+
+        LineageTree xmlTree = getElevenCellTree();
+        xmlTree.setID("c");
+
+        File file = File.createTempFile("forest", ".bin");
+        file.deleteOnExit();
+        LineageForestConverter converter = new LineageForestConverter();
+        converter.initByName("forest", csvForest, "tree", xmlTree, "filePath", file.getPath());
+        converter.run();
+
+        LineageForest binaryForest = new LineageForest();
+        binaryForest.initByName("filePath", file.getPath(), "threads", 2);
+        assertEquals(3, binaryForest.getTreeCount());
+        assertEquals(csvForest.getMeasurementTags(), binaryForest.getMeasurementTags());
+
+        for (int treeIdx = 0; treeIdx < 3; treeIdx++) {
+            LineageTree expectedTree = treeIdx < 2 ? csvForest.getTree(treeIdx) : xmlTree;
+            LineageTree tree = binaryForest.getTree(treeIdx);
+            assertEquals(treeIdx < 2 ? csvForest.getTreeId(treeIdx) : "c", binaryForest.getTreeId(treeIdx));
+            assertEquals(expectedTree.toString(), tree.toString());
+            assertEquals(expectedTree.getNodeCount(), tree.getNodeCount());
+            for (int nodeNr = 0; nodeNr < tree.getNodeCount(); nodeNr++) {
+                Cell expectedCell = (Cell) expectedTree.getNode(nodeNr);
+                Cell cell = (Cell) tree.getNode(nodeNr);
+                assertEquals(expectedCell.getTrackNumber(), cell.getTrackNumber());
+                assertEquals(expectedCell.getFate(), cell.getFate());
+                assertEquals(expectedCell.getIsIncompletelyMeasured(), cell.getIsIncompletelyMeasured());
+                for (String tag : binaryForest.getMeasurementTags())
+                    assertEquals(expectedCell.getValueMeasured(tag), cell.getValueMeasured(tag));
+            }
+        }
+
+        // a file with an index of trees or a fate out of bounds is rejected.
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        int treeCount = bytes.getInt(8);
+        int cellCount = bytes.getInt(16);
+        bytes.position(20);
+        for (int stringIdx = 0; stringIdx < bytes.getInt(12) + treeCount; stringIdx++)
+            bytes.position(bytes.position() + 4 + bytes.getInt(bytes.position()));
+        int offsetsPosition = (bytes.position() + 7) & ~7;
+        int fatesPosition = offsetsPosition + 4 * (treeCount + 1) + 4 * cellCount;
+
+        ByteBuffer corruptedOffsets = ByteBuffer.wrap(bytes.array().clone()).order(ByteOrder.LITTLE_ENDIAN);
+        corruptedOffsets.putInt(offsetsPosition + 4, cellCount + 1);
+        assertCorrupted(corruptedOffsets.array());
+
+        ByteBuffer corruptedFates = ByteBuffer.wrap(bytes.array().clone()).order(ByteOrder.LITTLE_ENDIAN);
+        corruptedFates.put(fatesPosition, (byte) Cell.Fate.values().length);
+        assertCorrupted(corruptedFates.array());
+    }
+
+    static void assertCorrupted(byte[] content) throws Exception {
+        File file = File.createTempFile("forest", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        try {
+            new LineageForest().initByName("filePath", file.getPath(), "threads", 1);
+            fail("A corrupted lineage forest file must be rejected.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().endsWith("is truncated or corrupted."));
+        }
+    }
+
+    @Test
+    /**
+     * Cells are built from unsorted labels with duplicates, cells not connected to the root are left out,
+     * and cells are found by track number and by node number.
+     */
+    public void testCellLookups() throws Exception {
+
+        LineageTree tree = new LineageTree();
+        tree.initByName("cellsInTree", "3, 1, 2, 2, 12, 6, 7, 40, 13");
+
+        assertEquals(7, tree.getNodeCount());
+        assertEquals(13, tree.getLargestTrackNumber());
+        assertEquals(8, tree.getLabelsOfAllCellsInTree().size());
+        assertNull(tree.getCellByTrackNumber(40));
+        assertNull(tree.getCellByTrackNumber(5));
+
+        for (int trackNumber : new int[]{1, 2, 3, 6, 7, 12, 13}) {
+            Cell cell = tree.getCellByTrackNumber(trackNumber);
+            assertEquals(trackNumber, cell.getTrackNumber());
+            assertSame(cell, tree.getNodeByLabel(cell.getNr()));
+            assertEquals(trackNumber == 1 || trackNumber == 3 || trackNumber == 6 ? Cell.Fate.D : Cell.Fate.U, cell.getFate());
+            assertEquals(trackNumber == 1 ? 1 : (trackNumber < 4 ? 2 : (trackNumber < 8 ? 3 : 4)), Cell.getCellGeneration(trackNumber));
+            if (trackNumber != 1)
+                assertSame(tree.getCellByTrackNumber(trackNumber / 2), cell.getParent());
+        }
+        assertNull(tree.getNodeByLabel(7));
+    }
+
+    @Test
+    /**
+     * Trees written to a csv file are sorted by track number, and trees appended to a compressed file
+     * with their ids are read back by LineageForest.
+     */
+    public void testStreamingCSVWriter() throws Exception {
+
+        LineageForest forest = new LineageForest();
+        forest.initByName("filePath", getForestCSVFile().getPath(), "threads", 1);
+
+        File file = File.createTempFile("tree", ".csv");
+        file.deleteOnExit();
+        try (CellTreeCSVWriter writer = new CellTreeCSVWriter(file.getPath(), false, false, false)) {
+            writer.write(forest.getTree(1));
+        }
+        assertEquals(Arrays.asList("TrackNumber,Fate,lifetime,measure_1", "1,D,1.600,-0.200", "2,A,0.400,NA", "3,U,NA,0.700"),
+                Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+
+        File compressedFile = File.createTempFile("forest", ".csv.gz");
+        compressedFile.deleteOnExit();
+        for (int treeIdx = 0; treeIdx < 2; treeIdx++) {
+            try (CellTreeCSVWriter writer = new CellTreeCSVWriter(compressedFile.getPath(), true, true, true)) {
+                writer.write(forest.getTree(treeIdx));
+            }
+        }
+
+        LineageForest writtenForest = new LineageForest();
+        writtenForest.initByName("filePath", compressedFile.getPath(), "threads", 1);
+        assertEquals(2, writtenForest.getTreeCount());
+        assertEquals(forest.getMeasurementTags(), writtenForest.getMeasurementTags());
+        for (int treeIdx = 0; treeIdx < 2; treeIdx++) {
+            LineageTree expectedTree = forest.getTree(treeIdx);
+            LineageTree tree = writtenForest.getTree(treeIdx);
+            assertEquals(forest.getTreeId(treeIdx), writtenForest.getTreeId(treeIdx));
+            assertEquals(expectedTree.getNodeCount(), tree.getNodeCount());
+            for (int nodeNr = 0; nodeNr < tree.getNodeCount(); nodeNr++) {
+                Cell expectedCell = (Cell) expectedTree.getNode(nodeNr);
+                Cell cell = (Cell) tree.getNode(nodeNr);
+                assertEquals(expectedCell.getTrackNumber(), cell.getTrackNumber());
+                assertEquals(expectedCell.getFate(), cell.getFate());
+                for (String tag : forest.getMeasurementTags())
+                    assertEquals(expectedCell.getValueMeasured(tag), cell.getValueMeasured(tag), 1e-3);
+            }
+        }
+
+        // trees are not appended under the header of a file with other columns.
+        LineageTree lifetimeTree = new LineageTree();
+        ExperimentalMeasurements lifetime = new ExperimentalMeasurements();
+        lifetime.initByName("measurementTag", "lifetime", "values", "1:1.6,2:0.4,3:0.9");
+        lifetimeTree.initByName("measurement", lifetime, "cellsInTree", "1,2,3");
+        lifetimeTree.setID("c");
+        for (File appendedFile : new File[]{file, compressedFile}) {
+            boolean compress = appendedFile == compressedFile;
+            try (CellTreeCSVWriter writer = new CellTreeCSVWriter(appendedFile.getPath(), true, compress, compress)) {
+                writer.write(lifetimeTree);
+                fail("A tree with other columns than the file must not be appended.");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("must have the columns of the file"));
+            }
+        }
+        try (CellTreeCSVWriter writer = new CellTreeCSVWriter(file.getPath(), true, false, true)) {
+            writer.write(forest.getTree(0));
+            fail("A tree with a treeId column must not be appended to a file without one.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("must have the columns of the file"));
+        }
+        assertEquals(4, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    /**
+     * Simulated forests are the same for a given seed whatever the number of threads,
+     * and daughter types follow generation-specific transition probabilities.
+     */
+    public void testReproducibleForestSimulation() throws Exception {
+
+        DistributionForMeasurement distr_lifetime = new DistributionForMeasurement();
+        distr_lifetime.initByName("measurementTag", "lifetime",
+                "parm1Distribution", new RealParameter("1.1 1.4"),
+                "parm2Distribution", new RealParameter("1.5 2.0"),
+                "distributionType", "gamma",
+                "zeroFraction", new RealParameter("0.2 0.1"));
+
+        // mothers of generation 1 have daughters of type 1, mothers of generation 2 have daughters of type 0.
+        Parametrization parametrization = new Parametrization();
+        parametrization.initByName("distribution", distr_lifetime,
+                "transitionUponDivisionProbs", new RealParameter("0 0 1"),
+                "transitionUponDivisionProbs", new RealParameter("0 0 1"),
+                "transitionUponDivisionProbs", new RealParameter("1 0 0"),
+                "transitionUponDivisionProbs", new RealParameter("1 0 0"),
+                "haveGenerationSpecificTransitionProbs", true,
+                "typeFrequencies", new RealParameter("0.5 0.5"));
+
+        SimulatedLineageForest sequentialForest = new SimulatedLineageForest();
+        sequentialForest.initByName("parametrization", parametrization, "lastGeneration", 3, "treeCount", 20,
+                "seed", 17L, "threads", 1);
+        SimulatedLineageForest parallelForest = new SimulatedLineageForest();
+        parallelForest.initByName("parametrization", parametrization, "lastGeneration", 3, "treeCount", 20,
+                "seed", 17L, "threads", 4);
+
+        SortedSet<String> tags = parametrization.getMeasurementTags();
+        boolean treesDiffer = false;
+        for (int treeIdx = 0; treeIdx < 20; treeIdx++) {
+            SimulatedLineageTree tree = sequentialForest.getTree(treeIdx);
+            SimulatedLineageTree parallelTree = parallelForest.getTree(treeIdx);
+            assertEquals(7, tree.getNodeCount());
+            for (int trackNumber = 1; trackNumber <= 7; trackNumber++) {
+                SimulatedCell cell = (SimulatedCell) tree.getCellByTrackNumber(trackNumber);
+                assertEquals(cell.toCSVRecord(tags), parallelTree.getCellByTrackNumber(trackNumber).toCSVRecord(tags));
+                if(trackNumber > 1)
+                    assertEquals(trackNumber < 4 ? 1 : 0, cell.getCellType());
+            }
+            // trees draw from different streams.
+            treesDiffer |= tree.getCellByTrackNumber(7).getValueMeasured("lifetime")
+                    != sequentialForest.getTree(0).getCellByTrackNumber(7).getValueMeasured("lifetime");
+        }
+        assertTrue(treesDiffer);
+    }
+
+    @Test
+    /**
+     * Measurements drawn by the samplers of all distribution types have the expected means and zero fractions.
+     */
+    public void testMeasurementSamplers() throws Exception {
+
+        String[] distributionTypes = {"normal", "lognormal", "gamma", "beta", "weibull_scale_shape", "weibull_median_shape"};
+        double[] parm1 = {1.5, 0.2, 2.0, 0.2, 1.3, 1.3 * Math.pow(Math.log(2), 1 / 1.7)};
+        double[] parm2 = {0.7, 0.5, 0.3, 0.3, 1.7, 1.7};
+        double weibullMean = 1.3 * Math.exp(Gamma.logGamma(1 + 1 / 1.7));
+        double[] expectedMeans = {1.5, Math.exp(0.2 + 0.125), 2.0, 0.4, weibullMean, weibullMean};
+
+        int sampleSize = 200000;
+        for (int typeIdx = 0; typeIdx < distributionTypes.length; typeIdx++) {
+            DistributionForMeasurement distribution = new DistributionForMeasurement();
+            distribution.initByName("measurementTag", "measure",
+                    "parm1Distribution", new RealParameter("0.5 " + parm1[typeIdx]),
+                    "parm2Distribution", new RealParameter("0.5 " + parm2[typeIdx]),
+                    "distributionType", distributionTypes[typeIdx],
+                    "zeroFraction", new RealParameter("0.1 0.25"));
+
+            SplittableRandomGenerator random = new SplittableRandomGenerator(typeIdx);
+            double sum = 0;
+            int zeroCount = 0;
+            for (int i = 0; i < sampleSize; i++) {
+                double value = distribution.sample(1, random);
+                sum += value;
+                if(value == 0)
+                    zeroCount++;
+            }
+            assertEquals(distributionTypes[typeIdx], 0.75 * expectedMeans[typeIdx], sum / sampleSize, 0.02 * expectedMeans[typeIdx]);
+            assertEquals(distributionTypes[typeIdx], 0.25, (double) zeroCount / sampleSize, 0.005);
+
+            // the same seed gives the same values.
+            assertEquals(distribution.sample(1, new SplittableRandomGenerator(42)), distribution.sample(1, new SplittableRandomGenerator(42)));
+        }
+    }
+
+    @Test
+    /**
+     * When trees share a cellType parameter, changing one dimension only requires the recalculation of the tree owning it.
+     */
+    public void testSharedCellTypeDirtiness() throws Exception {
+
+        Parametrization parametrization = getThreeTypeParametrization();
+        LineageTree tree = getElevenCellTree();
+        IntegerParameter rootTypes = new IntegerParameter("0 1 2 0");
+
+        List<InspectableLineageTreeProb> treeProbs = new LinkedList<>();
+        for (int treeIdx = 0; treeIdx < 4; treeIdx++) {
+            InspectableLineageTreeProb treeProb = new InspectableLineageTreeProb();
+            treeProb.initByName("tree", tree, "parametrization", parametrization, "cellType", rootTypes,
+                    "treeIdx", treeIdx, "rootTypeOnly", true);
+            treeProb.calculateLogP();
+            treeProbs.add(treeProb);
+        }
+
+        rootTypes.setValue(2, 1);
+        for (int treeIdx = 0; treeIdx < 4; treeIdx++) {
+            assertEquals(treeIdx == 2, treeProbs.get(treeIdx).checkRequiresRecalculation());
+        }
+        assertEquals(treeProbs.get(1).getCurrentLogP(), treeProbs.get(2).calculateLogP(), 0.0);
+
+        // in a forest, the tree owning a changed dimension is found from the map of the dimensions.
+        InspectableLineageForestProb forestProb = new InspectableLineageForestProb();
+        forestProb.initByName("treeProb", treeProbs, "threads", 1);
+        forestProb.calculateLogP();
+
+        rootTypes.setEverythingDirty(false);
+        rootTypes.setValue(1, 2);
+        for (int treeIdx = 0; treeIdx < 4; treeIdx++) {
+            assertEquals(treeIdx == 1, treeProbs.get(treeIdx).checkRequiresRecalculation());
+        }
+        // the forest is checked after its trees, which ends the step.
+        forestProb.checkRequiresRecalculation();
+
+        // with several changed dimensions, each tree checks its own dimensions.
+        rootTypes.setEverythingDirty(false);
+        rootTypes.setValue(0, 2);
+        rootTypes.setValue(3, 1);
+        for (int treeIdx = 0; treeIdx < 4; treeIdx++) {
+            assertEquals(treeIdx == 0 || treeIdx == 3, treeProbs.get(treeIdx).checkRequiresRecalculation());
+        }
+        assertEquals(getLogPFromScratch(tree, parametrization, new IntegerParameter("2")), treeProbs.get(0).calculateLogP(), 1e-10);
+    }
+
+    @Test
+    /**
+     * All pruning kernels give the same likelihood, up to rounding.
+     * The vector kernel falls back to the scalar one if the Vector API is not available.
+     */
+    public void testPruningKernels() throws Exception {
+
+        Parametrization parametrization = getParametrization(12);
+        LineageTree tree = getElevenCellTree();
+
+        double[] recursivePruning = null;
+        double recursiveLogP = 0;
+        for (String kernel : new String[]{"scalar", "vector", "auto"}) {
+            LineageTreeProb treeProb = new LineageTreeProb();
+            treeProb.initByName("tree", tree, "parametrization", parametrization,
+                    "cellType", new IntegerParameter("-1 -1 -1 -1 5 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1"),
+                    "pruningKernel", kernel);
+            assertNotNull(treeProb.getPruningKernel());
+
+            if(recursivePruning == null) {
+                recursivePruning = calculatePruningProb(treeProb, (Cell) tree.getRoot());
+                double p = 0;
+                for (int i = 0; i < recursivePruning.length; i++)
+                    p += recursivePruning[i] * parametrization.getTypeFreq(i);
+                recursiveLogP = Math.log(p);
+            }
+
+            assertEquals(recursiveLogP, treeProb.calculateLogP(), Math.abs(recursiveLogP) * 1e-12);
+        }
+    }
+
+    @Test
+    public void testUnrolledPruningKernels() throws Exception {
+
+        LineageTree tree = getElevenCellTree();
+
+        for (int numberOfCellTypes = 2; numberOfCellTypes <= 4; numberOfCellTypes++) {
+            Parametrization parametrization = getParametrization(numberOfCellTypes);
+
+            double[] logPs = new double[2];
+            String[] kernels = new String[]{"scalar", "auto"};
+            for (int kernelIdx = 0; kernelIdx < kernels.length; kernelIdx++) {
+                LineageTreeProb treeProb = new LineageTreeProb();
+                treeProb.initByName("tree", tree, "parametrization", parametrization,
+                        "cellType", new IntegerParameter("-1 -1 -1 -1 1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1"),
+                        "pruningKernel", kernels[kernelIdx]);
+                logPs[kernelIdx] = treeProb.calculateLogP();
+            }
+
+            LineageTreeProb treeProb = new LineageTreeProb();
+            treeProb.initByName("tree", tree, "parametrization", parametrization, "pruningKernel", "auto");
+            assertEquals(PruningKernel.getUnrolledKernel(numberOfCellTypes).getClass(), treeProb.getPruningKernel().getClass());
+
+            // sums are taken in the same order, so results are identical.
+            assertEquals(logPs[0], logPs[1], 0.0);
+        }
+    }
+
+    @Test
+    public void testLikelihoodGradient() throws Exception {
+
+        LineageTree tree = getElevenCellTree();
+
+        // lifetimes of leaves and of the root are not fully observed, which uses the cumulative distribution.
+        DistributionForMeasurement distr_lifetime = new DistributionForMeasurement();
+        distr_lifetime.initByName("measurementTag", "lifetime",
+                "parm1Distribution", new RealParameter("1.2 0.8"),
+                "parm2Distribution", new RealParameter("2.5 1.6"),
+                "distributionType", "gamma",
+                "estimateType", "max",
+                "isAppliedToRootCells", true);
+
+        DistributionForMeasurement distr_measure1 = new DistributionForMeasurement();
+        distr_measure1.initByName("measurementTag", "measure_1",
+                "parm1Distribution", new RealParameter("0.2 -0.3"),
+                "parm2Distribution", new RealParameter("0.7 0.5"),
+                "zeroFraction", new RealParameter("0.05 0.1"),
+                "distributionType", "normal",
+                "estimateType", "mean",
+                "isAppliedToRootCells", true);
+
+        List<DistributionForMeasurement> distributions = new LinkedList<>();
+        distributions.add(distr_lifetime);
+        distributions.add(distr_measure1);
+
+        RealParameter transitionProbs0 = new RealParameter("0.5 0.3 0.2");
+        RealParameter transitionProbs1 = new RealParameter("0.0 0.4 0.6");
+        Parametrization parametrization = new Parametrization();
+        parametrization.initByName("distribution", distributions,
+                "transitionUponDivisionProbs", transitionProbs0,
+                "transitionUponDivisionProbs", transitionProbs1,
+                "fateProbabilities", new RealParameter("0.9 0.1"),
+                "fateProbabilities", new RealParameter("0.7 0.3"),
+                "typeFrequencies", new RealParameter("0.4 0.6"),
+                "lossProb", new RealParameter("0.05"));
+
+        LineageTreeProb treeProb = new LineageTreeProb();
+        treeProb.initByName("tree", tree, "parametrization", parametrization,
+                "cellType", new IntegerParameter("-1 -1 -1 1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1"));
+        double logP = treeProb.calculateLogP();
+
+        ParametrizationGradient gradient = new ParametrizationGradient(parametrization);
+        assertEquals(logP, treeProb.calculateLogPGradient(gradient), 1e-12);
+        // the cached likelihood is left unchanged.
+        assertEquals(logP, treeProb.getCurrentLogP(), 0.0);
+
+        List<RealParameter> parameters = new LinkedList<>();
+        parameters.add(transitionProbs0);
+        parameters.add(transitionProbs1);
+        parameters.addAll(parametrization.fateProbabilitiesInput.get());
+        parameters.add(parametrization.typeFrequenciesInput.get());
+        parameters.add(parametrization.lossProbInput.get());
+        for (DistributionForMeasurement distr : distributions) {
+            parameters.add((RealParameter) distr.parm1DistributionInput.get());
+            parameters.add((RealParameter) distr.parm2DistributionInput.get());
+        }
+        parameters.add((RealParameter) distr_measure1.zeroFractionInput.get());
+
+        ParametrizationGradient scratchGradient = new ParametrizationGradient(parametrization);
+        for (RealParameter parameter : parameters) {
+            double[] parameterGradient = new double[parameter.getDimension()];
+            assertTrue(gradient.getGradient(parameter, parameterGradient));
+
+            for (int i = 0; i < parameter.getDimension(); i++) {
+                double value = parameter.getArrayValue(i);
+                if(value == 0)
+                    continue;
+                double h = 1e-6 * Math.abs(value);
+                parameter.setValue(i, value + h);
+                double logPPlus = treeProb.calculateLogPGradient(scratchGradient);
+                parameter.setValue(i, value - h);
+                double logPMinus = treeProb.calculateLogPGradient(scratchGradient);
+                parameter.setValue(i, value);
+
+                double finiteDifference = (logPPlus - logPMinus) / (2 * h);
+                assertEquals(finiteDifference, parameterGradient[i], 1e-5 * Math.max(1, Math.abs(finiteDifference)));
+            }
+        }
+
+        // HMC proposals keep simplices normalised and their zero elements at zero.
+        HamiltonianMonteCarloOperator operator = new HamiltonianMonteCarloOperator();
+        operator.initByName("weight", 1.0, "likelihood", treeProb,
+                "simplex", transitionProbs0, "simplex", transitionProbs1,
+                "positiveParameter", distr_lifetime.parm2DistributionInput.get(),
+                "parameter", distr_measure1.parm1DistributionInput.get());
+        for (int proposal = 0; proposal < 10; proposal++) {
+            double logHastingsRatio = operator.proposal();
+            assertFalse(Double.isNaN(logHastingsRatio));
+            assertEquals(1.0, transitionProbs0.getArrayValue(0) + transitionProbs0.getArrayValue(1) + transitionProbs0.getArrayValue(2), 1e-12);
+            assertEquals(1.0, transitionProbs1.getArrayValue(1) + transitionProbs1.getArrayValue(2), 1e-12);
+            assertEquals(0.0, transitionProbs1.getArrayValue(0));
+        }
+    }
+
+    @Test
+    /**
+     * The marginal posterior probability of a cell being of a type is the likelihood with the type of the cell fixed,
+     * relative to the likelihood summed over all types.
+     */
+    public void testMarginalTypeProbabilities() throws Exception {
+
+        Parametrization parametrization = getParametrization(3);
+        LineageTree tree = getElevenCellTree();
+
+        String[] cellTypes = new String[15];
+        Arrays.fill(cellTypes, "-1");
+        cellTypes[4] = "2";
+        IntegerParameter cellType = new IntegerParameter(String.join(" ", cellTypes));
+
+        LineageTreeProb treeProb = new LineageTreeProb();
+        treeProb.initByName("tree", tree, "parametrization", parametrization, "cellType", cellType);
+        double logP = treeProb.calculateLogP();
+        double[] marginalTypeProbabilities = treeProb.calculateMarginalTypeProbabilities().clone();
+        // the cached likelihood is left unchanged.
+        assertEquals(logP, treeProb.calculateLogP(), 0.0);
+
+        FlattenedCellTree flattenedTree = treeProb.getFlattenedTree();
+        for (int nodeNr = 0; nodeNr < flattenedTree.getNodeCount(); nodeNr++) {
+            int trackNumber = flattenedTree.getTrackNumber(nodeNr);
+            int offset = treeProb.getPartialsOffset(nodeNr);
+
+            double sumProbs = 0;
+            for (int i = 0; i < 3; i++) {
+                double marginalTypeProbability = marginalTypeProbabilities[offset + i];
+                sumProbs += marginalTypeProbability;
+                if(trackNumber == 5) {
+                    assertEquals(i == 2 ? 1.0 : 0.0, marginalTypeProbability, 1e-12);
+                    continue;
+                }
+
+                String[] fixedCellTypes = cellTypes.clone();
+                fixedCellTypes[trackNumber - 1] = i + "";
+                LineageTreeProb fixedTreeProb = new LineageTreeProb();
+                fixedTreeProb.initByName("tree", tree, "parametrization", parametrization,
+                        "cellType", new IntegerParameter(String.join(" ", fixedCellTypes)));
+                assertEquals(Math.exp(fixedTreeProb.calculateLogP() - logP), marginalTypeProbability, 1e-12);
+            }
+            assertEquals(1.0, sumProbs, 1e-12);
+        }
+    }
+
+    @Test
+    public void testMeasurementStore() throws Exception {
+
+        LineageTree tree = getElevenCellTree();
+        MeasurementStore measurementStore = tree.getMeasurementStore();
+        assertEquals(2, measurementStore.getNumberOfColumns());
+
+        Parametrization parametrization = getParametrization(2);
+        int[] columnIndices = measurementStore.getColumnIndices(parametrization.getDistributions());
+        assertEquals(measurementStore.getColumnIndex("lifetime"), columnIndices[0]);
+        assertEquals(measurementStore.getColumnIndex("measure_1"), columnIndices[1]);
+        assertEquals(-1, measurementStore.getColumnIndex("measure_2"));
+
+        for (Node node : tree.getNodesAsArray()) {
+            Cell cell = (Cell) node;
+            double[] lifetimes = measurementStore.getColumn(columnIndices[0]);
+            assertEquals(cell.getValueMeasured("lifetime"), lifetimes[cell.getNr()], 0.0);
+            assertEquals(cell.getTrackNumber() != 15, measurementStore.isMeasured(columnIndices[1], cell.getNr()));
+            assertTrue(Double.isNaN(cell.getValueMeasured("measure_2")));
+        }
+        assertEquals(-0.3, ((Cell) tree.getRoot().getChild(1)).getValueMeasured("measure_1"), 0.0);
+    }
+
+    @Test
+    /**
+     * The batched probabilities of all cells and types are those of getProbability, up to rounding,
+     * including at the boundaries of the supports of the distributions.
+     */
+    public void testBatchedProbabilities() throws Exception {
+
+        double[] values = {0.7, Double.NaN, 0.0, -0.4, 1.0, 2.6, 0.05, 0.3, 1.8};
+        boolean[] isIncompleteObservation = {false, false, false, true, false, true, false, false, true};
+        Cell.Fate[] fates = {Cell.Fate.D, Cell.Fate.D, Cell.Fate.A, Cell.Fate.U, Cell.Fate.D, Cell.Fate.U,
+                Cell.Fate.D, Cell.Fate.U, Cell.Fate.D};
+        boolean[] isRootCell = {true, false, false, false, false, false, false, false, false};
+
+        for (String distributionType : new String[]{"gamma", "lognormal", "normal", "beta", "weibull_scale_shape", "weibull_median_shape"}) {
+            for (String estimateType : new String[]{"mean", "max", "min"}) {
+                DistributionForMeasurement distribution = new DistributionForMeasurement();
+                distribution.initByName("measurementTag", "measure_1",
+                        "parm1Distribution", new RealParameter(distributionType.equals("normal") ? "-0.2 0.4 1.1" : "0.8 1.4 2.1"),
+                        "parm2Distribution", new RealParameter("0.6 1.3 2.4"),
+                        "zeroFraction", new RealParameter("0.05 0.1 0.02"),
+                        "distributionType", distributionType,
+                        "estimateType", estimateType,
+                        "isAppliedToRootCells", false);
+
+                PreparedMeasurements measurements = distribution.prepareMeasurements(values, isIncompleteObservation, fates, isRootCell);
+                double[] probabilities = new double[values.length * 3];
+                distribution.getProbabilities(measurements, probabilities);
+
+                for (int cellIdx = 0; cellIdx < values.length; cellIdx++) {
+                    for (int cellType = 0; cellType < 3; cellType++) {
+                        double p = distribution.getProbability(values[cellIdx], cellType, isIncompleteObservation[cellIdx],
+                                fates[cellIdx], isRootCell[cellIdx]);
+                        assertEquals(p, probabilities[cellIdx * 3 + cellType], p * 1e-12);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    /**
+     * The cached constants of the densities follow the changes of the parameters of the distributions.
+     */
+    public void testCachedDensityConstants() throws Exception {
+
+        double[] values = {0.7, 0.2, 1.6};
+        boolean[] isIncompleteObservation = {false, false, false};
+        Cell.Fate[] fates = {Cell.Fate.D, Cell.Fate.D, Cell.Fate.D};
+        boolean[] isRootCell = {false, false, false};
+
+        for (String distributionType : new String[]{"gamma", "lognormal", "normal", "beta", "weibull_scale_shape", "weibull_median_shape"}) {
+            RealParameter parm1 = new RealParameter("0.8 1.4");
+            RealParameter parm2 = new RealParameter("0.6 1.3");
+            DistributionForMeasurement distribution = new DistributionForMeasurement();
+            distribution.initByName("measurementTag", "measure_1",
+                    "parm1Distribution", parm1,
+                    "parm2Distribution", parm2,
+                    "distributionType", distributionType,
+                    "estimateType", "mean");
+
+            PreparedMeasurements measurements = distribution.prepareMeasurements(values, isIncompleteObservation, fates, isRootCell);
+            double[] probabilities = new double[values.length * 2];
+
+            for (double[] parms : new double[][]{{0.8, 0.6}, {0.5, 2.2}, {0.5, 0.9}, {0.8, 0.6}}) {
+                parm1.setValue(1, parms[0]);
+                parm2.setValue(1, parms[1]);
+                distribution.getProbabilities(measurements, probabilities);
+
+                for (int cellIdx = 0; cellIdx < values.length; cellIdx++) {
+                    double x = values[cellIdx];
+                    double p;
+                    switch (distributionType) {
+                        case "gamma":
+                            p = Utils.getGammaDensityMeanShapeParam(x, parms[0], parms[1]);
+                            break;
+                        case "lognormal":
+                            p = Utils.getLogNormalDensity(x, parms[0], parms[1]);
+                            break;
+                        case "normal":
+                            p = Utils.getNormalDensity(x, parms[0], parms[1]);
+                            break;
+                        case "beta":
+                            p = Utils.getBetaDensity(x, parms[0], parms[1]);
+                            break;
+                        case "weibull_scale_shape":
+                            p = Utils.getWeibullDensity(x, parms[0], parms[1]);
+                            break;
+                        default:
+                            p = Utils.getWeibullDensityMedianShapeParam(x, parms[0], parms[1]);
+                    }
+                    assertEquals(p, probabilities[cellIdx * 2 + 1], p * 1e-12);
+                    assertEquals(p, distribution.getProbability(x, 1, false, Cell.Fate.D, false), p * 1e-12);
+                }
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Tabulated cumulative distributions of gamma and beta distributions stay within the tolerance of the exact ones,
+     * also after a change of parameters, and are exact in the tails.
+     */
+    public void testTabulatedCumulativeDistributions() throws Exception {
+
+        double tolerance = 1e-7;
+
+        for (String distributionType : new String[]{"gamma", "beta"}) {
+            RealParameter parm1 = new RealParameter("0.8 2.5");
+            RealParameter parm2 = new RealParameter("0.4 3.0");
+            DistributionForMeasurement distribution = new DistributionForMeasurement();
+            distribution.initByName("measurementTag", "measure_1",
+                    "parm1Distribution", parm1,
+                    "parm2Distribution", parm2,
+                    "distributionType", distributionType,
+                    "estimateType", "min",
+                    "cumulativeDistributionTolerance", tolerance);
+
+            for (double[] parms : new double[][]{{2.5, 3.0}, {0.3, 25.0}, {2.5, 3.0}}) {
+                parm1.setValue(1, parms[0]);
+                parm2.setValue(1, parms[1]);
+                for (int cellType = 0; cellType < 2; cellType++) {
+                    double p1 = parm1.getArrayValue(cellType);
+                    double p2 = parm2.getArrayValue(cellType);
+                    for (int i = 1; i < 1000; i++) {
+                        double x = distributionType.equals("gamma") ? Math.pow(10, -6 + i * 0.009) : i / 1000.0;
+                        double exact = distributionType.equals("gamma") ?
+                                Utils.getGammaCumulativeDistributionMeanShapeParam(x, p1, p2) :
+                                Utils.getBetaCumulativeDistribution(x, p1, p2);
+                        double p = distribution.getProbability(x, cellType, true, Cell.Fate.D, false);
+                        assertEquals(exact, p, tolerance);
+                        if (exact < 1e-9)
+                            assertEquals(exact, p, 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Only the probabilities of the measurements whose distribution changed are recalculated,
+     * and a rejected change brings back the cached probabilities of the distribution.
+     */
+    public void testDistributionEmissionCache() throws Exception {
+
+        CountingDistribution distr_lifetime = new CountingDistribution();
+        distr_lifetime.initByName("measurementTag", "lifetime",
+                "parm1Distribution", new RealParameter("1.1 1.4 0.8"),
+                "parm2Distribution", new RealParameter("1.5 2.0 1.2"),
+                "distributionType", "gamma",
+                "estimateType", "max",
+                "isAppliedToRootCells", true);
+
+        CountingDistribution distr_measure1 = new CountingDistribution();
+        distr_measure1.initByName("measurementTag", "measure_1",
+                "parm1Distribution", new RealParameter("-0.4 -0.1 0.3"),
+                "parm2Distribution", new RealParameter("0.4 0.3 0.6"),
+                "distributionType", "normal",
+                "estimateType", "mean",
+                "isAppliedToRootCells", false);
+
+        List<DistributionForMeasurement> distributions = new LinkedList<>();
+        distributions.add(distr_lifetime);
+        distributions.add(distr_measure1);
+
+        Parametrization parametrization = new Parametrization();
+        parametrization.initByName("distribution", distributions,
+                "transitionUponDivisionProbs", new RealParameter("0.3 0.1 0.1 0.2 0.2 0.1"),
+                "transitionUponDivisionProbs", new RealParameter("0.1 0.2 0.05 0.4 0.15 0.1"),
+                "transitionUponDivisionProbs", new RealParameter("0.05 0.05 0.1 0.2 0.3 0.3"),
+                "fateProbabilities", new RealParameter("0.9 0.1"),
+                "fateProbabilities", new RealParameter("0.7 0.3"),
+                "fateProbabilities", new RealParameter("0.8 0.2"),
+                "typeFrequencies", new RealParameter("0.5 0.3 0.2"),
+                "lossProb", new RealParameter("0.05"));
+
+        LineageTree tree = getElevenCellTree();
+        IntegerParameter cellType = new IntegerParameter("0 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1 -1");
+        InspectableLineageTreeProb treeProb = new InspectableLineageTreeProb();
+        treeProb.initByName("tree", tree, "parametrization", parametrization, "cellType", cellType);
+        treeProb.calculateLogP();
+        assertEquals(1, distr_lifetime.probabilitiesCount);
+        assertEquals(1, distr_measure1.probabilitiesCount);
+
+        // rejected change of the distribution of measure_1
+        double logP = treeProb.getCurrentLogP();
+        RealParameter means = (RealParameter) distr_measure1.parm1DistributionInput.get();
+        treeProb.store();
+        means.setValue(1, 0.2);
+        distr_measure1.checkDirtiness();
+        parametrization.checkDirtiness();
+        assertTrue(treeProb.checkRequiresRecalculation());
+        double newLogP = treeProb.calculateLogP();
+        assertEquals(1, distr_lifetime.probabilitiesCount);
+        assertEquals(2, distr_measure1.probabilitiesCount);
+        assertEquals(getLogPFromScratch(tree, parametrization, cellType), newLogP, 0.0);
+        distr_lifetime.probabilitiesCount = 0;
+        distr_measure1.probabilitiesCount = 0;
+        means.setValue(1, -0.1);
+        means.setEverythingDirty(false);
+        distr_measure1.checkDirtiness();
+        treeProb.restore();
+        assertEquals(logP, treeProb.getCurrentLogP(), 0.0);
+
+        // accepted change of the distribution of lifetimes, after which measure_1 uses its restored probabilities.
+        RealParameter shapes = (RealParameter) distr_lifetime.parm2DistributionInput.get();
+        treeProb.store();
+        shapes.setValue(2, 1.7);
+        distr_lifetime.checkDirtiness();
+        parametrization.checkDirtiness();
+        assertTrue(treeProb.checkRequiresRecalculation());
+        newLogP = treeProb.calculateLogP();
+        assertEquals(1, distr_lifetime.probabilitiesCount);
+        assertEquals(0, distr_measure1.probabilitiesCount);
+        assertEquals(getLogPFromScratch(tree, parametrization, cellType), newLogP, 0.0);
+    }
+
+    /**
+     * Parametrization with an arbitrary number of cell types, for the measurements of getElevenCellTree.
+     */
+    Parametrization getParametrization(int numberOfCellTypes) {
+
+        String lifetimeMeans = "", lifetimeShapes = "", measureMeans = "", measureSDs = "";
+        for (int i = 0; i < numberOfCellTypes; i++) {
+            lifetimeMeans += (1.0 + 0.1 * i) + " ";
+            lifetimeShapes += (1.5 + 0.05 * i) + " ";
+            measureMeans += (-0.5 + 0.1 * i) + " ";
+            measureSDs += (0.3 + 0.02 * i) + " ";
+        }
+
+        DistributionForMeasurement distr_lifetime = new DistributionForMeasurement();
+        distr_lifetime.initByName("measurementTag", "lifetime",
+                "parm1Distribution", new RealParameter(lifetimeMeans),
+                "parm2Distribution", new RealParameter(lifetimeShapes),
+                "distributionType", "gamma",
+                "estimateType", "max",
+                "isAppliedToRootCells", true);
+
+        DistributionForMeasurement distr_measure1 = new DistributionForMeasurement();
+        distr_measure1.initByName("measurementTag", "measure_1",
+                "parm1Distribution", new RealParameter(measureMeans),
+                "parm2Distribution", new RealParameter(measureSDs),
+                "distributionType", "normal",
+                "estimateType", "mean",
+                "isAppliedToRootCells", false);
+
+        List<DistributionForMeasurement> distributions = new LinkedList<>();
+        distributions.add(distr_lifetime);
+        distributions.add(distr_measure1);
+
+        List<RealParameter> transitionUponDivisionProbs = new LinkedList<>();
+        int numberOfTypePairs = numberOfCellTypes * (numberOfCellTypes + 1) / 2;
+        for (int i = 0; i < numberOfCellTypes; i++) {
+            double[] weights = new double[numberOfTypePairs];
+            double sumWeights = 0;
+            for (int m = 0; m < numberOfTypePairs; m++) {
+                weights[m] = 1 + (i + m) % 5;
+                sumWeights += weights[m];
+            }
+            String probs = "";
+            for (int m = 0; m < numberOfTypePairs; m++)
+                probs += (weights[m] / sumWeights) + " ";
+            transitionUponDivisionProbs.add(new RealParameter(probs));
+        }
+
+        Parametrization parametrization = new Parametrization();
+        parametrization.initByName("distribution", distributions,
+                "transitionUponDivisionProbs", transitionUponDivisionProbs);
+
+        return parametrization;
+    }
+
+    static class CountingDistribution extends DistributionForMeasurement {
+
+        int probabilitiesCount = 0;
+
+        @Override
+        public void getProbabilities(PreparedMeasurements measurements, double[] probabilities) {
+            probabilitiesCount++;
+            super.getProbabilities(measurements, probabilities);
+        }
+
+        @Override
+        protected boolean requiresRecalculation() {
+            return ((RealParameter) parm1DistributionInput.get()).somethingIsDirty()
+                    || ((RealParameter) parm2DistributionInput.get()).somethingIsDirty();
+        }
+    }
+
+    static class InspectableLineageTreeProb extends LineageTreeProb {
+
+        int cellProbabilityCount = 0;
+
+        boolean checkRequiresRecalculation() {
+            return requiresRecalculation();
+        }
+
+        @Override
+        protected void calculateEmissions(double[] cellEmissions) {
+            cellProbabilityCount += cellEmissions.length;
+            super.calculateEmissions(cellEmissions);
+        }
+    }
+
+    static class InspectableLineageForestProb extends LineageForestProb {
+
+        boolean checkRequiresRecalculation() {
+            return requiresRecalculation();
+        }
+    }
+
+    double getLogPFromScratch(LineageTree tree, Parametrization parametrization, IntegerParameter cellType) {
+        LineageTreeProb treeProb = new LineageTreeProb();
+        treeProb.initByName("tree", tree, "parametrization", parametrization,
+                "cellType", new IntegerParameter(cellType.getValues()));
+        return treeProb.calculateLogP();
+    }
+
+    /**
+     * Recursive implementation of the pruning algorithm, used as a reference for LineageTreeProb.updatePartials.
+     * The partials of a cell of fixed type are 0 for all other types, so summing over all types of the daughters
+     * only keeps their fixed types.
+     */
+    static double[] calculatePruningProb(LineageTreeProb treeProb, Cell node) {
+
+        int numberOfCellTypes = treeProb.parametrizationInput.get().getNumberOfCellTypes();
+        double[] pruningProb = new double[numberOfCellTypes];
+
+        int nodeType = treeProb.getFixedCellTypeOfNode(node.getNr());
+        int generation = Cell.getCellGeneration(node.getTrackNumber());
+        boolean isOfKnownType = treeProb.isOfKnownTypeInput.get();
+
+        double[] pruningProbFirstChild = node.isLeaf() ? null : calculatePruningProb(treeProb, (Cell) node.getChild(0));
+        double[] pruningProbSecondChild = node.isLeaf() ? null : calculatePruningProb(treeProb, (Cell) node.getChild(1));
+
+        for (int i = 0; i < numberOfCellTypes; i++) {
+            if(nodeType != -1 && i != nodeType)
+                continue;
+
+            if(node.isLeaf()) {
+                pruningProb[i] = treeProb.getCellProbability(node, i);
+                continue;
+            }
+
+            for (int j = 0; j < numberOfCellTypes; j++) {
+                for (int k = 0; k < numberOfCellTypes; k++) {
+                    pruningProb[i] += treeProb.parametrizationInput.get().getTransitionProbability(i, j, k, generation, isOfKnownType) *
+                            pruningProbFirstChild[j] * pruningProbSecondChild[k];
+                }
+            }
+            pruningProb[i] *= treeProb.getCellProbability(node, i);
+        }
+
+        return pruningProb;
+    }
+
+    Parametrization getThreeTypeParametrization() {
+
+        DistributionForMeasurement distr_lifetime = new DistributionForMeasurement();
+        distr_lifetime.initByName("measurementTag", "lifetime",
+                "parm1Distribution", new RealParameter("1.1 1.4 0.8"),
+                "parm2Distribution", new RealParameter("1.5 2.0 1.2"),
+                "distributionType", "gamma",
+                "estimateType", "max",
+                "isAppliedToRootCells", true);
+
+        DistributionForMeasurement distr_measure1 = new DistributionForMeasurement();
+        distr_measure1.initByName("measurementTag", "measure_1",
+                "parm1Distribution", new RealParameter("-0.4 -0.1 0.3"),
+                "parm2Distribution", new RealParameter("0.4 0.3 0.6"),
+                "distributionType", "normal",
+                "estimateType", "mean",
+                "isAppliedToRootCells", false);
+
+        List<DistributionForMeasurement> distributions = new LinkedList<>();
+        distributions.add(distr_lifetime);
+        distributions.add(distr_measure1);
+
+        Parametrization parametrization = new Parametrization();
+        parametrization.initByName("distribution", distributions,
+                "transitionUponDivisionProbs", new RealParameter("0.3 0.1 0.1 0.2 0.2 0.1"),
+                "transitionUponDivisionProbs", new RealParameter("0.1 0.2 0.05 0.4 0.15 0.1"),
+                "transitionUponDivisionProbs", new RealParameter("0.05 0.05 0.1 0.2 0.3 0.3"),
+                "fateProbabilities", new RealParameter("0.9 0.1"),
+                "fateProbabilities", new RealParameter("0.7 0.3"),
+                "fateProbabilities", new RealParameter("0.8 0.2"),
+                "typeFrequencies", new RealParameter("0.5 0.3 0.2"),
+                "lossProb", new RealParameter("0.05"));
+
+        return parametrization;
+    }
+
+    /**
+     * Long-format csv file with two trees: the tree of getElevenCellTree ('a'), and a three-cell tree ('b')
+     * whose lines are interleaved with those of the first tree.
+     */
+    File getForestCSVFile() throws Exception {
+
+        File file = File.createTempFile("forest", ".csv");
+        file.deleteOnExit();
+        Files.write(file.toPath(), Arrays.asList(
+                "treeId,trackNumber,fate,measure_1,lifetime",
+                "a,1,,0.1,2.3",
+                "a,2,,0.5,1.1",
+                "b,3,U,0.7,NA",
+                "a,3,,-0.3,0.1",
+                "a,4,,0.89,0.5",
+                "b,1,D,-0.2,1.6",
+                "a,5,,-0.1,0.8",
+                "a,6,,-1.3,1.2",
+                "a,7,,1.5,0.3",
+                "",
+                "a,8,,0.2,1.4",
+                "b,2,A,,0.4",
+                "a,9,,-0.4,0.7",
+                "a,14,,0.6,2.1",
+                "a,15,,,0.9"), StandardCharsets.UTF_8);
+
+        return file;
+    }
+
+    LineageTree getElevenCellTree() {
+
+        LineageTree tree = new LineageTree();
+
+        ExperimentalMeasurements lifetime = new ExperimentalMeasurements();
+        lifetime.initByName("measurementTag", "lifetime", "values", "1:2.3,2:1.1,3:0.1,4:0.5,5:0.8,6:1.2,7:0.3,8:1.4,9:0.7,14:2.1,15:0.9");
+        ExperimentalMeasurements measure_1 = new ExperimentalMeasurements();
+        measure_1.initByName("measurementTag", "measure_1", "values", "1:0.1,2:0.5,3:-0.3,4:0.89,5:-0.1,6:-1.3,7:1.5,8:0.2,9:-0.4,14:0.6");
+
+        List<ExperimentalMeasurements> experimentalMeasurements = new LinkedList<>();
+        experimentalMeasurements.add(lifetime);
+        experimentalMeasurements.add(measure_1);
+
+        tree.setInputValue("measurement", experimentalMeasurements);
+        tree.setInputValue("cellsInTree", "1,2,3,4,5,6,7,8,9,14,15");
+        tree.initAndValidate();
+
+        return tree;
+    }
 }